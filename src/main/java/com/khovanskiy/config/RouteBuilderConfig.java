@@ -9,9 +9,24 @@ import lombok.Data;
 @Data
 @AllArgsConstructor
 public class RouteBuilderConfig {
+    private static final int DEFAULT_CACHE_TTL = 600;
+    private static final long DEFAULT_MAX_CACHE_WEIGHT = 256L << 20;
+
     private int maxTransfersCount;
     private int minTransferTime;
     private int maxTransferTime;
     private int maxCacheSize;
     private int maxNumberOfResult;
+    /**
+     * Время хранения незапрошенных результатов поиска для постраничной выдачи, секунды
+     */
+    private int cacheTtl;
+    /**
+     * Суммарный примерный объем результатов поиска в кеше, байты
+     */
+    private long maxCacheWeight;
+
+    public RouteBuilderConfig(int maxTransfersCount, int minTransferTime, int maxTransferTime, int maxCacheSize, int maxNumberOfResult) {
+        this(maxTransfersCount, minTransferTime, maxTransferTime, maxCacheSize, maxNumberOfResult, DEFAULT_CACHE_TTL, DEFAULT_MAX_CACHE_WEIGHT);
+    }
 }
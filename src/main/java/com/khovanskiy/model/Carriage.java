@@ -8,14 +8,17 @@ import lombok.Getter;
  * @author victor
  */
 public abstract class Carriage<C extends Carriage<C>> {
+    @Getter
     protected Idx<C> idx;
     /**
-     * Тип основной
+     * Номер вагона
      */
+    @Getter
     protected String carriageNumber;
     /**
      * Основной тип
      */
+    @Getter
     protected CarriageType mainType;
 
     public interface Type {
@@ -43,6 +43,13 @@ public class Properties implements Serializable {
         this.data = properties;
     }
 
+    /**
+     * @return количество объектов по типам и значениям свойств, только для чтения
+     */
+    public Map<Class<?>, Map<Object, Integer>> getData() {
+        return Collections.unmodifiableMap(data);
+    }
+
     public Properties min(Properties other) {
         return min(this, other);
     }
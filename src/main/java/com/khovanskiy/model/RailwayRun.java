@@ -15,14 +15,17 @@ public abstract class RailwayRun<B extends TransportRun<B, RailwayWaypoint, Stat
     /**
      * Перевозчик
      */
+    @Getter
     protected Ref<RailwayCarrier> carrierId;
     /**
      * Глубина продажи
      */
+    @Getter
     protected int saleDepth;
     /**
      * Вагоны
      */
+    @Getter
     protected List<Carriage> carriages;
 
     public void fillRailwayRun(RailwayRun run,
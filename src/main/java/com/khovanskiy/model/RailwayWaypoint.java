@@ -1,6 +1,7 @@
 package com.khovanskiy.model;
 
 import com.khovanskiy.util.Idx;
+import lombok.Getter;
 
 import java.time.Instant;
 
@@ -17,6 +18,7 @@ public class RailwayWaypoint extends Waypoint<RailwayWaypoint, StationPoint> {
     /**
      * Расстояние, которое прошла группа вагонов от начала движения ГВ, км
      */
+    @Getter
     protected double distance;
 
     public RailwayWaypoint(Idx<RailwayWaypoint> idx, Ref<StationPoint> stationPointId, Instant arrival, Instant departure,
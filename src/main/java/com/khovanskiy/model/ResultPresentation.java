@@ -30,6 +30,15 @@ public class ResultPresentation {
     @NonNull
     int numberOfResult;
 
+    /**
+     * Количество пропускаемых результатов при постраничной выдаче
+     */
+    int offset;
+
+    public ResultPresentation(SortOrder sortOrder, SortDirection sortDirection, int numberOfResult) {
+        this(sortOrder, sortDirection, numberOfResult, 0);
+    }
+
     public enum SortOrder {
         /**
          * По количеству пересадок
@@ -50,7 +59,12 @@ public class ResultPresentation {
         /**
          * По цене
          */
-        PRICE
+        PRICE,
+        /**
+         * Только Парето-оптимальные маршруты по времени отправления, времени прибытия и количеству пересадок,
+         * упорядоченные по дате отправления
+         */
+        PARETO
     }
 
     public enum SortDirection {
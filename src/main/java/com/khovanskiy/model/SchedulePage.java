@@ -14,11 +14,11 @@ public class SchedulePage extends Model<SchedulePage> {
     /**
      * Расписание прибытий
      */
-    protected Timeline<StopLight> arrivalTimeline = new Timeline<>();
+    protected Timeline<Ref> arrivalTimeline = new Timeline<>();
     /**
      * Расписание отправлений
      */
-    protected Timeline<StopLight> departureTimeline = new Timeline<>();
+    protected Timeline<Ref> departureTimeline = new Timeline<>();
 
     @Data
     @AllArgsConstructor
@@ -1,5 +1,6 @@
 package com.khovanskiy.model;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -9,4 +10,30 @@ import java.util.List;
 @FunctionalInterface
 public interface Transfers {
     List<ForwardSegment> successors(Collection<Ref<? extends Point>> departures, Stop currentStop, Collection<Ref<? extends Point>> arrivals);
+
+    /**
+     * Переходы сразу для всех остановок одного раунда поиска
+     *
+     * @param departures точки отправления
+     * @param stops      остановки раунда
+     * @param arrivals   точки прибытия
+     * @return переходы для каждой остановки в порядке {@code stops}
+     */
+    default List<List<ForwardSegment>> successors(Collection<Ref<? extends Point>> departures, List<Stop> stops, Collection<Ref<? extends Point>> arrivals) {
+        List<List<ForwardSegment>> result = new ArrayList<>(stops.size());
+        for (Stop stop : stops) {
+            result.add(successors(departures, stop, arrivals));
+        }
+        return result;
+    }
+
+    /**
+     * Стоимость проезда по сегменту
+     *
+     * @param segment сегмент
+     * @return стоимость в копейках
+     */
+    default long price(ForwardSegment segment) {
+        return 0;
+    }
 }
@@ -14,7 +14,7 @@ import java.util.List;
  */
 @Data
 @EqualsAndHashCode(callSuper = true)
-public class TransportRun<R extends TransportRun<R, W, P>, W extends Waypoint<W, P>, P extends Point<P>> extends BaseService<R> {
+public class TransportRun<R extends TransportRun<R, W, P>, W extends Waypoint<W, P>, P extends Point<P>> extends BaseService<R> implements Cloneable {
     /**
      * Маршрут движения
      */
@@ -25,6 +25,21 @@ public class TransportRun<R extends TransportRun<R, W, P>, W extends Waypoint<W,
      */
     protected SegmentTree<Properties> properties = new PropertiesSegmentTree(Properties.empty());
 
+    /**
+     * Копия рейса с другим маршрутом движения, остальные поля разделяются с исходным рейсом
+     */
+    @SuppressWarnings("unchecked")
+    public R withWaypoints(List<W> waypoints) {
+        TransportRun<R, W, P> copy;
+        try {
+            copy = (TransportRun<R, W, P>) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        copy.waypoints = waypoints;
+        return (R) copy;
+    }
+
     protected void fillTransportRun(TransportRun run, String name, List<W> waypoints) {
         run.name = name;
         run.waypoints = waypoints;
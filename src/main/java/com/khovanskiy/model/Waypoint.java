@@ -3,6 +3,7 @@ package com.khovanskiy.model;
 import com.khovanskiy.util.Idx;
 import lombok.Getter;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Objects;
 
@@ -12,7 +13,7 @@ import java.util.Objects;
  * @author victor
  */
 @Getter
-public class Waypoint<W extends Waypoint<W, P>, P extends Point<P>> {
+public class Waypoint<W extends Waypoint<W, P>, P extends Point<P>> implements Cloneable {
     /**
      * ID маршрутной точки
      */
@@ -34,6 +35,26 @@ public class Waypoint<W extends Waypoint<W, P>, P extends Point<P>> {
         return Objects.equals(arrival, departure);
     }
 
+    /**
+     * Копия маршрутной точки со сдвинутым временем прибытия и отправления, например при задержке рейса
+     */
+    @SuppressWarnings("unchecked")
+    public W shifted(Duration delay) {
+        Waypoint<W, P> copy;
+        try {
+            copy = (Waypoint<W, P>) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        if (arrival != null) {
+            copy.arrival = arrival.plus(delay);
+        }
+        if (departure != null) {
+            copy.departure = departure.plus(delay);
+        }
+        return (W) copy;
+    }
+
     public void fillWaypoint(Waypoint<W, P> w, Idx<W> idx, Ref<P> point, Instant arrival, Instant departure) {
         w.idx = idx;
         w.point = point;
@@ -38,7 +38,30 @@ public class RouteBuilderQuery<Q extends RouteBuilderQuery<Q, F, S>, F extends P
     protected ResultPresentation resultPresentation;
 
     /**
-     * Номер запроса
+     * Номер запроса для постраничной выдачи, 0 - без номера. Поиск запроса с номером сохраняется,
+     * и следующие страницы продолжают его
      */
     public long requestId;
+
+    /**
+     * Алгоритм исследования сети
+     */
+    @NonNull
+    protected SearchEngine engine = SearchEngine.BFS;
+
+    /**
+     * Исследовать сеть параллельно: переходы из состояний очереди вычисляются пулом, результат совпадает с последовательным
+     */
+    protected boolean parallel;
+
+    /**
+     * Время на выполнение запроса в миллисекундах, 0 - без ограничения.
+     * По истечении возвращаются уже найденные маршруты
+     */
+    protected long timeout;
+
+    public RouteBuilderQuery(PointTimeInterval departure, PointTimeInterval arrival, F filter,
+                             ResultPresentation resultPresentation, long requestId) {
+        this(departure, arrival, filter, resultPresentation, requestId, SearchEngine.BFS, false, 0);
+    }
 }
@@ -29,6 +29,15 @@ public class RouteBuilderResponse<S, F extends RouteBuilderFilter<S>> {
      */
     protected long requestId;
 
+    /**
+     * Поиск прерван по истечении времени на выполнение, маршруты могут быть неполными
+     */
+    protected boolean truncated;
+
+    public RouteBuilderResponse(List<S> transportationOfferList, F filter, long requestId) {
+        this(transportationOfferList, filter, requestId, false);
+    }
+
     public List<S> getRoutes() {
         return transportationOfferList;
     }
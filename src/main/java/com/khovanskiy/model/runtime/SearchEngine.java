@@ -0,0 +1,29 @@
+package com.khovanskiy.model.runtime;
+
+/**
+ * Алгоритмы исследования сети при поиске маршрутов
+ *
+ * @author victor
+ */
+public enum SearchEngine {
+    /**
+     * Поиск в ширину по состояниям (остановка, количество пересадок)
+     */
+    BFS,
+    /**
+     * Поиск по раундам в духе RAPTOR: раунд k обрабатывает все состояния с k пересадками,
+     * а каждый рейс раунда просматривается один раз
+     */
+    RAPTOR,
+    /**
+     * Поиск в ширину, из которого исключены состояния, не достижимые обратным проходом от конечных точек.
+     * Находит те же маршруты, что и BFS
+     */
+    BIDIRECTIONAL,
+    /**
+     * Просмотр таблицы перегонов, отсортированной по времени отправления.
+     * Для каждого отправления строится только маршрут с самым ранним прибытием,
+     * поэтому используется для сортировки по отправлению или прибытию, для остальных сортировок применяется BFS
+     */
+    CONNECTION_SCAN
+}
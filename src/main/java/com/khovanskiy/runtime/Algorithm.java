@@ -1,6 +1,9 @@
 package com.khovanskiy.runtime;
 
 import com.khovanskiy.model.*;
+import com.khovanskiy.model.runtime.SearchEngine;
+import com.khovanskiy.util.Deadline;
+import com.khovanskiy.util.LongHashSet;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.Getter;
@@ -8,9 +11,10 @@ import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.comparators.ComparatorChain;
 
-import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -24,6 +28,8 @@ import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
 
 /**
@@ -38,76 +44,178 @@ public class Algorithm implements Iterable<Path> {
         PROPERTIES
     }
 
+    /**
+     * Период проверки крайнего срока в шагах поиска
+     */
+    private static final int DEADLINE_CHECK_PERIOD = 256;
+
+    /**
+     * Количество частей переходов на поток пула, вычисляемых заранее за один раз
+     */
+    private static final int PREFETCH_BATCHES = 2;
+
+    /**
+     * Примерный объем памяти состояния на одном уровне и сегмента, байты
+     */
+    private static final int STATE_WEIGHT = 64;
+    private static final int SEGMENT_WEIGHT = 96;
+
     private static final Comparator<PersistentState> COMPARATOR_BY_ARRIVAL_TIME = (lhs, rhs) -> lhs.segment.C().getTime().compareTo(rhs.segment.C().getTime());
 
     private static final Comparator<PersistentState> COMPARATOR_BY_DEPARTURE_TIME = (lhs, rhs) -> lhs.segment.A().getTime().compareTo(rhs.segment.A().getTime());
 
+    private static final Comparator<Stop> COMPARATOR_BY_STOP = (lhs, rhs) -> {
+        int result = lhs.getTime().compareTo(rhs.getTime());
+        if (result == 0) {
+            result = Integer.compare(lhs.getNumber(), rhs.getNumber());
+        }
+        if (result == 0 && !lhs.getRef().equals(rhs.getRef())) {
+            result = lhs.getRef().toString().compareTo(rhs.getRef().toString());
+        }
+        return result;
+    };
+
+    /**
+     * Полный порядок на сегментах, чтобы порядок выдачи не зависел от порядка добавления на уровень
+     */
+    private static final Comparator<PersistentState> COMPARATOR_BY_SEGMENT = (lhs, rhs) -> {
+        int result = COMPARATOR_BY_STOP.compare(lhs.segment.C(), rhs.segment.C());
+        if (result == 0) {
+            result = COMPARATOR_BY_STOP.compare(lhs.segment.A(), rhs.segment.A());
+        }
+        if (result == 0) {
+            result = COMPARATOR_BY_STOP.compare(lhs.segment.B(), rhs.segment.B());
+        }
+        return result;
+    };
+
     private static final Comparator<PersistentState> COMPARATOR_BY_TRANSFERS_COUNT = (lhs, rhs) -> Integer.compare(lhs.transfers, rhs.transfers);
 
-    private final Comparator<? super LazyLink> COMPARATOR_BY_TIME = (lhs, rhs) -> {
-        assert lhs.state != null || lhs.segment != null : "Префикс и дополнительный сегмент не могут быть null одновременно";
-        assert rhs.state != null || rhs.segment != null : "Префикс и дополнительный сегмент не могут быть null одновременно";
-        PersistentState left = lhs.segment != null ? new PersistentState(lhs.state, lhs.segment, 0) : lhs.state;
-        PersistentState right = rhs.segment != null ? new PersistentState(rhs.state, rhs.segment, 0) : rhs.state;
-        return buildFrom(left, true).getTime().compareTo(buildFrom(right, true).getTime());
+    private static final Comparator<LazyLink> COMPARATOR_BY_TIME = (lhs, rhs) -> Long.compare(lhs.time, rhs.time);
+
+    private static final Comparator<LazyLink> COMPARATOR_BY_PRICE = (lhs, rhs) -> {
+        int result = Long.compare(lhs.price, rhs.price);
+        return result != 0 ? result : Long.compare(lhs.time, rhs.time);
     };
 
-    private final Set<Stop>[] expandedVertexes;
-    private final Set<State<Stop>> exploredVertexes = new HashSet<>();
-    private final Queue<State<Stop>> queue = new ArrayDeque<>();
-    private final Map<Stop, Integer>[] pathsCount;
-    private final Map<Stop, List<ForwardSegment>>[] successors;
-    private final Map<Stop, List<ForwardSegment>>[] predecessors;
+    /**
+     * Плотная нумерация обнаруженных остановок
+     */
+    private final StopIndex index = new StopIndex();
+    /**
+     * Состояние поиска для каждого количества пересадок
+     */
+    private final Layer[] layers;
+    /**
+     * Очередь BFS, раскрытые состояния остаются в ней до продолжения ограниченного поиска
+     */
+    private StateQueue queue = new StateQueue();
+    /**
+     * Сегменты, отброшенные ограниченным поиском по оценке количества пересадок, в порядке очереди
+     */
+    private List<DeferredSegment> deferred = new ArrayList<>();
+    /**
+     * Очередь и отброшенные сегменты до продолжения ограниченного поиска, см. {@link #replay}
+     */
+    private StateQueue replayed;
+    private List<DeferredSegment> replayedDeferred;
+    private int replayedDeferredHead;
+    /**
+     * Начальные точки уже добавлены в очередь
+     */
+    private boolean started;
 
     private final Deque<Level> stack = new ArrayDeque<>();
-    private final Set<String> usedTransportRunSets = new HashSet<>();
-    private final StringBuilder transportRunSetBuilder = new StringBuilder();
+    /**
+     * Отпечатки последовательностей рейсов уже построенных путей
+     */
+    private final LongHashSet usedTransportRunSets = new LongHashSet();
+    /**
+     * 64-битные хеши рейсов, вычисляются один раз для каждого рейса
+     */
+    private final Map<Ref, Long> refHashes = new HashMap<>();
     private final Queue<Path> candidates = new ArrayDeque<>();
     private final Set<Stop> sources = new HashSet<>();
     private final Set<Stop> targets = new HashSet<>();
-    private final Map<Stop, List<PathWithCost>>[] allBestPaths;
-    private final Map<Stop, Properties>[] allProperties;
-    private final Map<Stop, Node>[] nodes;
+    private final BitSet targetIds = new BitSet();
 
     private final Set<Ref<? extends Point>> departures = new HashSet<>();
     private final Set<Ref<? extends Point>> arrivals = new HashSet<>();
 
     private final Transfers transfers;
+    private final SearchEngine engine;
     private final int maxTransfersCount;
+    /**
+     * Состояния с большей оценкой количества пересадок не исследуются, см. {@link #bounded(int)}
+     */
+    private int transfersLimit;
+    /**
+     * Количество путей, после которого уровни с большим количеством пересадок не исследуются, 0 - без ограничения
+     */
+    private long requiredPathsCount;
     private final ResultPresentation.SortOrder order;
     private final ResultPresentation.SortDirection direction;
 
     private Stage stage = Stage.INITIAL;
 
+    /**
+     * Пул для параллельного исследования сети, null для последовательного
+     */
+    private ForkJoinPool pool;
+    /**
+     * Переходы из состояний очереди с номерами от {@code prefetchedFrom}, вычисленные пулом заранее
+     */
+    private List<List<ForwardSegment>> prefetched = Collections.emptyList();
+    private int prefetchedFrom;
+
+    /**
+     * Достижимость конечных точек, null - без отсечения
+     */
+    private Reachability reachability;
+
+    /**
+     * Нижняя оценка количества пересадок до конечных точек, null - без отсечения
+     */
+    private TransferBounds.TransitionsHeuristic transitionsHeuristic;
+
+    /**
+     * Крайний срок выполнения, после него поиск прекращается с уже найденными путями
+     */
+    private Deadline deadline = Deadline.NONE;
+    /**
+     * Был ли поиск прерван по крайнему сроку
+     */
+    @Getter
+    private boolean truncated;
+
     @Getter
     private Properties properties = Properties.empty();
 
-    @SuppressWarnings("unchecked")
     public Algorithm(
             Transfers transfers,
             int maxTransfersCount,
             ResultPresentation.SortOrder order,
             ResultPresentation.SortDirection direction
+    ) {
+        this(transfers, SearchEngine.BFS, maxTransfersCount, order, direction);
+    }
+
+    public Algorithm(
+            Transfers transfers,
+            SearchEngine engine,
+            int maxTransfersCount,
+            ResultPresentation.SortOrder order,
+            ResultPresentation.SortDirection direction
     ) {
         this.transfers = transfers;
+        this.engine = engine;
         this.maxTransfersCount = maxTransfersCount;
+        this.transfersLimit = maxTransfersCount;
         this.order = order;
         this.direction = direction;
-        this.expandedVertexes = new Set[this.maxTransfersCount + 1];
-        this.pathsCount = new Map[this.maxTransfersCount + 1];
-        this.successors = new Map[this.maxTransfersCount + 1];
-        this.predecessors = new Map[this.maxTransfersCount + 1];
-        this.allProperties = new Map[this.maxTransfersCount + 1];
-        this.allBestPaths = new Map[this.maxTransfersCount + 1];
-        this.nodes = new Map[this.maxTransfersCount + 1];
+        this.layers = new Layer[this.maxTransfersCount + 1];
         for (int i = 0; i <= this.maxTransfersCount; ++i) {
-            this.expandedVertexes[i] = new HashSet<>();
-            this.pathsCount[i] = new HashMap<>();
-            this.successors[i] = new HashMap<>();
-            this.predecessors[i] = new HashMap<>();
-            this.allProperties[i] = new HashMap<>();
-            this.allBestPaths[i] = new HashMap<>();
-            this.nodes[i] = new HashMap<>();
+            this.layers[i] = new Layer();
         }
     }
 
@@ -130,96 +238,134 @@ public class Algorithm implements Iterable<Path> {
     }
 
     /**
-     * Построение дерева путей
+     * Исследовать сеть параллельно: переходы из состояний очереди вычисляются пулом заранее,
+     * а сегменты добавляются в порядке очереди, поэтому результат совпадает с последовательным исследованием
+     *
+     * @param pool пул потоков
      */
-    public Algorithm execute() {
+    public Algorithm parallel(ForkJoinPool pool) {
         assert stage == Stage.INITIAL;
-        sources.forEach(source -> {
-            departures.add(source.getPoint());
+        this.pool = pool;
+        return this;
+    }
 
-            pathsCount[0].put(source, 1);
-            State<Stop> sourceState = new State<>(source, 0);
-            exploredVertexes.add(sourceState);
-            queue.add(sourceState);
-            //System.out.println("Добавили в очередь состояние = " + sourceState);
-        });
-        targets.forEach(target -> {
-            arrivals.add(target.getPoint());
-        });
-        while (!queue.isEmpty()) {
-            State<Stop> state = queue.poll();
-            //System.out.println("Извлекли из очереди состояние = " + state);
-            Stop current = state.vertex;
-            int currentTransfersCount = state.transfersCount;
-
-            expandedVertexes[currentTransfersCount].add(current);
-            //System.out.println("Поместили остановку " + current + " в список обработанных c " + currentTransfersCount + " пересадкой");
-            if (targets.contains(state.vertex)) {
-                //System.out.println("Остановка " + current + " является конечной => переход к следующему состоянию");
-                continue;
-            }
+    /**
+     * Не исследовать состояния, из которых нельзя добраться до конечных точек
+     *
+     * @param reachability результат обратного прохода от конечных точек
+     */
+    public Algorithm prune(Reachability reachability) {
+        assert stage == Stage.INITIAL;
+        this.reachability = reachability;
+        return this;
+    }
 
-            List<ForwardSegment> transfers = this.transfers.successors(departures, current, arrivals);
-            assert pathsCount[currentTransfersCount].get(current) != null;
-            /*if (transfers.isEmpty()) {
-                System.out.println("Пересадок нет и прямых тоже");
-            }*/
-            //successors[currentTransfersCount].put(current, transfers);
-            transfers.forEach(segment -> {
-                // Теперь segment.from() != current, т.к. на текущей станции мы уже находимся в нужном поезде;
-                assert segment.isTransfer() || (!segment.isTransfer() && segment.A().getNumber() < segment.C().getNumber());
-                Stop neighbor = segment.C();
-                //System.out.println("\tРассматриваем переход = " + segment);
-
-                int newTransfersCount = currentTransfersCount;
-
-                if (segment.isTransfer()) {
-                    //System.out.println("\tЭто пересадка");
-                    newTransfersCount += 1;
-                    if (newTransfersCount > maxTransfersCount) {
-                        //System.out.println("\tБольше пересадок не совершить, т.к. текущее количество пересадок = " + currentTransfersCount + ", а максимальное доспустимое = " + maxTransfersCount + " => к следующему");
-                        return;
-                    }
-                } else {
-                    //System.out.println("\tЭто не пересадка");
-                }
+    /**
+     * Не исследовать состояния, из которых нельзя добраться до конечных точек с допустимым количеством пересадок
+     *
+     * @param transitionsHeuristic нижняя оценка количества пересадок до конечных точек
+     */
+    public Algorithm estimate(TransferBounds.TransitionsHeuristic transitionsHeuristic) {
+        assert stage == Stage.INITIAL;
+        this.transitionsHeuristic = transitionsHeuristic;
+        return this;
+    }
 
-                /*if (newBasisSize + transitionsHeuristic.estimate(neighbor, target) > maxTransfersCount) {
-                    continue;
-                }*/
+    /**
+     * Прекратить поиск по истечении крайнего срока.
+     * Для построения следующей страницы маршрутов срок можно заменить после выполнения.
+     *
+     * @param deadline крайний срок
+     */
+    public Algorithm until(Deadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
 
-                if (expandedVertexes[newTransfersCount].contains(neighbor)) {
-                    //System.out.println("\tОстановка " + neighbor + " находится в списоке обработанных c " + newTransfersCount + " пересадкой => к следующему");
-                    return;
-                }
+    /**
+     * Исследовать уровни по возрастанию количества пересадок, только пока путей в конечные точки меньше
+     * {@code requiredPathsCount}; остальные уровни раскрываются {@link #deepen()}.
+     * Исследованные уровни совпадают с уровнями полного поиска,
+     * т.к. в состояние попадают только из состояний с таким же или меньшим количеством пересадок.
+     *
+     * @param requiredPathsCount количество путей, которого достаточно для построения первых маршрутов
+     */
+    public Algorithm bounded(int requiredPathsCount) {
+        assert stage == Stage.INITIAL;
+        this.requiredPathsCount = requiredPathsCount;
+        return this;
+    }
 
-                List<ForwardSegment> cc = predecessors[newTransfersCount].get(neighbor);
-                if (cc == null) {
-                    cc = new ArrayList<>();
-                    predecessors[newTransfersCount].put(neighbor, cc);
-                }
-                cc.add(segment);
-                //System.out.println("\tДобавили обратное ребро = " + segment + " к " + neighbor + " с количеством пересадок = " + newTransfersCount);
+    /**
+     * Упорядочены ли маршруты прежде всего по возрастанию количества пересадок.
+     * В этом случае первые маршруты выдачи, построенные по нижним уровням, не зависят от верхних уровней.
+     */
+    public boolean isOrderedByTransfers() {
+        return order == ResultPresentation.SortOrder.TRANSFERS && direction == ResultPresentation.SortDirection.ASC
+                || order == ResultPresentation.SortOrder.ARRIVAL;
+    }
 
-                pathsCount[newTransfersCount].put(neighbor, pathsCount[currentTransfersCount].get(current) + pathsCount[newTransfersCount].getOrDefault(neighbor, 0));
+    /**
+     * @return остались ли нераскрытые уровни
+     */
+    public boolean isBounded() {
+        return transfersLimit < maxTransfersCount;
+    }
 
-                State<Stop> newState = new State<>(neighbor, newTransfersCount);
-                if (!exploredVertexes.contains(newState)) {
-                    //System.out.println("\tНовое состояние " + newState + " помещаем в очередь");
-                    exploredVertexes.add(newState);
-                    queue.add(newState);
-                }
-            });
+    /**
+     * Построение дерева путей
+     */
+    public Algorithm execute() {
+        assert stage == Stage.INITIAL;
+        transfersLimit = requiredPathsCount > 0 ? 0 : maxTransfersCount;
+        search();
+        while (isBounded() && !truncated && totalPathsCount() < requiredPathsCount) {
+            ++transfersLimit;
+            search();
         }
 
         stage = Stage.EXECUTED;
 
         log();
 
+        sort();
+        return this;
+    }
+
+    /**
+     * Исследование следующего уровня ограниченного поиска. Уже раскрытые состояния повторно не раскрываются,
+     * а сегменты, отброшенные на нижних уровнях, добавляются в том же порядке, что и при поиске сразу
+     * до этого уровня. Построение маршрутов начинается заново, первые маршруты совпадают с уже построенными.
+     */
+    public Algorithm deepen() {
+        assert stage == Stage.EXECUTED || stage == Stage.PROPERTIES;
+        assert isBounded();
+        ++transfersLimit;
+        search();
+        log.info(transfersLimit + " transfers  = " + pathsCount(transfersLimit));
+
+        stack.clear();
+        candidates.clear();
+        usedTransportRunSets.clear();
+        for (Layer layer : layers) {
+            Arrays.fill(layer.nodes, null);
+            Arrays.fill(layer.successors, null);
+        }
+        sort();
+        return this;
+    }
+
+    /**
+     * Подготовка к построению маршрутов в заданном порядке
+     */
+    private void sort() {
         switch (order) {
             case TIME:
                 sortedByTime();
                 break;
+            case PRICE:
+                sortedByPrice();
+                break;
             case DEPARTURE:
                 sortedByDepartureTime();
                 break;
@@ -231,18 +377,391 @@ public class Algorithm implements Iterable<Path> {
                 sortedByTransfersCount();
                 break;
         }
+    }
 
-        return this;
+    /**
+     * Исследование сети из всех начальных точек или продолжение исследования до {@code transfersLimit}
+     */
+    private void search() {
+        if (started) {
+            replayed = queue;
+            replayedDeferred = deferred;
+            replayedDeferredHead = 0;
+            replayed.head = 0;
+            queue = new StateQueue();
+            deferred = new ArrayList<>();
+            prefetched = Collections.emptyList();
+            prefetchedFrom = 0;
+            replay(-1, -1);
+            explore();
+            replayed = null;
+            replayedDeferred = null;
+            return;
+        }
+        started = true;
+        int number = 0;
+        for (Stop source : sources) {
+            departures.add(source.getPoint());
+
+            int sourceId = index.add(source);
+            ensureCapacity(index.size());
+            layers[0].pathsCount[sourceId] = 1;
+            if (reachability == null || reachability.canReach(source, 0)) {
+                addSource(sourceId, number, transitionsHeuristic != null ? transitionsHeuristic.estimate(source) : 0);
+            }
+            ++number;
+        }
+        targets.forEach(target -> {
+            arrivals.add(target.getPoint());
+            targetIds.set(index.add(target));
+        });
+        ensureCapacity(index.size());
+        explore();
+    }
+
+    /**
+     * @param number   порядковый номер начальной точки
+     * @param estimate оценка количества пересадок
+     */
+    private void addSource(int sourceId, int number, int estimate) {
+        if (layers[0].explored.get(sourceId) || estimate > maxTransfersCount) {
+            return;
+        }
+        if (estimate > transfersLimit) {
+            deferred.add(new DeferredSegment(-1, number, estimate, sourceId, 0, null));
+            return;
+        }
+        layers[0].explored.set(sourceId);
+        queue.add(sourceId * (maxTransfersCount + 1), -1, number, -1);
+    }
+
+    private void explore() {
+        if (engine == SearchEngine.RAPTOR) {
+            exploreRounds();
+        } else {
+            exploreStates();
+        }
+    }
+
+    /**
+     * Восстановление состояний, найденных при раскрытии состояния до продолжения ограниченного поиска,
+     * и добавление отброшенных при этом сегментов в порядке сегментов. Оценка количества пересадок
+     * не уменьшается вдоль сегментов, поэтому отброшенные сегменты ведут только в новые состояния,
+     * а в раскрытые состояния входят только сегменты из раскрытых состояний, уже добавленные до продолжения.
+     * Так очередь получает тот же порядок, что и при поиске сразу до {@code transfersLimit}.
+     *
+     * @param origin   номер состояния в прежней очереди, -1 для начальных точек
+     * @param position номер состояния в новой очереди, -1 для начальных точек
+     */
+    private void replay(int origin, int position) {
+        while (true) {
+            boolean found = replayed.head < replayed.tail && replayed.parents[replayed.head] == origin;
+            DeferredSegment segment = replayedDeferredHead < replayedDeferred.size()
+                    ? replayedDeferred.get(replayedDeferredHead) : null;
+            if (segment != null && segment.parent != origin) {
+                segment = null;
+            }
+            if (!found && segment == null) {
+                return;
+            }
+            if (found && (segment == null || replayed.numbers[replayed.head] < segment.number)) {
+                int head = replayed.head++;
+                queue.add(replayed.states[head], position, replayed.numbers[head], head);
+            } else {
+                ++replayedDeferredHead;
+                if (segment.segment == null) {
+                    addSource(segment.id, segment.number, segment.estimate);
+                } else {
+                    relax(position, segment.id, segment.transfersCount, segment.number, segment.segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Переходы из раскрываемого состояния очереди. При параллельном исследовании переходы вычисляются заранее
+     * для окна состояний очереди, начиная с текущего: по {@link #PREFETCH_BATCHES} части на поток пула.
+     * Окно ограничено, чтобы при остановке поиска по лимиту или сроку не вычислять переходы всей очереди.
+     *
+     * @param position номер состояния в очереди
+     * @param id       номер остановки состояния
+     */
+    private List<ForwardSegment> successors(int position, int id) {
+        if (pool == null) {
+            return transfers.successors(departures, index.get(id), arrivals);
+        }
+        if (position - prefetchedFrom >= prefetched.size()) {
+            int levels = maxTransfersCount + 1;
+            int window = SearchTask.BATCH_SIZE * PREFETCH_BATCHES * pool.getParallelism();
+            int end = Math.min(queue.tail, position + window);
+            List<Stop> stops = new ArrayList<>(end - position);
+            for (int i = position; i < end; ++i) {
+                int stateId = queue.states[i] / levels;
+                // восстановленные состояния и конечные точки не раскрываются
+                stops.add(queue.origins[i] != -1 || targetIds.get(stateId) ? null : index.get(stateId));
+            }
+            prefetched = successors(stops);
+            prefetchedFrom = position;
+        }
+        List<ForwardSegment> segments = prefetched.get(position - prefetchedFrom);
+        // по истечении срока пул переходы не вычисляет
+        return segments != null ? segments : transfers.successors(departures, index.get(id), arrivals);
+    }
+
+    /**
+     * Переходы для нескольких остановок, при параллельном исследовании - частями в пуле
+     *
+     * @param stops остановки, null - переходы не нужны
+     * @return переходы в порядке {@code stops}
+     */
+    private List<List<ForwardSegment>> successors(List<Stop> stops) {
+        if (pool == null) {
+            return transfers.successors(departures, stops, arrivals);
+        }
+        List<List<ForwardSegment>> result = new ArrayList<>(Collections.nCopies(stops.size(), null));
+        pool.invoke(new SearchTask(this, stops, result, 0, stops.size()));
+        return result;
+    }
+
+    /**
+     * Задача вычисления переходов для остановок с индексами {@code [from, to)}
+     */
+    private static class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = -3412870215374408113L;
+        /**
+         * Количество остановок, переходы для которых вычисляются одним запросом
+         */
+        private static final int BATCH_SIZE = 32;
+
+        private final Algorithm algorithm;
+        private final List<Stop> stops;
+        private final List<List<ForwardSegment>> result;
+        private final int from;
+        private final int to;
+
+        private SearchTask(Algorithm algorithm, List<Stop> stops, List<List<ForwardSegment>> result, int from, int to) {
+            this.algorithm = algorithm;
+            this.stops = stops;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SearchTask(algorithm, stops, result, from, mid), new SearchTask(algorithm, stops, result, mid, to));
+                return;
+            }
+            if (algorithm.deadline.isExpired()) {
+                return;
+            }
+            List<Stop> batch = new ArrayList<>(to - from);
+            for (int i = from; i < to; ++i) {
+                if (stops.get(i) != null) {
+                    batch.add(stops.get(i));
+                }
+            }
+            List<List<ForwardSegment>> segments = batch.isEmpty() ? Collections.emptyList()
+                    : algorithm.transfers.successors(algorithm.departures, batch, algorithm.arrivals);
+            for (int i = from, k = 0; i < to; ++i) {
+                result.set(i, stops.get(i) != null ? segments.get(k++) : null);
+            }
+        }
+    }
+
+    /**
+     * Поиск в ширину по состояниям (остановка, количество пересадок)
+     */
+    private void exploreStates() {
+        int levels = maxTransfersCount + 1;
+        while (queue.head < queue.tail) {
+            // раскрытие состояния дороже проверки срока
+            if (expired()) {
+                break;
+            }
+            int position = queue.head++;
+            if (queue.origins[position] != -1) {
+                replay(queue.origins[position], position);
+                continue;
+            }
+            int state = queue.states[position];
+            int currentId = state / levels;
+            int currentTransfersCount = state % levels;
+
+            layers[currentTransfersCount].expanded.set(currentId);
+            if (targetIds.get(currentId)) {
+                continue;
+            }
+
+            List<ForwardSegment> transfers = successors(position, currentId);
+            for (int number = 0; number < transfers.size(); ++number) {
+                relax(position, currentId, currentTransfersCount, number, transfers.get(number));
+            }
+        }
+    }
+
+    /**
+     * Поиск по раундам: в раунде k обрабатываются все состояния с k пересадками,
+     * переходы для них запрашиваются одним пакетом, чтобы каждый рейс просматривался один раз.
+     * Состояния с k + 1 пересадками раскрываются только в следующем раунде,
+     * поэтому входящие в них сегменты не теряются из-за порядка обработки очереди.
+     */
+    private void exploreRounds() {
+        int levels = maxTransfersCount + 1;
+        List<Stop> stops = new ArrayList<>();
+        int[] positions = new int[16];
+        while (queue.head < queue.tail && !expired()) {
+            int roundEnd = queue.tail;
+            stops.clear();
+            for (int position = queue.head; position < roundEnd; ++position) {
+                if (queue.origins[position] != -1) {
+                    continue;
+                }
+                int state = queue.states[position];
+                int currentId = state / levels;
+                layers[state % levels].expanded.set(currentId);
+                if (targetIds.get(currentId)) {
+                    continue;
+                }
+                if (stops.size() == positions.length) {
+                    positions = Arrays.copyOf(positions, positions.length * 2);
+                }
+                positions[stops.size()] = position;
+                stops.add(index.get(currentId));
+            }
+            List<List<ForwardSegment>> transfers = stops.isEmpty() ? Collections.emptyList() : successors(stops);
+            int i = 0;
+            for (int position = queue.head; position < roundEnd; ++position) {
+                if (queue.origins[position] != -1) {
+                    replay(queue.origins[position], position);
+                } else if (i < stops.size() && positions[i] == position) {
+                    int state = queue.states[position];
+                    List<ForwardSegment> segments = transfers.get(i++);
+                    for (int number = 0; number < segments.size(); ++number) {
+                        relax(position, state / levels, state % levels, number, segments.get(number));
+                    }
+                }
+            }
+            queue.head = roundEnd;
+        }
+    }
+
+    /**
+     * Добавление сегмента, исходящего из раскрытого состояния
+     *
+     * @param position              номер текущего состояния в очереди
+     * @param currentId             номер текущей остановки
+     * @param currentTransfersCount количество пересадок в текущем состоянии
+     * @param number                порядковый номер сегмента среди исходящих из текущего состояния
+     * @param segment               исходящий сегмент
+     */
+    private void relax(int position, int currentId, int currentTransfersCount, int number, ForwardSegment segment) {
+        // Теперь segment.from() != current, т.к. на текущей станции мы уже находимся в нужном поезде;
+        assert segment.isTransfer() || (!segment.isTransfer() && segment.A().getNumber() < segment.C().getNumber());
+        assert layers[currentTransfersCount].explored.get(currentId);
+        int newTransfersCount = currentTransfersCount;
+        if (segment.isTransfer()) {
+            newTransfersCount += 1;
+            if (newTransfersCount > maxTransfersCount) {
+                return;
+            }
+        }
+
+        // без оценки ограниченный поиск откладывает состояния с количеством пересадок больше текущего предела
+        int estimate = newTransfersCount + (transitionsHeuristic != null ? transitionsHeuristic.estimate(segment.C()) : 0);
+        if (estimate > transfersLimit) {
+            if (estimate <= maxTransfersCount) {
+                deferred.add(new DeferredSegment(position, number, estimate, currentId, currentTransfersCount, segment));
+            }
+            return;
+        }
+        if (reachability != null && !reachability.canReach(segment.C(), newTransfersCount) && !targets.contains(segment.C())) {
+            return;
+        }
+
+        int neighborId = index.add(segment.C());
+        ensureCapacity(index.size());
+        Layer layer = layers[newTransfersCount];
+        if (layer.expanded.get(neighborId)) {
+            return;
+        }
+
+        List<ForwardSegment> cc = layer.predecessors[neighborId];
+        if (cc == null) {
+            cc = new ArrayList<>();
+            layer.predecessors[neighborId] = cc;
+        }
+        cc.add(segment);
+
+        layer.pathsCount[neighborId] += layers[currentTransfersCount].pathsCount[currentId];
+
+        if (!layer.explored.get(neighborId)) {
+            layer.explored.set(neighborId);
+            queue.add(neighborId * (maxTransfersCount + 1) + newTransfersCount, position, number, -1);
+        }
+    }
+
+    /**
+     * Примерный объем памяти, занимаемой состояниями поиска и сегментами, в байтах
+     */
+    public long getWeight() {
+        long segments = 0;
+        for (Layer layer : layers) {
+            for (int id = 0; id < index.size(); ++id) {
+                segments += layer.predecessors(id).size();
+                if (layer.successors[id] != null) {
+                    segments += layer.successors[id].size();
+                }
+            }
+        }
+        return (long) index.size() * layers.length * STATE_WEIGHT + segments * SEGMENT_WEIGHT;
+    }
+
+    /**
+     * @return встречались ли при исследовании остановки одного из рейсов
+     */
+    public boolean touches(Collection<? extends Ref> runs) {
+        for (Ref run : runs) {
+            if (index.contains(run)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Количество путей в конечные точки без учета повторов, оценка сверху для количества маршрутов
+     */
+    public long getPathsCount() {
+        assert stage == Stage.EXECUTED || stage == Stage.PROPERTIES;
+        return totalPathsCount();
+    }
+
+    private long totalPathsCount() {
+        long total = 0;
+        for (int i = 0; i <= transfersLimit; ++i) {
+            total += pathsCount(i);
+        }
+        return total;
+    }
+
+    private long pathsCount(int transfersCount) {
+        long count = 0;
+        for (Stop target : targets) {
+            int paths = layers[transfersCount].pathsCount[index.find(target)];
+            // при переполнении путей заведомо достаточно
+            count += paths < 0 ? Integer.MAX_VALUE : paths;
+        }
+        return count;
     }
 
     private void log() {
         log.info("Paths` count:");
-        int total = 0;
-        for (int i = 0; i <= maxTransfersCount; ++i) {
-            int count = 0;
-            for (Stop target : targets) {
-                count += pathsCount[i].getOrDefault(target, 0);
-            }
+        long total = 0;
+        for (int i = 0; i <= transfersLimit; ++i) {
+            long count = pathsCount(i);
             if (i == 0) {
                 log.info("No transfers = " + count);
             } else {
@@ -255,6 +774,13 @@ public class Algorithm implements Iterable<Path> {
         /**/
     }
 
+
+    private void ensureCapacity(int size) {
+        for (Layer layer : layers) {
+            layer.ensureCapacity(size);
+        }
+    }
+
     /**
      * Заполняем уровень сегментами, входящими в конечные точки.
      *
@@ -263,7 +789,7 @@ public class Algorithm implements Iterable<Path> {
      */
     private void fillLevel(Level level, int transfersCount) {
         for (Stop target : targets) {
-            Collection<ForwardSegment> neighbors = predecessors[transfersCount].getOrDefault(target, Collections.emptyList());
+            Collection<ForwardSegment> neighbors = layers[transfersCount].predecessors(index.find(target));
             for (ForwardSegment segment : neighbors) {
                 assert segment.C().equals(target);
                 level.add(new PersistentState(transfersCount, segment));
@@ -280,11 +806,11 @@ public class Algorithm implements Iterable<Path> {
         Level unvisited = new RandomLevel();
         // по построению уровень будет отсортирован по количеству пересадок
         if (direction == ResultPresentation.SortDirection.ASC) {
-            for (int i = 0; i <= maxTransfersCount; ++i) {
+            for (int i = 0; i <= transfersLimit; ++i) {
                 fillLevel(unvisited, i);
             }
         } else {
-            for (int i = maxTransfersCount; i >= 0; --i) {
+            for (int i = transfersLimit; i >= 0; --i) {
                 fillLevel(unvisited, i);
             }
         }
@@ -308,8 +834,11 @@ public class Algorithm implements Iterable<Path> {
             comparator = comparator.reversed();
         }
         comparatorChain.addComparator(comparator);
+        // маршруты с равным временем прибытия упорядочены сегментами, а не порядком добавления на уровень:
+        // после раскрытия следующего уровня первыми должны выдаваться те же маршруты в том же порядке
+        comparatorChain.addComparator(COMPARATOR_BY_SEGMENT);
         Level unvisited = new OrderedLevel(comparatorChain);
-        for (int i = 0; i <= maxTransfersCount; ++i) {
+        for (int i = 0; i <= transfersLimit; ++i) {
             fillLevel(unvisited, i);
         }
         stack.addLast(unvisited);
@@ -336,7 +865,7 @@ public class Algorithm implements Iterable<Path> {
         comparatorChain.addComparator(comparator);
         Level unvisited = new OrderedLevel(comparatorChain);
         for (Stop source : sources) {
-            Collection<ForwardSegment> neighbors = successors[0].getOrDefault(source, Collections.emptyList());
+            Collection<ForwardSegment> neighbors = layers[0].successors(index.find(source));
             for (ForwardSegment segment : neighbors) {
                 assert segment.A().equals(source);
                 // путь может состоянить из одного сегмента без пересадки или из нескольких сегментов
@@ -354,14 +883,29 @@ public class Algorithm implements Iterable<Path> {
      * Подготовка к построению маршрутов, сортированных по времени в пути
      */
     public Algorithm sortedByTime() {
+        return sortedByMetric(COMPARATOR_BY_TIME);
+    }
+
+    /**
+     * Подготовка к построению маршрутов, сортированных по цене (при равной цене - по времени в пути)
+     */
+    public Algorithm sortedByPrice() {
+        return sortedByMetric(COMPARATOR_BY_PRICE);
+    }
+
+    /**
+     * Подготовка к ленивому построению маршрутов в порядке аддитивной метрики
+     *
+     * @param comparator сравнение связей по метрике
+     */
+    private Algorithm sortedByMetric(Comparator<LazyLink> comparator) {
         assert stage == Stage.EXECUTED | stage == Stage.PROPERTIES;
 
-        Comparator<? super LazyLink> comparator = COMPARATOR_BY_TIME;
         if (direction == ResultPresentation.SortDirection.DESC) {
             comparator = comparator.reversed();
         }
-        Node root = new Node(comparator);
-        for (int i = 0; i <= maxTransfersCount; ++i) {
+        Node root = new Node(comparator, false);
+        for (int i = 0; i <= transfersLimit; ++i) {
             for (Stop target : targets) {
                 Node node = buildIteratorTree(target, i, comparator);
                 Iterator<PersistentState> iterator = node.iterator();
@@ -394,12 +938,14 @@ public class Algorithm implements Iterable<Path> {
         return buildFrom(state, true);
     }
 
-    private Node buildIteratorTree(Stop stop, int transfersCount, Comparator<? super LazyLink> comparator) {
-        Node parent = nodes[transfersCount].get(stop);
+    private Node buildIteratorTree(Stop stop, int transfersCount, Comparator<LazyLink> comparator) {
+        int id = index.find(stop);
+        Layer layer = layers[transfersCount];
+        Node parent = layer.nodes[id];
         if (parent == null) {
-            parent = new Node(comparator);
-            nodes[transfersCount].put(stop, parent);
-            List<ForwardSegment> incoming = predecessors[transfersCount].getOrDefault(stop, Collections.emptyList());
+            List<ForwardSegment> incoming = layer.predecessors(id);
+            parent = new Node(comparator, incoming.isEmpty());
+            layer.nodes[id] = parent;
             for (ForwardSegment segment : incoming) {
                 int prevTransfers = transfersCount - (segment.isTransfer() ? 1 : 0);
                 Node child = buildIteratorTree(segment.A(), prevTransfers, comparator);
@@ -423,22 +969,57 @@ public class Algorithm implements Iterable<Path> {
          * итератор для получения следующего состояние узла
          */
         private Iterator<PersistentState> iterator;
+        /**
+         * время в пути по префиксу, дополненному ребром, в секундах
+         */
+        private final long time;
+        /**
+         * стоимость префикса, дополненного ребром (вычисляется только для сортировки по цене)
+         */
+        private final long price;
 
         public LazyLink(ForwardSegment segment, PersistentState state, Iterator<PersistentState> iterator) {
             assert state != null || segment != null : "Префикс и дополнительный сегмент не могут быть null одновременно";
             this.segment = segment;
             this.state = state;
             this.iterator = iterator;
+            long departure = state != null ? state.departure : segment.A().getTime().getEpochSecond();
+            long arrival = segment != null ? segment.C().getTime().getEpochSecond() : state.arrival;
+            this.time = arrival - departure;
+            if (order == ResultPresentation.SortOrder.PRICE) {
+                this.price = (state != null ? state.price() : 0) + (segment != null ? transfers.price(segment) : 0);
+            } else {
+                this.price = 0;
+            }
         }
     }
 
+    /**
+     * Узел ленивого перечисления префиксов путей до остановки в порядке метрики (в духе REA).
+     * Префиксы запоминаются, т.к. их читают все входящие в узел связи, и удаляются,
+     * когда их прочитали все итераторы узла.
+     */
     private class Node implements Iterable<PersistentState> {
-        private final int numberOfResult = 10;
+        /**
+         * Как часто пытаться удалить прочитанные префиксы
+         */
+        private static final int TRIM_PERIOD = 64;
+
         private PriorityQueue<LazyLink> queue;
         private List<PersistentState> cache = new ArrayList<>();
+        /**
+         * Порядковый номер первого префикса в {@code cache}
+         */
+        private int offset;
+        private final List<Cursor> cursors = new ArrayList<>();
+        /**
+         * Начальный узел: в него не входит ни одного сегмента
+         */
+        private final boolean initial;
 
-        public Node(Comparator<? super LazyLink> comparator) {
+        public Node(Comparator<LazyLink> comparator, boolean initial) {
             this.queue = new PriorityQueue<>(comparator);
+            this.initial = initial;
         }
 
         public void add(ForwardSegment segment, Iterator<PersistentState> iterator) {
@@ -470,10 +1051,29 @@ public class Algorithm implements Iterable<Path> {
             return prevState;
         }
 
+        /**
+         * Удаление префиксов, прочитанных всеми итераторами
+         */
+        private void trim() {
+            if (metricIterator == null) {
+                // дерево еще строится, и у узла могут появиться новые итераторы
+                return;
+            }
+            int min = Integer.MAX_VALUE;
+            for (Cursor cursor : cursors) {
+                min = Math.min(min, cursor.index);
+            }
+            if (min > offset) {
+                cache.subList(0, min - offset).clear();
+                offset = min;
+            }
+        }
+
         @Override
         public Iterator<PersistentState> iterator() {
-            if (queue.isEmpty()) {
-                // очередь изначально пуста, следовательно это начальный узел
+            if (initial) {
+                // в начальный узел не входит сегментов, пустая очередь у остальных узлов означает,
+                // что все префиксы уже построены
                 return new Iterator<PersistentState>() {
                     private boolean flag;
 
@@ -491,26 +1091,34 @@ public class Algorithm implements Iterable<Path> {
                 };
             } else {
                 // очередь не пуста, следовательно есть префиксы пути, ведущие в текущую вершину
-                return new Iterator<PersistentState>() {
-                    private int index;
+                Cursor cursor = new Cursor();
+                cursor.index = offset;
+                cursors.add(cursor);
+                return cursor;
+            }
+        }
 
-                    @Override
-                    public boolean hasNext() {
-                        return index < cache.size() || !queue.isEmpty();
-                    }
+        private class Cursor implements Iterator<PersistentState> {
+            private int index;
 
-                    @Override
-                    public PersistentState next() {
-                        if (!hasNext()) {
-                            throw new NoSuchElementException();
-                        }
-                        if (cache.size() <= index) {
-                            cache.add(nextState());
-                        }
-                        ++index;
-                        return cache.get(index - 1);
+            @Override
+            public boolean hasNext() {
+                return index - offset < cache.size() || !queue.isEmpty();
+            }
+
+            @Override
+            public PersistentState next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (cache.size() <= index - offset) {
+                    cache.add(nextState());
+                    if (cache.size() % TRIM_PERIOD == 0) {
+                        trim();
                     }
-                };
+                }
+                ++index;
+                return cache.get(index - 1 - offset);
             }
         }
     }
@@ -523,7 +1131,7 @@ public class Algorithm implements Iterable<Path> {
         //todo build properties skipping useless paths
 
         properties = Properties.empty();
-        for (int i = 0; i <= maxTransfersCount; ++i) {
+        for (int i = 0; i <= transfersLimit; ++i) {
             for (Stop target : targets) {
                 properties = properties.max(buildProperties(target, i));
             }
@@ -534,16 +1142,18 @@ public class Algorithm implements Iterable<Path> {
     }
 
     private Properties buildProperties(Stop stop, int transfersCount) {
-        Properties properties = allProperties[transfersCount].get(stop);
+        int id = index.find(stop);
+        Layer layer = layers[transfersCount];
+        Properties properties = layer.properties[id];
         if (properties == null) {
             properties = Properties.empty();
-            List<ForwardSegment> incoming = predecessors[transfersCount].getOrDefault(stop, Collections.emptyList());
+            List<ForwardSegment> incoming = layer.predecessors(id);
             for (ForwardSegment segment : incoming) {
                 int prevTransfers = transfersCount - (segment.isTransfer() ? 1 : 0);
                 Stop previousStop = segment.A();
                 properties = properties.max(buildProperties(previousStop, prevTransfers).min(segment.getProperties()));
             }
-            allProperties[transfersCount].put(stop, properties);
+            layer.properties[id] = properties;
         }
         return properties;
     }
@@ -554,7 +1164,7 @@ public class Algorithm implements Iterable<Path> {
     public Algorithm buildSuccessors() {
         assert stage == Stage.EXECUTED || stage == Stage.PROPERTIES;
 
-        for (int i = 0; i <= maxTransfersCount; ++i) {
+        for (int i = 0; i <= transfersLimit; ++i) {
             for (Stop target : targets) {
                 buildSuccessors(target, i);
             }
@@ -564,16 +1174,18 @@ public class Algorithm implements Iterable<Path> {
     }
 
     private void buildSuccessors(Stop stop, int transfersCount) {
-        List<ForwardSegment> incoming = predecessors[transfersCount].getOrDefault(stop, Collections.emptyList());
+        List<ForwardSegment> incoming = layers[transfersCount].predecessors(index.find(stop));
         for (ForwardSegment segment : incoming) {
             int prevTransfers = transfersCount - (segment.isTransfer() ? 1 : 0);
             assert prevTransfers >= 0;
             Stop previousStop = segment.A();
             assert segment.C().equals(stop);
-            List<ForwardSegment> outgoing = successors[prevTransfers].get(previousStop);
+            int previousId = index.find(previousStop);
+            Layer previousLayer = layers[prevTransfers];
+            List<ForwardSegment> outgoing = previousLayer.successors[previousId];
             if (outgoing == null) {
                 outgoing = new ArrayList<>();
-                successors[prevTransfers].put(previousStop, outgoing);
+                previousLayer.successors[previousId] = outgoing;
             }
             outgoing.add(segment);
             buildSuccessors(previousStop, prevTransfers);
@@ -592,7 +1204,7 @@ public class Algorithm implements Iterable<Path> {
         assert stage == Stage.EXECUTED | stage == Stage.PROPERTIES;
 
         List<PathWithCost> pathWithCosts = new ArrayList<>();
-        for (int i = 0; i <= maxTransfersCount; i++) {
+        for (int i = 0; i <= transfersLimit; i++) {
             for (Stop target : targets) {
                 pathWithCosts.addAll(buildMetrics(target, i, k, costFunction));
             }
@@ -609,10 +1221,12 @@ public class Algorithm implements Iterable<Path> {
 
     @Deprecated
     private List<PathWithCost> buildMetrics(Stop stop, int transfersCount, int k, Function<ForwardSegment, Double> costFunction) {
-        List<PathWithCost> bestPaths = allBestPaths[transfersCount].get(stop);
+        int id = index.find(stop);
+        Layer layer = layers[transfersCount];
+        List<PathWithCost> bestPaths = layer.bestPaths[id];
         if (bestPaths == null) {
             bestPaths = new ArrayList<>();
-            List<ForwardSegment> incoming = predecessors[transfersCount].getOrDefault(stop, Collections.emptyList());
+            List<ForwardSegment> incoming = layer.predecessors(id);
             for (ForwardSegment segment : incoming) {
                 int previousTransfers = transfersCount - (segment.isTransfer() ? 1 : 0);
                 Stop previousStop = segment.A();
@@ -628,7 +1242,7 @@ public class Algorithm implements Iterable<Path> {
             for (int i = 0; i < resultSize; i++) {
                 result.add(bestPaths.get(i));
             }
-            allBestPaths[transfersCount].put(stop, result);
+            layer.bestPaths[id] = result;
         }
         return bestPaths;
     }
@@ -659,6 +1273,7 @@ public class Algorithm implements Iterable<Path> {
      * Упорядоченный слой DFS
      */
     private class OrderedLevel extends PriorityQueue<PersistentState> implements Level {
+        private static final long serialVersionUID = 5182339071825063264L;
 
         public OrderedLevel(Comparator<? super PersistentState> comparator) {
             super(comparator);
@@ -674,6 +1289,8 @@ public class Algorithm implements Iterable<Path> {
      * Неупорядоченный слой DFS
      */
     private class RandomLevel extends ArrayDeque<PersistentState> implements Level {
+        private static final long serialVersionUID = -7706143285940621727L;
+
         @Override
         public PersistentState poll() {
             return super.pollFirst();
@@ -706,18 +1323,36 @@ public class Algorithm implements Iterable<Path> {
     }
 
     /**
-     * Получение списка используемых в пути TransportRun'ов в виде строки
-     * @param state состояние, которому соответствует путь
-     * @return строковое представление списка TransportRun
+     * 64-битный хеш строкового представления рейса
+     *
+     * @param ref рейс
+     * @return хеш
      */
-    private String buildString(PersistentState state) {
-        transportRunSetBuilder.setLength(0);
-        PersistentState current = state;
-        while (current != null) {
-            transportRunSetBuilder.append(current.segment.A().getRef()).append(",");
-            current = current.parent;
+    private long refHash(Ref ref) {
+        Long hash = refHashes.get(ref);
+        if (hash == null) {
+            // FNV-1a
+            long value = 0xcbf29ce484222325L;
+            String string = ref.toString();
+            for (int i = 0; i < string.length(); ++i) {
+                value = (value ^ string.charAt(i)) * 0x100000001b3L;
+            }
+            hash = value;
+            refHashes.put(ref, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Проверка крайнего срока, при его истечении поиск отмечается прерванным
+     *
+     * @return истек ли крайний срок
+     */
+    private boolean expired() {
+        if (deadline.isExpired()) {
+            truncated = true;
         }
-        return transportRunSetBuilder.toString();
+        return truncated;
     }
 
     /**
@@ -738,13 +1373,19 @@ public class Algorithm implements Iterable<Path> {
         if (!candidates.isEmpty()) {
             candidate = candidates.poll();
         }
+        int steps = 0;
         while (!stack.isEmpty()) {
+            // после крайнего срока путь строится, только если на это хватает одного периода
+            if (++steps % DEADLINE_CHECK_PERIOD == 0 && expired()) {
+                stack.clear();
+                break;
+            }
             Level level = stack.peekLast();
             //System.out.println("## Level# " + stack.size());
             if (!level.isEmpty()) {
                 PersistentState state = level.poll();
-                String transportRunSetString = buildString(state);
-                if (usedTransportRunSets.contains(transportRunSetString)) {
+                long fingerprint = state.fingerprint();
+                if (usedTransportRunSets.contains(fingerprint)) {
                     continue;
                 }
                 Stop vertex = state.segment.A();
@@ -752,7 +1393,7 @@ public class Algorithm implements Iterable<Path> {
 
                 if (departures.contains(vertex.getPoint())) {
                     //assert transfers == 0;
-                    usedTransportRunSets.add(transportRunSetString);
+                    usedTransportRunSets.add(fingerprint);
                     Path path = buildFrom(state, false);
                     candidates.add(path);
                     if (path.size() > 1) {
@@ -761,7 +1402,7 @@ public class Algorithm implements Iterable<Path> {
                     break;
                 }
 
-                List<ForwardSegment> incoming = predecessors[transfers].get(vertex);
+                List<ForwardSegment> incoming = layers[transfers].predecessors[index.find(vertex)];
                 if (incoming != null) {
                     Level newLevel = new RandomLevel();
                     Collections.sort(incoming, (fs1, fs2) -> Integer.compare(fs2.C().getNumber(), fs1.C().getNumber()));
@@ -773,8 +1414,7 @@ public class Algorithm implements Iterable<Path> {
                             assert prevTransfers >= 0;
                         }
                         PersistentState newState = new PersistentState(state, segment, prevTransfers);
-                        String idHash = buildString(newState);
-                        if (!usedTransportRunSets.contains(idHash)) {
+                        if (!usedTransportRunSets.contains(newState.fingerprint())) {
                             newLevel.add(newState);
                         }
                     });
@@ -799,12 +1439,18 @@ public class Algorithm implements Iterable<Path> {
         if (!candidates.isEmpty()) {
             candidate = candidates.poll();
         }
+        int steps = 0;
         while (!stack.isEmpty()) {
+            // после крайнего срока путь строится, только если на это хватает одного периода
+            if (++steps % DEADLINE_CHECK_PERIOD == 0 && expired()) {
+                stack.clear();
+                break;
+            }
             Level level = stack.peekLast();
             if (!level.isEmpty()) {
                 PersistentState state = level.poll();
-                String transportRunSetString = buildString(state);
-                if (usedTransportRunSets.contains(transportRunSetString)) {
+                long fingerprint = state.fingerprint();
+                if (usedTransportRunSets.contains(fingerprint)) {
                     continue;
                 }/**/
                 Stop vertex = state.segment.C();
@@ -812,7 +1458,7 @@ public class Algorithm implements Iterable<Path> {
 
                 if (arrivals.contains(vertex.getPoint())) {
                     Path path = buildFrom(state, true);
-                    usedTransportRunSets.add(transportRunSetString);
+                    usedTransportRunSets.add(fingerprint);
                     candidates.add(path);
                     if (path.size() > 1) {
                         stack.pollLast();
@@ -820,7 +1466,7 @@ public class Algorithm implements Iterable<Path> {
                     break;
                 }
 
-                List<ForwardSegment> outgoing = successors[transfers].get(vertex);
+                List<ForwardSegment> outgoing = layers[transfers].successors[index.find(vertex)];
                 if (outgoing != null) {
                     Level newLevel = new RandomLevel();
                     Collections.sort(outgoing, (fs1, fs2) -> Integer.compare(fs1.B().getNumber(), fs2.B().getNumber()));
@@ -831,11 +1477,8 @@ public class Algorithm implements Iterable<Path> {
                             ++nextTransfers;
                             assert nextTransfers <= maxTransfersCount;
                         }
-                        PersistentState newState = new PersistentState(state, segment, nextTransfers);
-                        String newSetString = transportRunSetString + "," + segment.A().getRef();
-                        if (!usedTransportRunSets.contains(newSetString)) {
-                            newLevel.add(newState);
-                        }
+                        // продолжение пути еще не может быть построено, оно проверяется при извлечении с уровня
+                        newLevel.add(new PersistentState(state, segment, nextTransfers));
                     });
                     stack.addLast(newLevel);
                 }
@@ -851,9 +1494,11 @@ public class Algorithm implements Iterable<Path> {
     public Iterator<Path> iterator() {
         switch (order) {
             case TIME:
+            case PRICE:
                 return new Iterator<Path>() {
                     @Override
                     public boolean hasNext() {
+                        // дерево итераторов построено при выполнении, очередной путь извлекается без исследования сети
                         return metricIterator.hasNext();
                     }
 
@@ -906,52 +1551,152 @@ public class Algorithm implements Iterable<Path> {
         private final ForwardSegment segment;
         private final int transfers;
         private PersistentState parent;
+        private long fingerprint;
+        private boolean hasFingerprint;
+        private long price = -1;
+        /**
+         * Время отправления первого сегмента и прибытия последнего, секунды от начала эпохи
+         * (для цепочек, в которых родитель - предыдущий сегмент пути)
+         */
+        private final long departure;
+        private final long arrival;
 
         public PersistentState(int transfers, ForwardSegment segment) {
-            this.transfers = transfers;
-            assert segment != null;
-            this.segment = segment;
+            this(null, segment, transfers);
         }
 
         public PersistentState(PersistentState parent, ForwardSegment segment, int transfers) {
-            this(transfers, segment);
-            assert parent != null || segment != null : "Префикс и дополнительный сегмент не могут быть null одновременно";
+            assert segment != null;
+            this.transfers = transfers;
+            this.segment = segment;
             this.parent = parent;
+            this.departure = parent != null ? parent.departure : segment.A().getTime().getEpochSecond();
+            this.arrival = segment.C().getTime().getEpochSecond();
         }
-    }
 
-    private class State<T> {
-        Stop vertex;
-        int transfersCount;
+        /**
+         * Стоимость проезда от корня до данного состояния,
+         * вычисляется по стоимости родителя при первом обращении
+         *
+         * @return стоимость в копейках
+         */
+        private long price() {
+            if (price < 0) {
+                price = (parent != null ? parent.price() : 0) + Algorithm.this.transfers.price(segment);
+            }
+            return price;
+        }
 
-        public State(Stop source, int transfersCount) {
-            vertex = source;
-            this.transfersCount = transfersCount;
+        /**
+         * Отпечаток последовательности рейсов от данного состояния до корня,
+         * вычисляется по отпечатку родителя при первом обращении
+         *
+         * @return 64-битный отпечаток
+         */
+        private long fingerprint() {
+            if (!hasFingerprint) {
+                long hash = (parent != null ? parent.fingerprint() : 0x2545F4914F6CDD1DL) * 0x9E3779B97F4A7C15L + refHash(segment.A().getRef());
+                // финализатор MurmurHash3
+                hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+                hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+                fingerprint = hash ^ (hash >>> 33);
+                hasFingerprint = true;
+            }
+            return fingerprint;
         }
+    }
 
-        @SuppressWarnings("unchecked")
-        public boolean equals(Object o) {
-            if (o == this) {
-                return true;
+    /**
+     * Сегмент, отброшенный ограниченным поиском, или начальная точка, если сегмента нет
+     */
+    @AllArgsConstructor
+    private static class DeferredSegment {
+        /**
+         * Номер раскрытого состояния в очереди, -1 для начальных точек
+         */
+        private final int parent;
+        /**
+         * Порядковый номер сегмента среди исходящих из состояния или начальной точки
+         */
+        private final int number;
+        private final int estimate;
+        private final int id;
+        private final int transfersCount;
+        private final ForwardSegment segment;
+    }
+
+    /**
+     * Очередь BFS в порядке обнаружения состояний. Для каждого состояния запоминается, при раскрытии какого
+     * состояния очереди и каким по счету сегментом оно найдено.
+     */
+    private static class StateQueue {
+        /**
+         * Состояние кодируется как {@code id * (maxTransfersCount + 1) + transfers}
+         */
+        private int[] states = new int[64];
+        private int[] parents = new int[64];
+        private int[] numbers = new int[64];
+        /**
+         * Номер состояния в очереди до продолжения ограниченного поиска или -1 для нового состояния
+         */
+        private int[] origins = new int[64];
+        private int head;
+        private int tail;
+
+        private void add(int state, int parent, int number, int origin) {
+            if (tail == states.length) {
+                states = Arrays.copyOf(states, tail * 2);
+                parents = Arrays.copyOf(parents, tail * 2);
+                numbers = Arrays.copyOf(numbers, tail * 2);
+                origins = Arrays.copyOf(origins, tail * 2);
             }
-            if (o instanceof State) {
-                State<Stop> other = (State<Stop>) o;
-                // todo:
-                return vertex.equals(other.vertex) && transfersCount == other.transfersCount;
+            states[tail] = state;
+            parents[tail] = parent;
+            numbers[tail] = number;
+            origins[tail] = origin;
+            ++tail;
+        }
+    }
+
+    /**
+     * Состояние поиска с фиксированным количеством пересадок, индексированное номерами остановок
+     */
+    private class Layer {
+        private final BitSet expanded = new BitSet();
+        private final BitSet explored = new BitSet();
+        private int[] pathsCount = new int[0];
+        private List<ForwardSegment>[] predecessors = newArray(0);
+        private List<ForwardSegment>[] successors = newArray(0);
+        private Properties[] properties = new Properties[0];
+        private Node[] nodes = new Node[0];
+        private List<PathWithCost>[] bestPaths = newArray(0);
+
+        private void ensureCapacity(int size) {
+            if (pathsCount.length >= size) {
+                return;
             }
-            return true;
+            int capacity = Math.max(size, pathsCount.length * 2);
+            pathsCount = Arrays.copyOf(pathsCount, capacity);
+            predecessors = Arrays.copyOf(predecessors, capacity);
+            successors = Arrays.copyOf(successors, capacity);
+            properties = Arrays.copyOf(properties, capacity);
+            nodes = Arrays.copyOf(nodes, capacity);
+            bestPaths = Arrays.copyOf(bestPaths, capacity);
         }
 
-        public int hashCode() {
-            int PRIME = 59;
-            int result = 1;
-            result = result * PRIME + vertex.hashCode();
-            result = result * PRIME + transfersCount;
-            return result;
+        private List<ForwardSegment> predecessors(int id) {
+            List<ForwardSegment> incoming = id < 0 ? null : predecessors[id];
+            return incoming != null ? incoming : Collections.emptyList();
         }
 
-        public String toString() {
-            return "State(vertex=" + this.vertex + ", transfersCount=" + this.transfersCount + ")";
+        private List<ForwardSegment> successors(int id) {
+            List<ForwardSegment> outgoing = id < 0 ? null : successors[id];
+            return outgoing != null ? outgoing : Collections.emptyList();
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> List<T>[] newArray(int size) {
+            return new List[size];
         }
     }
 
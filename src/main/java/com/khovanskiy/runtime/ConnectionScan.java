@@ -0,0 +1,508 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.ForwardSegment;
+import com.khovanskiy.model.Path;
+import com.khovanskiy.model.Point;
+import com.khovanskiy.model.Properties;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.ResultPresentation;
+import com.khovanskiy.model.Stop;
+import com.khovanskiy.model.TransportRun;
+import com.khovanskiy.model.Waypoint;
+import com.khovanskiy.util.Deadline;
+import com.khovanskiy.util.SegmentTree;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Поиск маршрутов с самым ранним прибытием просмотром таблицы перегонов (Connection Scan Algorithm).
+ * Для каждого отправления строится один маршрут: таблица просматривается один раз, начиная со времени отправления,
+ * и просмотр прекращается, как только перегоны начинают отправляться позже лучшего найденного прибытия.
+ * <p>
+ * В отличие от {@link Algorithm} возвращаются только маршруты с самым ранним прибытием,
+ * а максимальное время пересадки проверяется относительно самого раннего прибытия на станцию.
+ * Как и в {@link RouteBuilder}, запрещены пересадки на рейсы, которые дальше проезжают уже пройденные точки.
+ * <p>
+ * Для сортировки {@link ResultPresentation.SortOrder#PARETO} отправления просматриваются от поздних к ранним
+ * и строится множество маршрутов, не доминируемых по времени отправления, времени прибытия и количеству пересадок.
+ *
+ * @author victor
+ */
+class ConnectionScan implements Iterable<Path> {
+    private static final long INFINITY = Long.MAX_VALUE;
+    private static final int NONE = -1;
+    /**
+     * Период проверки крайнего срока в просмотренных перегонах
+     */
+    private static final int DEADLINE_CHECK_PERIOD = 1024;
+
+    private final ConnectionTable table;
+    private final List<Stop> sources;
+    private final int departurePoint;
+    private final int arrivalPoint;
+    private final long arrivalSince;
+    private final long arrivalTill;
+    private final long minTransferTime;
+    private final long maxTransferTime;
+    private final int maxTransfersCount;
+    private final Predicate<Properties> propertiesFilter;
+    private final ResultPresentation.SortOrder order;
+    private final ResultPresentation.SortDirection direction;
+
+    /**
+     * Самое раннее прибытие на точку для каждого количества пересадок, индекс {@code transfers * pointsCount + point}
+     */
+    private final long[] labels;
+    /**
+     * Порядковый номер остановки, на которую прибывает перегон, которым достигнута метка
+     */
+    private final int[] labelNumbers;
+    /**
+     * Посадка, с которой достигнута метка
+     */
+    private final int[] labelBoardings;
+    /**
+     * Текущая посадка на каждый рейс
+     */
+    private final int[] runBoardings;
+    /**
+     * Измененные метки и рейсы, которые нужно сбросить перед следующим просмотром
+     */
+    private int[] touchedLabels = new int[64];
+    private int touchedLabelsCount;
+    private int[] touchedRuns = new int[64];
+    private int touchedRunsCount;
+
+    /**
+     * Посадки: рейс, порядковый номер остановки, количество пересадок и метка, с которой была сделана пересадка:
+     * номер остановки выхода с предыдущего рейса и посадка на него
+     */
+    private int[] boardingRuns = new int[64];
+    private int[] boardingNumbers = new int[64];
+    private int[] boardingTransfers = new int[64];
+    private int[] boardingExits = new int[64];
+    private int[] boardingParents = new int[64];
+    private int boardingsCount;
+
+    /**
+     * Границы времени прибытия для каждого количества пересадок: маршрут, прибывающий не раньше, доминирован
+     */
+    private final long[] limits;
+    /**
+     * Лучшие маршруты текущего отправления для каждого количества пересадок
+     */
+    private final long[] targetArrivals;
+    private final int[] targetNumbers;
+    private final int[] targetBoardings;
+
+    /**
+     * Отметки точек, пройденных последним рейсом, для проверки обратного направления
+     */
+    private final int[] pointMarks;
+    private int pointMark;
+
+    @Getter
+    private Properties properties = Properties.empty();
+
+    /**
+     * Крайний срок выполнения, проверяется перед просмотром таблицы для очередного отправления
+     * и во время просмотра через каждые {@link #DEADLINE_CHECK_PERIOD} перегонов
+     */
+    private Deadline deadline = Deadline.NONE;
+    @Getter
+    private boolean truncated;
+
+    ConnectionScan(ConnectionTable table, List<Stop> sources, Ref<? extends Point> departure, Ref<? extends Point> arrival,
+                   long arrivalSince, long arrivalTill, long minTransferTime, long maxTransferTime, int maxTransfersCount,
+                   Predicate<Properties> propertiesFilter,
+                   ResultPresentation.SortOrder order, ResultPresentation.SortDirection direction) {
+        this.table = table;
+        this.sources = new ArrayList<>(sources);
+        this.departurePoint = table.pointId(departure);
+        this.arrivalPoint = table.pointId(arrival);
+        this.arrivalSince = arrivalSince;
+        this.arrivalTill = arrivalTill;
+        this.minTransferTime = minTransferTime;
+        this.maxTransferTime = maxTransferTime;
+        this.maxTransfersCount = maxTransfersCount;
+        this.propertiesFilter = propertiesFilter;
+        this.order = order;
+        this.direction = direction;
+        this.labels = new long[(maxTransfersCount + 1) * table.pointsCount()];
+        Arrays.fill(labels, INFINITY);
+        this.labelNumbers = new int[labels.length];
+        this.labelBoardings = new int[labels.length];
+        this.runBoardings = new int[table.runsCount()];
+        Arrays.fill(runBoardings, NONE);
+        this.pointMarks = new int[table.pointsCount()];
+        this.limits = new long[maxTransfersCount + 1];
+        this.targetArrivals = new long[maxTransfersCount + 1];
+        this.targetNumbers = new int[maxTransfersCount + 1];
+        this.targetBoardings = new int[maxTransfersCount + 1];
+        Comparator<Stop> comparator = (lhs, rhs) -> lhs.getTime().compareTo(rhs.getTime());
+        this.sources.sort(direction == ResultPresentation.SortDirection.DESC ? comparator.reversed() : comparator);
+    }
+
+    /**
+     * Прекратить поиск по истечении крайнего срока.
+     * Для построения следующей страницы маршрутов срок можно заменить.
+     *
+     * @param deadline крайний срок
+     */
+    ConnectionScan until(Deadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Примерный объем памяти рабочих массивов просмотра в байтах
+     */
+    long getWeight() {
+        return labels.length * 16L + runBoardings.length * 4L + pointMarks.length * 4L + boardingRuns.length * 20L;
+    }
+
+    /**
+     * @return поддерживается ли порядок сортировки
+     */
+    static boolean supports(ResultPresentation.SortOrder order) {
+        return order == ResultPresentation.SortOrder.DEPARTURE || order == ResultPresentation.SortOrder.ARRIVAL
+                || order == ResultPresentation.SortOrder.PARETO;
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        if (order == ResultPresentation.SortOrder.PARETO) {
+            return profile().iterator();
+        }
+        if (order == ResultPresentation.SortOrder.ARRIVAL) {
+            List<Path> paths = new ArrayList<>();
+            for (Stop source : sources) {
+                if (expired()) {
+                    break;
+                }
+                Path path = fastest(source);
+                if (path != null) {
+                    paths.add(path);
+                }
+            }
+            Comparator<Path> comparator = (lhs, rhs) -> lhs.getArrivalTime().compareTo(rhs.getArrivalTime());
+            paths.sort(direction == ResultPresentation.SortDirection.DESC ? comparator.reversed() : comparator);
+            return paths.iterator();
+        }
+        // отправления уже упорядочены, поэтому маршруты строятся лениво
+        return new Iterator<Path>() {
+            private int index;
+            private Path next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && index < sources.size() && !expired()) {
+                    next = fastest(sources.get(index++));
+                }
+                return next != null;
+            }
+
+            @Override
+            public Path next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Path path = next;
+                next = null;
+                return path;
+            }
+        };
+    }
+
+    private boolean expired() {
+        if (deadline.isExpired()) {
+            truncated = true;
+        }
+        return truncated;
+    }
+
+    /**
+     * Построение маршрута с самым ранним прибытием для одного отправления
+     *
+     * @param source остановка отправления
+     * @return маршрут или null
+     */
+    private Path fastest(Stop source) {
+        Arrays.fill(limits, INFINITY);
+        List<Path> paths = scan(source, true);
+        // маршруты упорядочены по возрастанию количества пересадок и убыванию времени прибытия
+        return paths.isEmpty() ? null : paths.get(paths.size() - 1);
+    }
+
+    /**
+     * Построение множества Парето-оптимальных маршрутов по времени отправления, времени прибытия
+     * и количеству пересадок. Отправления просматриваются от поздних к ранним, поэтому маршрут отправления
+     * может быть доминирован только уже найденными маршрутами, а их лучшие времена прибытия
+     * ограничивают просмотр таблицы для следующих отправлений.
+     *
+     * @return маршруты, упорядоченные по времени отправления
+     */
+    private List<Path> profile() {
+        List<Stop> latestFirst = new ArrayList<>(sources);
+        latestFirst.sort((lhs, rhs) -> rhs.getTime().compareTo(lhs.getTime()));
+        Arrays.fill(limits, INFINITY);
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < latestFirst.size() && !expired(); ) {
+            // маршруты отправлений с равным временем не ограничивают друг друга: маршрут, найденный первым,
+            // может быть доминирован маршрутом следующего отправления с меньшим количеством пересадок
+            Instant time = latestFirst.get(i).getTime();
+            List<Path> group = new ArrayList<>();
+            for (; i < latestFirst.size() && latestFirst.get(i).getTime().equals(time) && !expired(); ++i) {
+                group.addAll(scan(latestFirst.get(i), false));
+            }
+            for (Path path : group) {
+                if (!dominated(path, group)) {
+                    paths.add(path);
+                }
+            }
+        }
+        Comparator<Path> comparator = (lhs, rhs) -> lhs.getDepartureTime().compareTo(rhs.getDepartureTime());
+        if (direction == ResultPresentation.SortDirection.DESC) {
+            comparator = comparator.reversed();
+        }
+        paths.sort(comparator.thenComparing((lhs, rhs) -> Integer.compare(lhs.size(), rhs.size())));
+        return paths;
+    }
+
+    /**
+     * @return доминирован ли маршрут другим маршрутом с тем же временем отправления:
+     * с не большим количеством пересадок и не более поздним прибытием
+     */
+    private static boolean dominated(Path path, List<Path> paths) {
+        for (Path other : paths) {
+            if (other != path && other.size() <= path.size() && !other.getArrivalTime().isAfter(path.getArrivalTime())
+                    && (other.size() < path.size() || other.getArrivalTime().isBefore(path.getArrivalTime()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Просмотр таблицы перегонов для одного отправления.
+     * Маршрут с k пересадками принимается, только если он прибывает раньше {@code limits[k]},
+     * после чего граница уменьшается для k и большего количества пересадок.
+     *
+     * @param source  остановка отправления
+     * @param fastest нужен только самый ранний маршрут (граница уменьшается для любого количества пересадок)
+     * @return маршруты, не доминирующие друг друга, по возрастанию количества пересадок;
+     * пустой список, если срок истек во время просмотра, т.к. найденные маршруты могут быть не самыми ранними
+     */
+    private List<Path> scan(Stop source, boolean fastest) {
+        reset();
+        int sourceRun = table.runId(source.getRef());
+        if (sourceRun == NONE || departurePoint == NONE || arrivalPoint == NONE) {
+            return Collections.emptyList();
+        }
+        board(sourceRun, source.getNumber(), 0, NONE, NONE);
+        Arrays.fill(targetNumbers, NONE);
+
+        int pointsCount = table.pointsCount();
+        long time = source.getTime().getEpochSecond();
+        int first = table.firstBlock(time);
+        int steps = 0;
+        blocks:
+        for (int b = first; b < table.blocksCount(); ++b) {
+            ConnectionTable.Columns block = table.block(b);
+            for (int c = b == first ? block.lowerBound(time) : 0; c < block.size; ++c) {
+                long departure = block.departures[c];
+                // limits[0] - наибольшая граница, ни один перегон после нее не улучшит ответ
+                if (departure > limits[0] || departure > arrivalTill) {
+                    break blocks;
+                }
+                if (++steps % DEADLINE_CHECK_PERIOD == 0 && expired()) {
+                    return Collections.emptyList();
+                }
+                int run = block.runs[c];
+                int boarding = runBoardings[run];
+
+                // пересадка на рейс, если она уменьшает количество пересадок
+                int from = block.fromPoints[c];
+                int limit = boarding == NONE ? maxTransfersCount : boardingTransfers[boarding] - 1;
+                if (from != departurePoint) {
+                    for (int k = 0; k < limit; ++k) {
+                        int label = k * pointsCount + from;
+                        long arrival = labels[label];
+                        if (arrival != INFINITY && departure - arrival >= minTransferTime && departure - arrival <= maxTransferTime
+                                && boardingRuns[labelBoardings[label]] != run
+                                && !backwardDirection(labelBoardings[label], labelNumbers[label], run, block.fromNumbers[c])) {
+                            boarding = board(run, block.fromNumbers[c], k + 1, labelNumbers[label], labelBoardings[label]);
+                            break;
+                        }
+                    }
+                }
+                if (boarding == NONE || boardingNumbers[boarding] > block.fromNumbers[c]) {
+                    continue;
+                }
+
+                int to = block.toPoints[c];
+                long arrival = block.arrivals[c];
+                int transfers = boardingTransfers[boarding];
+                if (to == departurePoint) {
+                    // мы не хотим делать цикл через точку отправления
+                    runBoardings[run] = NONE;
+                } else if (to == arrivalPoint) {
+                    runBoardings[run] = NONE;
+                    if (arrival >= arrivalSince && arrival <= arrivalTill && arrival < limits[transfers]
+                            && propertiesFilter.test(select(boarding, block.toNumbers[c]))) {
+                        targetArrivals[transfers] = arrival;
+                        targetNumbers[transfers] = block.toNumbers[c];
+                        targetBoardings[transfers] = boarding;
+                        for (int k = fastest ? 0 : transfers; k <= maxTransfersCount; ++k) {
+                            limits[k] = Math.min(limits[k], arrival);
+                        }
+                    }
+                } else {
+                    int label = transfers * pointsCount + to;
+                    // метка, прибывающая не раньше границы, не приведет к лучшему маршруту
+                    if (arrival < labels[label] && arrival < limits[transfers]
+                            && propertiesFilter.test(select(boarding, block.toNumbers[c]))) {
+                        if (labels[label] == INFINITY) {
+                            touchLabel(label);
+                        }
+                        labels[label] = arrival;
+                        labelNumbers[label] = block.toNumbers[c];
+                        labelBoardings[label] = boarding;
+                    }
+                }
+            }
+        }
+
+        List<Path> paths = new ArrayList<>();
+        long bound = INFINITY;
+        for (int k = 0; k <= maxTransfersCount; ++k) {
+            if (targetNumbers[k] == NONE || targetArrivals[k] >= bound) {
+                continue;
+            }
+            bound = targetArrivals[k];
+            Path path = buildPath(targetNumbers[k], targetBoardings[k]);
+            Properties pathProperties = null;
+            for (ForwardSegment segment : path) {
+                pathProperties = pathProperties == null ? segment.getProperties() : pathProperties.min(segment.getProperties());
+            }
+            properties = properties.max(pathProperties);
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Восстановление маршрута по цепочке посадок
+     *
+     * @param toNumber порядковый номер остановки прибытия на последнем рейсе
+     * @param boarding посадка на последний рейс
+     * @return маршрут
+     */
+    @SuppressWarnings("unchecked")
+    private Path buildPath(int toNumber, int boarding) {
+        Path path = new Path();
+        Stop C = null;
+        while (boarding != NONE) {
+            TransportRun run = table.run(boardingRuns[boarding]);
+            List<? extends Waypoint> waypoints = run.getWaypoints();
+            int fromNumber = boardingNumbers[boarding];
+            Waypoint from = waypoints.get(fromNumber);
+            Waypoint to = waypoints.get(toNumber);
+            Stop A = new Stop(fromNumber, run.getId(), from.getPoint(), from.getDeparture());
+            Stop B = new Stop(toNumber, run.getId(), to.getPoint(), to.getArrival());
+            path.add(new ForwardSegment(A, B, C == null ? B : C, select(boarding, toNumber)));
+            C = A;
+            toNumber = boardingExits[boarding];
+            boarding = boardingParents[boarding];
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Проверка, проезжает ли следующий рейс точки, уже пройденные текущим рейсом после посадки
+     *
+     * @param boarding   посадка на текущий рейс
+     * @param exit       порядковый номер остановки текущего рейса на станции пересадки
+     * @param run        следующий рейс
+     * @param number     порядковый номер остановки посадки на следующий рейс
+     */
+    private boolean backwardDirection(int boarding, int exit, int run, int number) {
+        if (++pointMark == 0) {
+            Arrays.fill(pointMarks, 0);
+            pointMark = 1;
+        }
+        int[] visited = table.runPoints(boardingRuns[boarding]);
+        for (int i = boardingNumbers[boarding] + 1; i <= exit; ++i) {
+            if (visited[i] != NONE) {
+                pointMarks[visited[i]] = pointMark;
+            }
+        }
+        int[] next = table.runPoints(run);
+        for (int i = number + 1; i < next.length; ++i) {
+            if (next[i] != NONE && pointMarks[next[i]] == pointMark) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Properties select(int boarding, int toNumber) {
+        SegmentTree<Properties> modelProperties = table.run(boardingRuns[boarding]).getProperties();
+        return modelProperties.select(boardingNumbers[boarding], toNumber);
+    }
+
+    private int board(int run, int number, int transfers, int exit, int parent) {
+        if (boardingsCount == boardingRuns.length) {
+            int capacity = boardingsCount * 2;
+            boardingRuns = Arrays.copyOf(boardingRuns, capacity);
+            boardingNumbers = Arrays.copyOf(boardingNumbers, capacity);
+            boardingTransfers = Arrays.copyOf(boardingTransfers, capacity);
+            boardingExits = Arrays.copyOf(boardingExits, capacity);
+            boardingParents = Arrays.copyOf(boardingParents, capacity);
+        }
+        int boarding = boardingsCount++;
+        boardingRuns[boarding] = run;
+        boardingNumbers[boarding] = number;
+        boardingTransfers[boarding] = transfers;
+        boardingExits[boarding] = exit;
+        boardingParents[boarding] = parent;
+        if (runBoardings[run] == NONE) {
+            if (touchedRunsCount == touchedRuns.length) {
+                touchedRuns = Arrays.copyOf(touchedRuns, touchedRunsCount * 2);
+            }
+            touchedRuns[touchedRunsCount++] = run;
+        }
+        runBoardings[run] = boarding;
+        return boarding;
+    }
+
+    private void touchLabel(int label) {
+        if (touchedLabelsCount == touchedLabels.length) {
+            touchedLabels = Arrays.copyOf(touchedLabels, touchedLabelsCount * 2);
+        }
+        touchedLabels[touchedLabelsCount++] = label;
+    }
+
+    private void reset() {
+        for (int i = 0; i < touchedLabelsCount; ++i) {
+            labels[touchedLabels[i]] = INFINITY;
+        }
+        touchedLabelsCount = 0;
+        for (int i = 0; i < touchedRunsCount; ++i) {
+            runBoardings[touchedRuns[i]] = NONE;
+        }
+        touchedRunsCount = 0;
+        boardingsCount = 0;
+    }
+}
@@ -0,0 +1,673 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Point;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.TransportRun;
+import com.khovanskiy.model.Waypoint;
+import com.khovanskiy.util.ChunkedHashMap;
+import com.khovanskiy.util.ChunkedList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Таблица элементарных перегонов (соседних остановок рейсов), отсортированная по времени отправления.
+ * Перегоны хранятся блоками не больше {@link #BLOCK_SIZE} перегонов, внутри блока - по столбцам в примитивных массивах.
+ * Таблица неизменяема: добавление, удаление рейсов и изменение их времени создают новую таблицу, в которой
+ * перестраиваются только блоки с перегонами этих рейсов, а остальные блоки, рейсы и точки разделяются
+ * с текущей таблицей. Поэтому стоимость изменения зависит от количества измененных рейсов, а не от размера таблицы.
+ * <p>
+ * Номера удаленных рейсов освобождаются и достаются рейсам, добавленным следующими изменениями,
+ * поэтому количество номеров не превосходит наибольшего количества рейсов в таблице.
+ *
+ * @author victor
+ */
+class ConnectionTable {
+    static final ConnectionTable EMPTY = new ConnectionTable();
+
+    /**
+     * Наибольшее количество перегонов в блоке: выросший блок делится на блоки вдвое меньшего размера
+     */
+    static final int BLOCK_SIZE = 4096;
+
+    /**
+     * Порядок рейсов для событий с равным временем. Он не зависит от номеров рейсов и от порядка их добавления,
+     * поэтому расписание, измененное по частям, совпадает с расписанием, построенным заново
+     */
+    static final Comparator<Object> RUN_ORDER = Comparator.comparing(Object::toString);
+
+    /**
+     * Блоки перегонов по порядку отправления. Перегоны с равным временем отправления могут лежать в соседних блоках.
+     */
+    private final Columns[] blocks;
+    /**
+     * Время отправления первого перегона каждого блока
+     */
+    private final long[] blockStarts;
+
+    /**
+     * Рейсы по номерам; null для рейсов снимка, которые читаются из {@code loadedRuns}
+     */
+    private final ChunkedList<TransportRun<?, ?, ?>> runModels;
+    private final List<TransportRun> loadedRuns;
+    private final ChunkedHashMap<Ref, Integer> runIds;
+    /**
+     * Номера точек остановок рейсов по порядковым номерам, -1 для промежуточных остановок без стоянки;
+     * null для свободных номеров
+     */
+    private final ChunkedList<int[]> runPoints;
+    /**
+     * Свободные номера удаленных рейсов
+     */
+    private final FreeIds freeIds;
+    /**
+     * Точки по номерам
+     */
+    private final ChunkedList<Ref<? extends Point>> points;
+    private final ChunkedHashMap<Ref<? extends Point>, Integer> pointIds;
+
+    private ConnectionTable() {
+        this(new Columns[0], ChunkedList.empty(), new ArrayList<>(), ChunkedHashMap.empty(), ChunkedList.empty(), null,
+                ChunkedList.empty(), ChunkedHashMap.empty());
+    }
+
+    private ConnectionTable(Columns[] blocks, ChunkedList<TransportRun<?, ?, ?>> runModels, List<TransportRun> loadedRuns,
+                            ChunkedHashMap<Ref, Integer> runIds, ChunkedList<int[]> runPoints, FreeIds freeIds,
+                            ChunkedList<Ref<? extends Point>> points, ChunkedHashMap<Ref<? extends Point>, Integer> pointIds) {
+        this.blocks = blocks;
+        this.blockStarts = new long[blocks.length];
+        for (int b = 0; b < blocks.length; ++b) {
+            blockStarts[b] = blocks[b].departures[0];
+        }
+        this.runModels = runModels;
+        this.loadedRuns = loadedRuns;
+        this.runIds = runIds;
+        this.runPoints = runPoints;
+        this.freeIds = freeIds;
+        this.points = points;
+        this.pointIds = pointIds;
+    }
+
+    /**
+     * Построение новой таблицы без рейсов {@code removed}, дополненной перегонами рейсов {@code added}.
+     * Новая версия рейса из {@code removed} сохраняет его номер, номера остальных удаленных рейсов освобождаются.
+     * Перегоны с равным временем отправления сохраняют порядок: старые перегоны идут первыми,
+     * новые - в порядке рейсов {@code added}.
+     *
+     * @param removed номера удаляемых рейсов и старых версий обновляемых рейсов
+     * @param added   новые рейсы и новые версии рейсов
+     * @return новая таблица
+     */
+    ConnectionTable update(Collection<Integer> removed, List<? extends TransportRun> added) {
+        ChunkedList.Builder<TransportRun<?, ?, ?>> newRunModels = runModels.builder();
+        ChunkedHashMap.Builder<Ref, Integer> newRunIds = runIds.builder();
+        ChunkedList.Builder<int[]> newRunPoints = runPoints.builder();
+        ChunkedList.Builder<Ref<? extends Point>> newPoints = points.builder();
+        ChunkedHashMap.Builder<Ref<? extends Point>, Integer> newPointIds = pointIds.builder();
+
+        // блоки, из которых убираются перегоны удаленных рейсов
+        TreeSet<Integer> touched = new TreeSet<>();
+        Map<Ref, Integer> released = new LinkedHashMap<>();
+        RunBounds bounds = new RunBounds(removed.size());
+        for (int runId : removed) {
+            TransportRun<?, ?, ?> run = run(runId);
+            released.put(run.getId(), runId);
+            bounds.put(runId, 0);
+            newRunIds.remove(run.getId());
+            newRunModels.set(runId, null);
+            newRunPoints.set(runId, null);
+            List<? extends Waypoint<?, ?>> waypoints = run.getWaypoints();
+            int[] numbers = stopNumbers(waypoints);
+            for (int k = 0; k + 1 < numbers.length; ++k) {
+                touchBlocks(waypoints.get(numbers[k]).getDeparture().getEpochSecond(), touched);
+            }
+        }
+
+        int count = 0;
+        for (TransportRun<?, ?, ?> run : added) {
+            count += Math.max(0, stopNumbers(run.getWaypoints()).length - 1);
+        }
+        Columns columns = new Columns(count);
+        FreeIds free = freeIds;
+        for (TransportRun<?, ?, ?> run : added) {
+            Integer runId = released.remove(run.getId());
+            if (runId == null && free != null) {
+                runId = free.runId;
+                free = free.next;
+            } else if (runId == null) {
+                runId = newRunModels.add(null);
+                newRunPoints.add(null);
+            }
+            newRunModels.set(runId, run);
+            newRunIds.put(run.getId(), runId);
+            List<? extends Waypoint<?, ?>> waypoints = run.getWaypoints();
+            int[] numbers = stopNumbers(waypoints);
+            int[] stopPoints = new int[waypoints.size()];
+            Arrays.fill(stopPoints, -1);
+            for (int number : numbers) {
+                stopPoints[number] = pointId(waypoints.get(number).getPoint(), newPoints, newPointIds);
+            }
+            newRunPoints.set(runId, stopPoints);
+            for (int k = 0; k + 1 < numbers.length; ++k) {
+                Waypoint<?, ?> from = waypoints.get(numbers[k]);
+                Waypoint<?, ?> to = waypoints.get(numbers[k + 1]);
+                columns.add(from.getDeparture().getEpochSecond(), to.getArrival().getEpochSecond(), runId,
+                        numbers[k], numbers[k + 1],
+                        stopPoints[numbers[k]], stopPoints[numbers[k + 1]]);
+            }
+        }
+        for (int runId : released.values()) {
+            free = new FreeIds(runId, free);
+        }
+        columns.sort();
+
+        Columns[] newBlocks = rebuild(touched, insertions(columns, touched), bounds);
+        return new ConnectionTable(newBlocks, newRunModels.build(), loadedRuns, newRunIds.build(), newRunPoints.build(),
+                free, newPoints.build(), newPointIds.build());
+    }
+
+    /**
+     * Построение новой таблицы, в которой рейсы заменены новыми версиями с измененным временем остановок.
+     * Время остановок рейса изменяется только начиная с порядкового номера {@code numbers.get(runId)},
+     * поэтому перемещаются только перегоны, прибывающие на эти остановки, и перестраиваются только блоки,
+     * в которых они лежат и в которые попадают. Номера рейсов сохраняются.
+     *
+     * @param shifted новые версии рейсов с той же последовательностью остановок
+     * @param numbers первый порядковый номер остановки с измененным временем по номерам рейсов
+     * @return новая таблица
+     */
+    ConnectionTable withShiftedRuns(List<? extends TransportRun> shifted, Map<Integer, Integer> numbers) {
+        ChunkedList.Builder<TransportRun<?, ?, ?>> newRunModels = runModels.builder();
+        RunBounds bounds = new RunBounds(numbers.size());
+        // блоки, в которых лежат перемещаемые перегоны, находятся по старому времени отправления
+        TreeSet<Integer> touched = new TreeSet<>();
+        for (TransportRun<?, ?, ?> run : shifted) {
+            int runId = runId(run.getId());
+            int first = numbers.get(runId);
+            bounds.put(runId, first);
+            List<? extends Waypoint<?, ?>> waypoints = run(runId).getWaypoints();
+            int[] stops = stopNumbers(waypoints);
+            for (int k = 0; k + 1 < stops.length; ++k) {
+                if (stops[k + 1] >= first) {
+                    touchBlocks(waypoints.get(stops[k]).getDeparture().getEpochSecond(), touched);
+                }
+            }
+            newRunModels.set(runId, run);
+        }
+        // перегоны собираются в порядке таблицы, чтобы перегоны с равным новым временем сохранили свой порядок
+        Columns columns = new Columns(16);
+        for (int b : touched) {
+            Columns block = blocks[b];
+            for (int i = 0; i < block.size; ++i) {
+                if (block.toNumbers[i] >= bounds.get(block.runs[i])) {
+                    List<? extends Waypoint<?, ?>> waypoints = newRunModels.get(block.runs[i]).getWaypoints();
+                    columns.add(waypoints.get(block.fromNumbers[i]).getDeparture().getEpochSecond(),
+                            waypoints.get(block.toNumbers[i]).getArrival().getEpochSecond(),
+                            block.runs[i], block.fromNumbers[i], block.toNumbers[i], block.fromPoints[i], block.toPoints[i]);
+                }
+            }
+        }
+        columns.sort();
+
+        Columns[] newBlocks = rebuild(touched, insertions(columns, touched), bounds);
+        return new ConnectionTable(newBlocks, newRunModels.build(), loadedRuns, runIds, runPoints, freeIds, points, pointIds);
+    }
+
+    /**
+     * Отметка блоков, в которых может лежать перегон, отправляющийся в {@code departure}
+     */
+    private void touchBlocks(long departure, Collection<Integer> touched) {
+        for (int b = firstBlock(departure), last = upperBlock(departure); b < last; ++b) {
+            touched.add(b);
+        }
+    }
+
+    /**
+     * Распределение отсортированных перегонов по блокам: перегон попадает в последний блок, начинающийся
+     * не позже его отправления, поэтому он идет после старых перегонов с тем же временем отправления
+     *
+     * @param touched дополняется блоками, в которые попадают перегоны
+     * @return перегоны по номерам блоков
+     */
+    private Map<Integer, Columns> insertions(Columns columns, Collection<Integer> touched) {
+        Map<Integer, Columns> insertions = new TreeMap<>();
+        for (int i = 0; i < columns.size; ++i) {
+            int block = Math.max(0, upperBlock(columns.departures[i]) - 1);
+            insertions.computeIfAbsent(block, key -> new Columns(16)).add(columns, i);
+            touched.add(block);
+        }
+        return insertions;
+    }
+
+    /**
+     * Перестроение блоков: перегоны рейсов, прибывающие на остановку с порядковым номером не меньше границы рейса,
+     * убираются, новые перегоны вливаются после старых с тем же временем отправления. Переполненный блок делится,
+     * пустой - исключается. Остальные блоки разделяются с текущей таблицей.
+     *
+     * @param touched    перестраиваемые блоки
+     * @param insertions новые перегоны по номерам блоков
+     * @param bounds     границы сохраняемых перегонов по номерам рейсов
+     * @return блоки новой таблицы
+     */
+    private Columns[] rebuild(TreeSet<Integer> touched, Map<Integer, Columns> insertions, RunBounds bounds) {
+        List<Columns> newBlocks = new ArrayList<>(blocks.length + 1);
+        int next = 0;
+        for (int b : touched) {
+            newBlocks.addAll(Arrays.asList(blocks).subList(next, Math.min(b, blocks.length)));
+            Columns block = b < blocks.length ? blocks[b] : Columns.EMPTY;
+            Columns merged = block.merge(insertions.getOrDefault(b, Columns.EMPTY), bounds);
+            for (int from = 0; from < merged.size; from += BLOCK_SIZE / 2) {
+                if (merged.size <= BLOCK_SIZE) {
+                    newBlocks.add(merged);
+                    break;
+                }
+                newBlocks.add(merged.range(from, Math.min(merged.size, from + BLOCK_SIZE / 2)));
+            }
+            next = b + 1;
+        }
+        if (next < blocks.length) {
+            newBlocks.addAll(Arrays.asList(blocks).subList(next, blocks.length));
+        }
+        return newBlocks.toArray(new Columns[0]);
+    }
+
+    /**
+     * Запись таблицы в снимок. Точки таблицы идут первыми в словаре точек снимка и сохраняют свои номера.
+     */
+    void write(Snapshot.Writer out) throws IOException {
+        out.writeInt(blocks.length);
+        for (Columns block : blocks) {
+            out.writeLongs(block.departures, block.size);
+            out.writeLongs(block.arrivals, block.size);
+            out.writeInts(block.runs, block.size);
+            out.writeInts(block.fromNumbers, block.size);
+            out.writeInts(block.toNumbers, block.size);
+            out.writeInts(block.fromPoints, block.size);
+            out.writeInts(block.toPoints, block.size);
+        }
+        out.writeInt(points.size());
+        out.writeInt(runPoints.size());
+        for (int runId = 0; runId < runPoints.size(); ++runId) {
+            out.writeNullableInts(runPoints.get(runId));
+        }
+    }
+
+    /**
+     * Чтение таблицы из снимка
+     *
+     * @param loadedRuns рейсы снимка по номерам, null для свободных номеров
+     * @param runIds     номера рейсов
+     */
+    static ConnectionTable read(Snapshot.Reader in, List<TransportRun> loadedRuns, ChunkedHashMap<Ref, Integer> runIds) {
+        Columns[] blocks = new Columns[in.readInt()];
+        for (int b = 0; b < blocks.length; ++b) {
+            long[] departures = in.readLongs();
+            blocks[b] = new Columns(departures, in.readLongs(), in.readInts(), in.readInts(), in.readInts(),
+                    in.readInts(), in.readInts(), departures.length);
+        }
+        int pointsCount = in.readInt();
+        ChunkedList.Builder<Ref<? extends Point>> points = ChunkedList.<Ref<? extends Point>>empty().builder();
+        ChunkedHashMap.Builder<Ref<? extends Point>, Integer> pointIds = ChunkedHashMap.<Ref<? extends Point>, Integer>empty().builder();
+        for (int pointId = 0; pointId < pointsCount; ++pointId) {
+            points.add(in.point(pointId));
+            pointIds.put(in.point(pointId), pointId);
+        }
+        int runsCount = in.readInt();
+        ChunkedList.Builder<TransportRun<?, ?, ?>> runModels = ChunkedList.<TransportRun<?, ?, ?>>empty().builder();
+        ChunkedList.Builder<int[]> runPoints = ChunkedList.<int[]>empty().builder();
+        FreeIds freeIds = null;
+        for (int runId = 0; runId < runsCount; ++runId) {
+            runModels.add(null);
+            int[] stopPoints = in.readNullableInts();
+            runPoints.add(stopPoints);
+            if (stopPoints == null) {
+                freeIds = new FreeIds(runId, freeIds);
+            }
+        }
+        return new ConnectionTable(blocks, runModels.build(), loadedRuns, runIds, runPoints.build(), freeIds,
+                points.build(), pointIds.build());
+    }
+
+    int blocksCount() {
+        return blocks.length;
+    }
+
+    Columns block(int block) {
+        return blocks[block];
+    }
+
+    /**
+     * @return первый блок, в котором могут быть перегоны, отправляющиеся не раньше {@code departure}:
+     * последний блок, начинающийся раньше, или первый блок
+     */
+    int firstBlock(long departure) {
+        int low = 0;
+        int high = blocks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blockStarts[mid] < departure) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+
+    /**
+     * @return количество блоков, начинающихся не позже {@code departure}
+     */
+    private int upperBlock(long departure) {
+        int low = 0;
+        int high = blocks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blockStarts[mid] <= departure) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    TransportRun<?, ?, ?> run(int runId) {
+        TransportRun<?, ?, ?> run = runModels.get(runId);
+        return run != null ? run : loadedRuns.get(runId);
+    }
+
+    int runId(Ref<?> ref) {
+        Integer runId = runIds.get(ref);
+        return runId == null ? -1 : runId;
+    }
+
+    /**
+     * @return номера точек остановок рейса по порядковым номерам, -1 для промежуточных остановок без стоянки
+     */
+    int[] runPoints(int runId) {
+        return runPoints.get(runId);
+    }
+
+    /**
+     * @return свободен ли номер: рейс с этим номером удален, а номер еще не занят новым рейсом
+     */
+    boolean isFree(int runId) {
+        return runPoints.get(runId) == null;
+    }
+
+    /**
+     * @return количество номеров рейсов, включая свободные
+     */
+    int runsCount() {
+        return runPoints.size();
+    }
+
+    Ref<? extends Point> point(int pointId) {
+        return points.get(pointId);
+    }
+
+    int pointId(Ref<? extends Point> ref) {
+        Integer pointId = pointIds.get(ref);
+        return pointId == null ? -1 : pointId;
+    }
+
+    int pointsCount() {
+        return points.size();
+    }
+
+    private static int pointId(Ref<? extends Point> ref, ChunkedList.Builder<Ref<? extends Point>> points,
+                               ChunkedHashMap.Builder<Ref<? extends Point>, Integer> pointIds) {
+        Integer id = pointIds.get(ref);
+        if (id == null) {
+            id = points.add(ref);
+            pointIds.put(ref, id);
+        }
+        return id;
+    }
+
+    /**
+     * Порядковые номера остановок рейса, которые попадают в расписание (промежуточные остановки без стоянки пропускаются)
+     */
+    static int[] stopNumbers(List<? extends Waypoint> waypoints) {
+        int[] numbers = new int[waypoints.size()];
+        int count = 0;
+        for (int i = 0; i < waypoints.size(); ++i) {
+            if (i != 0 && i != waypoints.size() - 1 && waypoints.get(i).isNullStop()) {
+                continue;
+            }
+            numbers[count++] = i;
+        }
+        return Arrays.copyOf(numbers, count);
+    }
+
+    /**
+     * Свободные номера рейсов: неизменяемый стек, разделяемый версиями таблицы
+     */
+    private static final class FreeIds {
+        final int runId;
+        final FreeIds next;
+
+        FreeIds(int runId, FreeIds next) {
+            this.runId = runId;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Границы сохраняемых перегонов по номерам рейсов: перегон рейса сохраняется, только если прибывает
+     * на остановку с порядковым номером меньше границы. Рейсы без границы сохраняются целиком.
+     */
+    private static final class RunBounds {
+        private final Map<Integer, Integer> numbers;
+
+        RunBounds(int expectedSize) {
+            this.numbers = new HashMap<>(Math.max(16, expectedSize * 2));
+        }
+
+        void put(int runId, int number) {
+            numbers.merge(runId, number, Math::min);
+        }
+
+        int get(int runId) {
+            if (numbers.isEmpty()) {
+                return Integer.MAX_VALUE;
+            }
+            Integer number = numbers.get(runId);
+            return number == null ? Integer.MAX_VALUE : number;
+        }
+    }
+
+    /**
+     * Столбцы перегонов: блок таблицы или перегоны в процессе построения. Опубликованный блок не изменяется.
+     */
+    static final class Columns {
+        static final Columns EMPTY = new Columns(0);
+
+        /**
+         * Время отправления, секунды от начала эпохи
+         */
+        long[] departures;
+        /**
+         * Время прибытия, секунды от начала эпохи
+         */
+        long[] arrivals;
+        /**
+         * Номер рейса
+         */
+        int[] runs;
+        /**
+         * Порядковые номера остановок отправления и прибытия на рейсе
+         */
+        int[] fromNumbers;
+        int[] toNumbers;
+        /**
+         * Номера точек отправления и прибытия
+         */
+        int[] fromPoints;
+        int[] toPoints;
+        int size;
+
+        Columns(int capacity) {
+            departures = new long[capacity];
+            arrivals = new long[capacity];
+            runs = new int[capacity];
+            fromNumbers = new int[capacity];
+            toNumbers = new int[capacity];
+            fromPoints = new int[capacity];
+            toPoints = new int[capacity];
+        }
+
+        private Columns(long[] departures, long[] arrivals, int[] runs, int[] fromNumbers, int[] toNumbers,
+                        int[] fromPoints, int[] toPoints, int size) {
+            this.departures = departures;
+            this.arrivals = arrivals;
+            this.runs = runs;
+            this.fromNumbers = fromNumbers;
+            this.toNumbers = toNumbers;
+            this.fromPoints = fromPoints;
+            this.toPoints = toPoints;
+            this.size = size;
+        }
+
+        void add(long departure, long arrival, int run, int fromNumber, int toNumber, int fromPoint, int toPoint) {
+            if (size == departures.length) {
+                int capacity = Math.max(16, size * 2);
+                departures = Arrays.copyOf(departures, capacity);
+                arrivals = Arrays.copyOf(arrivals, capacity);
+                runs = Arrays.copyOf(runs, capacity);
+                fromNumbers = Arrays.copyOf(fromNumbers, capacity);
+                toNumbers = Arrays.copyOf(toNumbers, capacity);
+                fromPoints = Arrays.copyOf(fromPoints, capacity);
+                toPoints = Arrays.copyOf(toPoints, capacity);
+            }
+            departures[size] = departure;
+            arrivals[size] = arrival;
+            runs[size] = run;
+            fromNumbers[size] = fromNumber;
+            toNumbers[size] = toNumber;
+            fromPoints[size] = fromPoint;
+            toPoints[size] = toPoint;
+            ++size;
+        }
+
+        private void add(Columns columns, int i) {
+            add(columns.departures[i], columns.arrivals[i], columns.runs[i], columns.fromNumbers[i], columns.toNumbers[i],
+                    columns.fromPoints[i], columns.toPoints[i]);
+        }
+
+        /**
+         * @return номер первого перегона, отправляющегося не раньше {@code departure}
+         */
+        int lowerBound(long departure) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (departures[mid] < departure) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Слияние с отсортированными перегонами {@code added}, при равенстве старые перегоны идут первыми
+         *
+         * @param bounds границы сохраняемых перегонов этих столбцов
+         */
+        private Columns merge(Columns added, RunBounds bounds) {
+            Columns merged = new Columns(size + added.size);
+            int i = 0;
+            int j = 0;
+            while (i < size || j < added.size) {
+                if (j == added.size || (i < size && departures[i] <= added.departures[j])) {
+                    if (toNumbers[i] < bounds.get(runs[i])) {
+                        merged.add(this, i);
+                    }
+                    ++i;
+                } else {
+                    merged.add(added, j);
+                    ++j;
+                }
+            }
+            return merged;
+        }
+
+        /**
+         * @return копия перегонов {@code [from, to)}
+         */
+        private Columns range(int from, int to) {
+            return new Columns(Arrays.copyOfRange(departures, from, to), Arrays.copyOfRange(arrivals, from, to),
+                    Arrays.copyOfRange(runs, from, to), Arrays.copyOfRange(fromNumbers, from, to),
+                    Arrays.copyOfRange(toNumbers, from, to), Arrays.copyOfRange(fromPoints, from, to),
+                    Arrays.copyOfRange(toPoints, from, to), to - from);
+        }
+
+        /**
+         * Устойчивая сортировка по времени отправления
+         */
+        void sort() {
+            int[] order = new int[size];
+            for (int i = 0; i < size; ++i) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[size], 0, size);
+            departures = permute(departures, order);
+            arrivals = permute(arrivals, order);
+            runs = permute(runs, order);
+            fromNumbers = permute(fromNumbers, order);
+            toNumbers = permute(toNumbers, order);
+            fromPoints = permute(fromPoints, order);
+            toPoints = permute(toPoints, order);
+        }
+
+        private void mergeSort(int[] order, int[] buffer, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            mergeSort(order, buffer, from, mid);
+            mergeSort(order, buffer, mid, to);
+            if (departures[order[mid - 1]] <= departures[order[mid]]) {
+                return;
+            }
+            System.arraycopy(order, from, buffer, from, to - from);
+            int i = from;
+            int j = mid;
+            for (int k = from; k < to; ++k) {
+                if (j == to || (i < mid && departures[buffer[i]] <= departures[buffer[j]])) {
+                    order[k] = buffer[i++];
+                } else {
+                    order[k] = buffer[j++];
+                }
+            }
+        }
+
+        private static long[] permute(long[] values, int[] order) {
+            long[] result = new long[order.length];
+            for (int i = 0; i < order.length; ++i) {
+                result[i] = values[order[i]];
+            }
+            return result;
+        }
+
+        private static int[] permute(int[] values, int[] order) {
+            int[] result = new int[order.length];
+            for (int i = 0; i < order.length; ++i) {
+                result[i] = values[order[i]];
+            }
+            return result;
+        }
+    }
+}
@@ -2,10 +2,12 @@ package com.khovanskiy.runtime;
 
 import com.khovanskiy.model.Path;
 import com.khovanskiy.model.runtime.RouteBuilderFilter;
+import lombok.EqualsAndHashCode;
 
 /**
  * @author victor
  */
+@EqualsAndHashCode
 public class DefaultRouteBuilderFilter implements RouteBuilderFilter<Path> {
 
     @Override
@@ -0,0 +1,112 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Carriage;
+import com.khovanskiy.model.CarriageType;
+import com.khovanskiy.model.RailwayCarrier;
+import com.khovanskiy.model.RailwayRun;
+import com.khovanskiy.model.RailwayWaypoint;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.SeatAttribute;
+import com.khovanskiy.model.TransportRun;
+import com.khovanskiy.model.Waypoint;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Модель тарифа. Стоимость проезда по железнодорожному рейсу пропорциональна пройденному расстоянию,
+ * ставка за километр определяется самым дешевым типом вагона рейса и коэффициентом перевозчика.
+ * Для рейсов без расстояний стоимость пропорциональна времени в пути.
+ * Все стоимости в копейках.
+ *
+ * @author victor
+ */
+public class FareModel {
+    /**
+     * Ставка за километр для рейсов без информации о вагонах
+     */
+    private static final long DEFAULT_RATE_PER_KM = 150;
+    /**
+     * Ставка за минуту для рейсов без расстояний
+     */
+    private static final long DEFAULT_RATE_PER_MINUTE = 100;
+
+    private final Map<SeatAttribute.CarriageType, Long> ratesPerKm = new EnumMap<>(SeatAttribute.CarriageType.class);
+    private final Map<Ref<RailwayCarrier>, Double> carrierFactors = new HashMap<>();
+
+    public FareModel() {
+        ratesPerKm.put(SeatAttribute.CarriageType.LOCAL, 100L);
+        ratesPerKm.put(SeatAttribute.CarriageType.OPEN_PLAN, 150L);
+        ratesPerKm.put(SeatAttribute.CarriageType.COUPE, 250L);
+        ratesPerKm.put(SeatAttribute.CarriageType.HIGH_COMFORT, 500L);
+    }
+
+    public FareModel withRatePerKm(SeatAttribute.CarriageType type, long rate) {
+        ratesPerKm.put(type, rate);
+        return this;
+    }
+
+    public FareModel withCarrierFactor(Ref<RailwayCarrier> carrier, double factor) {
+        carrierFactors.put(carrier, factor);
+        return this;
+    }
+
+    /**
+     * Стоимость проезда от начала рейса до каждой остановки
+     *
+     * @param run рейс
+     * @return префиксные суммы по порядковым номерам остановок
+     */
+    @SuppressWarnings("unchecked")
+    public long[] prefixSums(TransportRun<?, ?, ?> run) {
+        List<? extends Waypoint<?, ?>> waypoints = run.getWaypoints();
+        long[] prefix = new long[waypoints.size()];
+        if (run instanceof RailwayRun) {
+            RailwayRun<?> railwayRun = (RailwayRun) run;
+            double rate = ratePerKm(railwayRun) * carrierFactors.getOrDefault(railwayRun.getCarrierId(), 1.0);
+            for (int i = 1; i < prefix.length; ++i) {
+                // расстояние в маршрутной точке считается от начала движения
+                double distance = ((RailwayWaypoint) waypoints.get(i)).getDistance() - ((RailwayWaypoint) waypoints.get(i - 1)).getDistance();
+                prefix[i] = prefix[i - 1] + Math.round(Math.max(0, distance) * rate);
+            }
+        } else {
+            for (int i = 1; i < prefix.length; ++i) {
+                long minutes = Duration.between(waypoints.get(i - 1).getDeparture(), waypoints.get(i).getArrival()).toMinutes();
+                prefix[i] = prefix[i - 1] + Math.max(0, minutes) * DEFAULT_RATE_PER_MINUTE;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * @return зависит ли стоимость проезда по рейсу от времени остановок; железнодорожный тариф зависит только от расстояния
+     */
+    public boolean dependsOnTime(TransportRun<?, ?, ?> run) {
+        return !(run instanceof RailwayRun);
+    }
+
+    /**
+     * @return ставка самого дешевого типа вагона рейса
+     */
+    private long ratePerKm(RailwayRun<?> run) {
+        List<Carriage> carriages = run.getCarriages();
+        long rate = Long.MAX_VALUE;
+        if (carriages != null) {
+            for (Carriage<?> carriage : carriages) {
+                CarriageType type = carriage.getMainType();
+                if (type == null) {
+                    continue;
+                }
+                for (Map.Entry<SeatAttribute.CarriageType, Long> entry : ratesPerKm.entrySet()) {
+                    if (entry.getKey().name().equals(type.getName())) {
+                        rate = Math.min(rate, entry.getValue());
+                    }
+                }
+            }
+        }
+        return rate == Long.MAX_VALUE ? DEFAULT_RATE_PER_KM : rate;
+    }
+}
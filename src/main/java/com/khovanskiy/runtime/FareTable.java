@@ -0,0 +1,122 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.ForwardSegment;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.TransportRun;
+import com.khovanskiy.util.ChunkedList;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Предвычисленные стоимости проезда: для каждого рейса хранятся префиксные суммы тарифа,
+ * поэтому стоимость сегмента вычисляется за O(1).
+ * Таблица неизменяема и хранит суммы по номерам рейсов таблицы перегонов, изменение рейсов создает новую таблицу,
+ * разделяющую с текущей суммы неизмененных рейсов.
+ *
+ * @author victor
+ */
+class FareTable {
+    private final FareModel model;
+    private final ConnectionTable table;
+    /**
+     * Префиксные суммы по номерам рейсов
+     */
+    private final ChunkedList<long[]> prefixes;
+
+    FareTable(FareModel model) {
+        this(model, ConnectionTable.EMPTY, ChunkedList.empty());
+    }
+
+    private FareTable(FareModel model, ConnectionTable table, ChunkedList<long[]> prefixes) {
+        this.model = model;
+        this.table = table;
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Построение новой таблицы без тарифов рейсов {@code removed}, дополненной тарифами рейсов {@code runs}
+     *
+     * @param table   таблица перегонов, уже содержащая рейсы {@code runs}
+     * @param removed номера удаленных рейсов
+     * @return новая таблица
+     */
+    FareTable withRuns(ConnectionTable table, Collection<Integer> removed, List<? extends TransportRun> runs) {
+        ChunkedList.Builder<long[]> newPrefixes = prefixes.builder();
+        while (newPrefixes.size() < table.runsCount()) {
+            newPrefixes.add(null);
+        }
+        for (int runId : removed) {
+            newPrefixes.set(runId, null);
+        }
+        List<long[]> sums = (runs.size() > 1 ? runs.parallelStream() : runs.stream())
+                .map(model::prefixSums)
+                .collect(Collectors.toList());
+        for (int i = 0; i < runs.size(); ++i) {
+            newPrefixes.set(table.runId(runs.get(i).getId()), sums.get(i));
+        }
+        return new FareTable(model, table, newPrefixes.build());
+    }
+
+    /**
+     * Построение новой таблицы для рейсов {@code runs} с измененным временем остановок: тарифы, не зависящие
+     * от времени, сохраняются, поэтому задержка не пересчитывает их и не теряет данных, которых нет в новой версии рейса
+     *
+     * @param table таблица перегонов с новыми версиями рейсов {@code runs}
+     * @return новая таблица
+     */
+    FareTable withShiftedRuns(ConnectionTable table, List<? extends TransportRun> runs) {
+        return withRuns(table, Collections.emptyList(), runs.stream().filter(model::dependsOnTime).collect(Collectors.toList()));
+    }
+
+    /**
+     * Запись префиксных сумм в снимок; модель тарифов в снимок не попадает
+     */
+    void write(Snapshot.Writer out) throws IOException {
+        out.writeInt(prefixes.size());
+        for (int runId = 0; runId < prefixes.size(); ++runId) {
+            out.writeNullableLongs(prefixes.get(runId));
+        }
+    }
+
+    /**
+     * Чтение префиксных сумм из снимка
+     *
+     * @param table таблица перегонов снимка
+     */
+    static FareTable read(Snapshot.Reader in, FareModel model, ConnectionTable table) {
+        int count = in.readInt();
+        ChunkedList.Builder<long[]> prefixes = ChunkedList.<long[]>empty().builder();
+        for (int runId = 0; runId < count; ++runId) {
+            prefixes.add(in.readNullableLongs());
+        }
+        return new FareTable(model, table, prefixes.build());
+    }
+
+    /**
+     * Стоимость проезда по рейсу между остановками
+     *
+     * @param run  рейс
+     * @param from порядковый номер остановки отправления
+     * @param to   порядковый номер остановки прибытия
+     * @return стоимость в копейках
+     */
+    long price(Ref<?> run, int from, int to) {
+        int runId = table.runId(run);
+        if (runId == -1) {
+            return 0;
+        }
+        long[] prefix = prefixes.get(runId);
+        return prefix == null ? 0 : prefix[to] - prefix[from];
+    }
+
+    /**
+     * @return стоимость проезда по сегменту (от посадки до выхода)
+     */
+    long price(ForwardSegment segment) {
+        return price(segment.A().getRef(), segment.A().getNumber(), segment.B().getNumber());
+    }
+}
@@ -0,0 +1,334 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.TransportRun;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал изменений расписания между снимками. Каталог журнала содержит последний снимок расписания
+ * и файл журнала, в конец которого дописываются изменения, примененные после снимка: обновления рейсов
+ * ({@link RouteBuilder#update}) и пакеты задержек ({@link RouteBuilder#delay(Collection)}).
+ * <p>
+ * Изменение записывается до публикации новой версии расписания. Каждая запись хранит номер версии расписания,
+ * к которой она применяется, поэтому при повторе поверх снимка записи, уже вошедшие в снимок, пропускаются.
+ * Запись попадает в файл сразу, а на диск сбрасывается фоновым потоком раз в {@code syncInterval}, даже если
+ * новых записей нет, поэтому при отказе питания теряются изменения не более чем за этот интервал,
+ * а при падении процесса - ни одного.
+ * Оборванная последняя запись (неполная или с неверной контрольной суммой) при повторе отбрасывается.
+ * <p>
+ * Формат записи: длина, контрольная сумма CRC32, версия расписания, тип записи и тело,
+ * закодированное как запись снимка ({@link Snapshot#encodeRecord}).
+ *
+ * @author victor
+ */
+@Slf4j
+public class Journal implements Closeable {
+    private static final String SNAPSHOT_FILE = "timetable.snapshot";
+    private static final String JOURNAL_FILE = "timetable.journal";
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    /**
+     * Длина и контрольная сумма
+     */
+    private static final int FRAME_SIZE = 8;
+
+    /**
+     * Типы записей
+     */
+    private static final byte UPDATE = 1;
+    private static final byte DELAY = 2;
+
+    private final Path directory;
+    private final long syncInterval;
+    private final long compactionSize;
+    private final FileChannel channel;
+    /**
+     * Фоновый сброс журнала на диск или null, если журнал сбрасывается после каждой записи
+     */
+    private final ScheduledExecutorService flusher;
+    private volatile long lastSync = System.nanoTime();
+    /**
+     * Есть записи, еще не сброшенные на диск; изменяется под блокировкой журнала
+     */
+    private boolean unsynced;
+
+    /**
+     * @param directory      каталог снимка и журнала
+     * @param syncInterval   наибольший интервал между сбросами журнала на диск, миллисекунды; 0 - сброс после каждой записи
+     * @param compactionSize размер журнала, при превышении которого изменения сжимаются в новый снимок, байты
+     */
+    public Journal(Path directory, long syncInterval, long compactionSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.syncInterval = TimeUnit.MILLISECONDS.toNanos(syncInterval);
+        this.compactionSize = compactionSize;
+        this.channel = FileChannel.open(directory.resolve(JOURNAL_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        if (syncInterval > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-sync " + directory);
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::syncQuietly, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * @return файл последнего снимка расписания
+     */
+    Path snapshotFile() {
+        return directory.resolve(SNAPSHOT_FILE);
+    }
+
+    /**
+     * Запись обновления рейсов
+     *
+     * @param version версия расписания, к которой применяется обновление
+     * @param deleted идентификаторы удаляемых рейсов
+     */
+    void appendUpdate(long version, List<? extends TransportRun> added, List<? extends TransportRun> updated,
+                      Collection<? extends Ref> deleted) throws IOException {
+        append(version, UPDATE, Snapshot.encodeRecord(out -> {
+            for (List<? extends TransportRun> runs : Arrays.asList(added, updated)) {
+                out.writeInt(runs.size());
+                for (TransportRun<?, ?, ?> run : runs) {
+                    out.writeRunWithId(run);
+                }
+            }
+            out.writeInt(deleted.size());
+            for (Ref ref : deleted) {
+                out.writeRef(ref);
+            }
+        }));
+    }
+
+    /**
+     * Запись пакета задержек
+     *
+     * @param version версия расписания, к которой применяются задержки
+     */
+    void appendDelays(long version, Collection<RouteBuilder.Delay> delays) throws IOException {
+        append(version, DELAY, Snapshot.encodeRecord(out -> {
+            out.writeInt(delays.size());
+            for (RouteBuilder.Delay delay : delays) {
+                out.writeRef(delay.getRun());
+                out.writeInt(delay.getNumber());
+                out.writeLong(delay.getDelay().getSeconds());
+                out.writeInt(delay.getDelay().getNano());
+            }
+        }));
+    }
+
+    private void append(long version, byte type, ByteBuffer body) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(FRAME_SIZE + 9 + body.remaining()).order(ORDER);
+        record.putInt(9 + body.remaining());
+        record.putInt(0);
+        record.putLong(version);
+        record.put(type);
+        record.put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), FRAME_SIZE, record.position() - FRAME_SIZE);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        synchronized (this) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            unsynced = true;
+        }
+        if (System.nanoTime() - lastSync >= syncInterval) {
+            sync();
+        }
+    }
+
+    /**
+     * Сброс записанных изменений на диск. Сброс выполняется без блокировки журнала, поэтому не задерживает запись
+     * следующих изменений; изменения, записанные во время сброса, сбрасываются следующим вызовом.
+     */
+    public void sync() throws IOException {
+        synchronized (this) {
+            if (!unsynced) {
+                lastSync = System.nanoTime();
+                return;
+            }
+            unsynced = false;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                unsynced = true;
+            }
+            throw e;
+        }
+        lastSync = System.nanoTime();
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            log.error("Journal sync failed", e);
+        }
+    }
+
+    /**
+     * @return пора ли сжать журнал в новый снимок
+     */
+    boolean needsCompaction() throws IOException {
+        return channel.size() > compactionSize;
+    }
+
+    /**
+     * Очистка журнала после записи снимка, включающего все его изменения
+     */
+    synchronized void reset() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+        unsynced = false;
+        lastSync = System.nanoTime();
+    }
+
+    /**
+     * Повтор записей журнала по порядку. Оборванный хвост журнала отбрасывается, чтобы новые записи шли
+     * сразу за последней целой записью.
+     */
+    void replay(Consumer<Entry> consumer) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            ByteBuffer record = read(position, size);
+            if (record == null) {
+                log.warn("Journal is truncated at " + position + " of " + size + " bytes");
+                channel.truncate(position);
+                break;
+            }
+            consumer.accept(decode(record));
+            position += FRAME_SIZE + record.limit();
+        }
+        channel.position(channel.size());
+    }
+
+    /**
+     * Чтение записи, начинающейся в {@code position}. Записи читаются из файла по одной, поэтому размер журнала
+     * не ограничен размером отображения.
+     *
+     * @return запись без длины и контрольной суммы или null, если запись оборвана
+     */
+    private ByteBuffer read(long position, long size) throws IOException {
+        if (size - position < FRAME_SIZE + 9) {
+            return null;
+        }
+        ByteBuffer frame = readFully(position, FRAME_SIZE);
+        int length = frame.getInt(0);
+        if (length < 9 || length > size - position - FRAME_SIZE) {
+            return null;
+        }
+        ByteBuffer record = readFully(position + FRAME_SIZE, length);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, length);
+        return (int) crc.getValue() == frame.getInt(4) ? record : null;
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ORDER);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Journal ended unexpectedly at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Декодирование записи, прочитанной {@link #read}
+     */
+    private static Entry decode(ByteBuffer record) {
+        long version = record.getLong();
+        byte type = record.get();
+        Snapshot.Reader in = Snapshot.decodeRecord(record.slice());
+        Entry entry = new Entry(version);
+        if (type == UPDATE) {
+            for (List<TransportRun<?, ?, ?>> runs : Arrays.asList(entry.added, entry.updated)) {
+                int count = in.readInt();
+                for (int i = 0; i < count; ++i) {
+                    runs.add(in.readRunWithId());
+                }
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                entry.deleted.add(in.readRef());
+            }
+        } else if (type == DELAY) {
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                Ref<? extends TransportRun<?, ?, ?>> run = in.readRef();
+                int number = in.readInt();
+                entry.delays.add(new RouteBuilder.Delay(run, number, Duration.ofSeconds(in.readLong(), in.readInt())));
+            }
+        } else {
+            throw new IllegalStateException("Unknown journal record type " + type);
+        }
+        return entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            // прерывание потока во время сброса закрыло бы канал, поэтому текущий сброс дожидается завершения
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+        channel.close();
+    }
+
+    /**
+     * Запись журнала: обновление рейсов или пакет задержек
+     */
+    static class Entry {
+        /**
+         * Версия расписания, к которой применяется запись
+         */
+        final long version;
+        final List<TransportRun<?, ?, ?>> added = new ArrayList<>();
+        final List<TransportRun<?, ?, ?>> updated = new ArrayList<>();
+        final List<Ref> deleted = new ArrayList<>();
+        final List<RouteBuilder.Delay> delays = new ArrayList<>();
+
+        private Entry(long version) {
+            this.version = version;
+        }
+
+        boolean isDelay() {
+            return !delays.isEmpty();
+        }
+    }
+}
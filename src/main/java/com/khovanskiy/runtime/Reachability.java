@@ -0,0 +1,55 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.Stop;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Результат обратного прохода от конечных точек.
+ * Для каждого рейса и количества оставшихся пересадок хранится номер последней остановки,
+ * выйдя на которой можно добраться до точки прибытия. Сесть на рейс имеет смысл только до этой остановки.
+ *
+ * @author victor
+ */
+class Reachability {
+    private final int maxTransfersCount;
+    /**
+     * Номер последней полезной остановки выхода для каждого количества оставшихся пересадок, 0 - такой остановки нет
+     */
+    private final Map<Ref, int[]> alightings = new HashMap<>();
+
+    Reachability(int maxTransfersCount) {
+        this.maxTransfersCount = maxTransfersCount;
+    }
+
+    /**
+     * Проверка, можно ли добраться до точки прибытия, сев на рейс в данной остановке
+     *
+     * @param stop           остановка посадки
+     * @param transfersCount количество уже сделанных пересадок
+     * @return можно ли добраться до точки прибытия
+     */
+    boolean canReach(Stop<?, ?> stop, int transfersCount) {
+        int[] alighting = alightings.get(stop.getRef());
+        return alighting != null && stop.getNumber() < alighting[maxTransfersCount - transfersCount];
+    }
+
+    /**
+     * Отметить, что с остановки рейса можно добраться до точки прибытия, сделав {@code transfersCount} пересадок
+     *
+     * @param run            рейс
+     * @param number         порядковый номер остановки выхода
+     * @param transfersCount количество оставшихся пересадок
+     * @return предыдущий номер последней остановки выхода для {@code transfersCount} пересадок
+     */
+    int improve(Ref<?> run, int number, int transfersCount) {
+        int[] alighting = alightings.computeIfAbsent(run, ref -> new int[maxTransfersCount + 1]);
+        int previous = alighting[transfersCount];
+        for (int i = transfersCount; i <= maxTransfersCount; ++i) {
+            alighting[i] = Math.max(alighting[i], number);
+        }
+        return previous;
+    }
+}
@@ -7,91 +7,508 @@ import com.khovanskiy.model.runtime.RouteBuilderFilter;
 import com.khovanskiy.model.runtime.RouteBuilderQuery;
 import com.khovanskiy.model.runtime.RouteBuilderResponse;
 import com.khovanskiy.model.runtime.RouteBuilderResponseHandler;
+import com.khovanskiy.model.runtime.SearchEngine;
 import com.khovanskiy.service.Repository;
+import com.khovanskiy.util.ConcurrentCache;
+import com.khovanskiy.util.Deadline;
 import com.khovanskiy.util.InstantInterval;
-import com.khovanskiy.util.LRUCache;
 import com.khovanskiy.util.Now;
 import com.khovanskiy.util.SegmentTree;
 import com.khovanskiy.util.Timeline;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
-import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
 import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author victor
  */
 @Slf4j
 public class RouteBuilder {
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+    private static final ThreadLocal<int[]> LAST_VISITS = ThreadLocal.withInitial(() -> new int[0]);
+
     private final RouteBuilderConfig config;
 
     /**
-     * Кеш запросов текущего RouteBuilder
+     * Кеш запросов текущего RouteBuilder по номеру и параметрам запроса. Поиски, не запрошенные дольше
+     * {@code config.getCacheTtl()}, и самые давние поиски при превышении {@code config.getMaxCacheWeight()} вытесняются
+     */
+    private final ConcurrentCache<SessionKey, Session<?, ?>> requests;
+    /**
+     * Номера, выдаваемые поискам, которые сохранены для запроса без номера
      */
-    private LRUCache<Integer, Algorithm> requests;
+    private final AtomicLong nextRequestId = new AtomicLong();
 
     private final Repository repository;
 
+    /**
+     * Текущая версия расписания. Поиск закрепляет версию в начале запроса, обновления публикуют новую версию
+     */
+    private volatile Timetable timetable;
+
+    /**
+     * Задержки, ожидающие применения
+     */
+    private final Queue<Delay> pendingDelays = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Журнал изменений расписания или null, если изменения не журналируются
+     */
+    private Journal journal;
+
     public RouteBuilder(RouteBuilderConfig config, Repository repository) {
         this.config = config;
         this.repository = repository;
+        this.requests = new ConcurrentCache<>(config.getMaxCacheSize(), config.getMaxCacheWeight(), config.getCacheTtl());
+        this.timetable = new Timetable(config.getMinTransferTime(), config.getMaxTransferTime());
     }
 
-    @SuppressWarnings("unchecked")
-    public void update(List<? extends TransportRun> added, List<? extends TransportRun> updated, List<? extends TransportRun> deleted) {
-        for (TransportRun transportRun : added) {
-            List<? extends Waypoint> waypoints = transportRun.getWaypoints();
-            for (int i = 0; i < waypoints.size(); ++i) {
-                Waypoint w = waypoints.get(i);
-                if (i != 0 && i != waypoints.size() - 1 && w.isNullStop()) {
+    /**
+     * Обновление расписания. Следующая версия расписания строится в стороне от текущей и публикуется одной записью,
+     * поэтому поиски не видят частично примененных изменений. Остановки новых рейсов группируются по страницам
+     * расписания (точка, день) параллельно, и каждая затронутая страница строится заново один раз;
+     * остальные страницы разделяются с текущей версией.
+     * <p>
+     * Старые версии измененных и удаленные рейсы убираются только со своих страниц расписания, из точек
+     * индекса пересадок, в которых они останавливаются, и из блоков таблицы перегонов, в которых они отправляются.
+     * Новая версия рейса сохраняет его номер, номера удаленных рейсов достаются следующим добавленным рейсам.
+     * Сохраненные поиски, которые исследовали эти рейсы, вытесняются из кеша.
+     * <p>
+     * Если открыт журнал ({@link #openJournal}), обновление записывается в журнал до публикации новой версии.
+     */
+    public synchronized void update(List<? extends TransportRun> added, List<? extends TransportRun> updated, List<? extends TransportRun> deleted) {
+        Timetable current = timetable;
+        ConnectionTable table = current.connections;
+        List<TransportRun> removed = new ArrayList<>();
+        List<Integer> removedIds = new ArrayList<>();
+        boolean patternsChanged = !added.isEmpty();
+        for (List<? extends TransportRun> runs : Arrays.asList(updated, deleted)) {
+            for (TransportRun run : runs) {
+                int runId = table.runId(run.getId());
+                if (runId == -1) {
+                    patternsChanged |= runs == updated;
                     continue;
                 }
-                //Schedule schedule;
-                //repository.find(new SchedulePage.Id(w.getPoint().toString(), getDayOfInstant(w.getDeparture()).))
-                /*synchronized (schedules) {
-                    schedule = schedules.computeIfAbsent(w.getPoint(), pointRef -> new Schedule());
-                }
-                synchronized (schedule) {
-                    StopLight stop = new StopLight(i, transportRun.getId());
-                    SchedulePage schedulePage = schedule.computeIfAbsent(getDayOfInstant(w.getDeparture()), instant -> new SchedulePage());
-                */
-                assert w.getDeparture() != null;
-                Ref<SchedulePage> schedulePageId = new SchedulePage.Id(w.getPoint().toString(), getDayOfInstant(w.getDeparture()));
-                SchedulePage schedulePage = repository.find(schedulePageId).orElseGet(() -> {
-                    SchedulePage var = new SchedulePage();
-                    var.setId(schedulePageId);
-                    repository.create(var);
-                    return var;
-                });
-                StopLight stop = new StopLight(i, transportRun.getId());
-                if (i != waypoints.size() - 1) {
-                    schedulePage.getDepartureTimeline().put(w.getDeparture(), stop);
+                removed.add(table.run(runId));
+                removedIds.add(runId);
+                patternsChanged |= runs == updated && !samePoints(table.run(runId), run);
+            }
+        }
+        List<TransportRun> inserted = new ArrayList<>(added);
+        inserted.addAll(updated);
+        Set<Ref> removedRefs = removed.stream().map(TransportRun::getId).collect(Collectors.toSet());
+
+        Map<Ref, Map<Long, SchedulePage>> pages = buildPages(current, removedRefs,
+                removed.parallelStream().flatMap(transportRun -> pageStops(transportRun).stream()),
+                inserted.parallelStream().flatMap(transportRun -> pageStops(transportRun).stream()));
+
+        table = table.update(removedIds, inserted);
+        if (journal != null) {
+            try {
+                journal.appendUpdate(current.version, added, updated, removed.stream().map(TransportRun::getId).collect(Collectors.toList()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        // количество поездок не зависит от времени, поэтому при изменении только времени оценка остается верной
+        timetable = current.next(table, current.transfers.update(table, removedIds, inserted), patternsChanged,
+                current.fares.withRuns(table, removedIds, inserted), pages);
+        if (!removedRefs.isEmpty()) {
+            requests.removeIf(session -> session.touches(removedRefs));
+        }
+        compactJournalIfNeeded();
+        log.info("");
+    }
+
+    /**
+     * Пакетная загрузка рейсов, например при импорте расписания: рейсы накапливаются загрузчиком и добавляются
+     * в расписание одним обновлением в {@link Loader#finish()}, поэтому таблица перегонов, индекс пересадок
+     * и страницы расписания строятся один раз, а не перестраиваются на каждый пакет.
+     * До завершения загрузки поиски видят текущую версию расписания.
+     */
+    public Loader loader() {
+        return new Loader();
+    }
+
+    /**
+     * Запись снимка текущей версии расписания, например после построения расписания, чтобы следующий запуск узла
+     * открыл снимок вместо повторного построения
+     *
+     * @param file файл снимка, заменяется целиком
+     */
+    public void writeSnapshot(java.nio.file.Path file) throws IOException {
+        Snapshot.write(timetable, file);
+    }
+
+    /**
+     * Открытие снимка вместо построения расписания: версия из снимка заменяет текущую версию расписания,
+     * сохраненные поиски вытесняются. Рейсы снимка в репозиторий не добавляются.
+     *
+     * @param file файл, записанный {@link #writeSnapshot}
+     * @throws IOException если файл не является снимком или снимок построен с другим временем на пересадку
+     */
+    public synchronized void openSnapshot(java.nio.file.Path file) throws IOException {
+        timetable = Snapshot.read(file, config.getMinTransferTime(), config.getMaxTransferTime());
+        requests.removeIf(session -> true);
+        log.info("Открыт снимок расписания " + file + ": " + timetable.connections.runsCount() + " рейсов");
+    }
+
+    /**
+     * Восстановление расписания из журнала и журналирование дальнейших изменений: открывается последний снимок
+     * каталога журнала, поверх него повторяются записанные после снимка обновления и задержки,
+     * после чего каждое изменение расписания записывается в журнал. Журнал сжимается в новый снимок,
+     * когда превышает заданный размер, или по вызову {@link #compactJournal}.
+     * <p>
+     * Рейсы, восстановленные из журнала, в репозиторий не добавляются, кроме задержанных рейсов.
+     *
+     * @throws IllegalStateException если расписание уже построено
+     */
+    public synchronized void openJournal(Journal journal) throws IOException {
+        if (timetable.version != 0 || this.journal != null) {
+            throw new IllegalStateException("Journal must be opened before the timetable is built");
+        }
+        if (java.nio.file.Files.exists(journal.snapshotFile())) {
+            openSnapshot(journal.snapshotFile());
+        }
+        int[] replayed = new int[1];
+        journal.replay(entry -> {
+            if (entry.version < timetable.version) {
+                // запись уже вошла в снимок
+                return;
+            }
+            if (entry.version > timetable.version) {
+                throw new IllegalStateException("Journal record of version " + entry.version
+                        + " does not follow timetable version " + timetable.version);
+            }
+            if (entry.isDelay()) {
+                delay(entry.delays);
+            } else {
+                List<TransportRun> deleted = new ArrayList<>(entry.deleted.size());
+                for (Ref ref : entry.deleted) {
+                    TransportRun run = timetable.run(ref);
+                    if (run != null) {
+                        deleted.add(run);
+                    }
                 }
-                if (i != 0) {
-                    schedulePage.getArrivalTimeline().put(w.getArrival(), stop);
+                update(entry.added, entry.updated, deleted);
+            }
+            ++replayed[0];
+        });
+        this.journal = journal;
+        log.info("Из журнала повторено " + replayed[0] + " изменений, версия расписания " + timetable.version);
+    }
+
+    /**
+     * Сжатие журнала: текущая версия расписания записывается в снимок каталога журнала, и журнал очищается.
+     * Можно вызывать периодически, например в часы наименьшей нагрузки
+     */
+    public synchronized void compactJournal() throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("Journal is not opened");
+        }
+        writeSnapshot(journal.snapshotFile());
+        journal.reset();
+    }
+
+    private void compactJournalIfNeeded() {
+        try {
+            if (journal != null && journal.needsCompaction()) {
+                compactJournal();
+            }
+        } catch (IOException e) {
+            // изменение уже записано в журнал, поэтому сжатие можно повторить позже
+            log.error("Journal compaction failed", e);
+        }
+    }
+
+    /**
+     * Задержка рейса: время прибытия и отправления остановок с порядковым номером не меньше {@code number}
+     * сдвигается на {@code delay}
+     *
+     * @param run    рейс
+     * @param number порядковый номер первой задержанной остановки
+     * @param delay  задержка, может быть отрицательной
+     */
+    public void delay(Ref<? extends TransportRun> run, int number, Duration delay) {
+        delay(Collections.singletonList(new Delay(run, number, delay)));
+    }
+
+    /**
+     * Применение задержек рейсов. Задержки, поступающие одновременно из нескольких потоков, накапливаются в очереди
+     * и применяются одним пакетом тем потоком, который первым получит блокировку обновления, поэтому таблица перегонов
+     * перестраивается один раз на пакет. После возврата задержки уже применены.
+     * <p>
+     * Задержанный рейс заменяется копией, в которой скопированы только сдвинутые маршрутные точки, и сохраняется
+     * в репозитории. В таблице перегонов перестраиваются только блоки со сдвинутыми перегонами, в индексе пересадок -
+     * только точки сдвинутых остановок, на страницах расписания - только страницы сдвинутых остановок, поэтому стоимость
+     * задержки зависит от задержанных рейсов, а не от размера расписания.
+     * Из кеша вытесняются только поиски, которые исследовали задержанные рейсы.
+     */
+    public void delay(Collection<Delay> delays) {
+        for (Delay delay : delays) {
+            if (delay.getNumber() < 0) {
+                throw new IllegalArgumentException("stop number can not be less than 0");
+            }
+        }
+        pendingDelays.addAll(delays);
+        applyDelays();
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void applyDelays() {
+        Timetable current = timetable;
+        ConnectionTable table = current.connections;
+        // задержки одного рейса применяются вместе, чтобы страницы расписания перестраивались один раз
+        Map<Integer, List<Delay>> runDelays = new LinkedHashMap<>();
+        for (Delay delay = pendingDelays.poll(); delay != null; delay = pendingDelays.poll()) {
+            int runId = table.runId(delay.getRun());
+            if (runId == -1) {
+                log.warn("Delay of unknown run " + delay.getRun() + " is ignored");
+                continue;
+            }
+            runDelays.computeIfAbsent(runId, key -> new ArrayList<>()).add(delay);
+        }
+        if (runDelays.isEmpty()) {
+            // задержки уже применены другим потоком
+            return;
+        }
+
+        Map<Integer, Integer> firstNumbers = new LinkedHashMap<>();
+        List<TransportRun> delayed = new ArrayList<>(runDelays.size());
+        List<PageStop> oldStops = new ArrayList<>();
+        List<PageStop> newStops = new ArrayList<>();
+        Set<SchedulePage.Id> touchedPages = new HashSet<>();
+        for (Map.Entry<Integer, List<Delay>> entry : runDelays.entrySet()) {
+            TransportRun transportRun = table.run(entry.getKey());
+            List<Waypoint> waypoints = new ArrayList<>(transportRun.getWaypoints());
+            int first = entry.getValue().stream().mapToInt(Delay::getNumber).min().getAsInt();
+            if (first >= waypoints.size()) {
+                continue;
+            }
+            for (Delay delay : entry.getValue()) {
+                for (int i = delay.getNumber(); i < waypoints.size(); ++i) {
+                    waypoints.set(i, waypoints.get(i).shifted(delay.getDelay()));
                 }
-                repository.create(schedulePage);
-                //}
             }
+            TransportRun shifted = transportRun.withWaypoints(waypoints);
+            List<PageStop> runOldStops = pageStops(transportRun);
+            List<PageStop> runNewStops = pageStops(shifted);
+            touchedPages.addAll(pageIds(runOldStops, first));
+            touchedPages.addAll(pageIds(runNewStops, first));
+            oldStops.addAll(runOldStops);
+            newStops.addAll(runNewStops);
+            firstNumbers.put(entry.getKey(), first);
+            delayed.add(shifted);
+        }
+        // с перестраиваемых страниц убираются все события задержанных рейсов, в том числе несдвинутые остановки
+        // других рейсов пакета, поэтому туда же добавляются все остановки задержанных рейсов
+        List<PageStop> cleared = new ArrayList<>();
+        List<PageStop> moved = new ArrayList<>();
+        for (PageStop stop : oldStops) {
+            if (touchedPages.contains(stop.pageId())) {
+                cleared.add(stop);
+            }
+        }
+        for (PageStop stop : newStops) {
+            if (touchedPages.contains(stop.pageId())) {
+                moved.add(stop);
+            }
+        }
+        Set<Ref> delayedRefs = delayed.stream().map(TransportRun::getId).collect(Collectors.toSet());
+        Map<Ref, Map<Long, SchedulePage>> pages = buildPages(current, delayedRefs, cleared.stream(), moved.stream());
+
+        table = table.withShiftedRuns(delayed, firstNumbers);
+        if (journal != null) {
+            try {
+                journal.appendDelays(current.version, runDelays.values().stream()
+                        .flatMap(List::stream)
+                        .collect(Collectors.toList()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        timetable = current.next(table, current.transfers.withShiftedRuns(table, delayed, firstNumbers), false,
+                current.fares.withShiftedRuns(table, delayed), pages);
+        repository.createAll(delayed);
+        requests.removeIf(session -> session.touches(delayedRefs));
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Страницы расписания остановок с порядковым номером не меньше {@code number}
+     */
+    private static Set<SchedulePage.Id> pageIds(List<PageStop> stops, int number) {
+        Set<SchedulePage.Id> pages = new HashSet<>();
+        for (PageStop stop : stops) {
+            if (stop.number >= number) {
+                pages.add(stop.pageId());
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * @return совпадают ли последовательности точек остановок рейсов
+     */
+    private static boolean samePoints(TransportRun lhs, TransportRun rhs) {
+        List<? extends Waypoint> lhsWaypoints = lhs.getWaypoints();
+        List<? extends Waypoint> rhsWaypoints = rhs.getWaypoints();
+        int[] lhsNumbers = ConnectionTable.stopNumbers(lhsWaypoints);
+        int[] rhsNumbers = ConnectionTable.stopNumbers(rhsWaypoints);
+        if (!Arrays.equals(lhsNumbers, rhsNumbers)) {
+            return false;
+        }
+        for (int number : lhsNumbers) {
+            if (!lhsWaypoints.get(number).getPoint().equals(rhsWaypoints.get(number).getPoint())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Остановки рейса, которые попадают в расписание. Прибытие хранится на странице дня отправления.
+     */
+    private List<PageStop> pageStops(TransportRun transportRun) {
+        List<? extends Waypoint> waypoints = transportRun.getWaypoints();
+        List<PageStop> stops = new ArrayList<>(waypoints.size());
+        for (int i = 0; i < waypoints.size(); ++i) {
+            Waypoint w = waypoints.get(i);
+            if (i != 0 && i != waypoints.size() - 1 && w.isNullStop()) {
+                continue;
+            }
+            assert w.getDeparture() != null;
+            stops.add(new PageStop(w.getPoint(), getDayOfInstant(w.getDeparture()), transportRun.getId(), i,
+                    i != 0 ? w.getArrival() : null,
+                    i != waypoints.size() - 1 ? w.getDeparture() : null));
+        }
+        return stops;
+    }
+
+    /**
+     * Построение страниц расписания следующей версии. Остановки группируются по страницам (точка, день),
+     * параллельно, если параллелен поток добавляемых остановок. Каждая затронутая страница строится заново
+     * из событий текущей версии без событий рейсов {@code replaced} и добавляемых остановок.
+     *
+     * @param replaced рейсы, события которых убираются со страниц
+     * @param cleared  остановки, страницы которых перестраиваются, даже если на них ничего не добавляется
+     * @param added    добавляемые остановки
+     * @return новые страницы по точкам и дням, null для страниц без событий
+     */
+    private Map<Ref, Map<Long, SchedulePage>> buildPages(Timetable current, Set<Ref> replaced,
+                                                         Stream<PageStop> cleared, Stream<PageStop> added) {
+        boolean parallel = added.isParallel();
+        // идентификатор страницы строится один раз на страницу, а не на каждую остановку
+        Map<Ref, Map<Long, List<PageStop>>> pageStops = added
+                .collect(Collectors.groupingBy(stop -> stop.point, Collectors.groupingBy(stop -> stop.day)));
+        cleared.sequential().forEach(stop -> pageStops.computeIfAbsent(stop.point, point -> new HashMap<>())
+                .computeIfAbsent(stop.day, day -> new ArrayList<>()));
+        Stream<Map.Entry<Ref, Map<Long, List<PageStop>>>> points = parallel
+                ? pageStops.entrySet().parallelStream() : pageStops.entrySet().stream();
+        return points.collect(Collectors.toMap(Map.Entry::getKey, point -> {
+            Map<Long, SchedulePage> days = new HashMap<>();
+            point.getValue().forEach((day, stops) ->
+                    days.put(day, buildPage(current.page(point.getKey(), day), point.getKey(), day, replaced, stops)));
+            return days;
+        }));
+    }
+
+    /**
+     * Построение страницы расписания
+     *
+     * @param page     страница текущей версии или null
+     * @param replaced рейсы, события которых не переносятся с текущей страницы
+     * @param stops    добавляемые остановки
+     * @return новая страница или null, если на ней нет событий
+     */
+    @SuppressWarnings("unchecked")
+    private static SchedulePage buildPage(SchedulePage page, Ref point, long day, Set<Ref> replaced, List<PageStop> stops) {
+        // события с равным временем упорядочены по рейсам, а не по тому, какие из них перестраиваются
+        Timeline.Builder<Ref> arrivals = new Timeline.Builder<>(stops.size(), ConnectionTable.RUN_ORDER);
+        Timeline.Builder<Ref> departures = new Timeline.Builder<>(stops.size(), ConnectionTable.RUN_ORDER);
+        if (page != null) {
+            arrivals.addAll(page.getArrivalTimeline(), run -> !replaced.contains(run));
+            departures.addAll(page.getDepartureTimeline(), run -> !replaced.contains(run));
+        }
+        for (PageStop stop : stops) {
+            if (stop.arrival != null) {
+                arrivals.add(stop.arrival, stop.run, stop.number);
+            }
+            if (stop.departure != null) {
+                departures.add(stop.departure, stop.run, stop.number);
+            }
+        }
+        Timeline<Ref> arrivalTimeline = arrivals.build();
+        Timeline<Ref> departureTimeline = departures.build();
+        if (arrivalTimeline.size() == 0 && departureTimeline.size() == 0) {
+            return null;
+        }
+        SchedulePage schedulePage = new SchedulePage();
+        schedulePage.setId(new SchedulePage.Id(point.toString(), day));
+        schedulePage.setArrivalTimeline(arrivalTimeline);
+        schedulePage.setDepartureTimeline(departureTimeline);
+        return schedulePage;
+    }
+
+    /**
+     * Остановка рейса на странице расписания
+     */
+    private static class PageStop {
+        /**
+         * Точка и день страницы
+         */
+        private final Ref point;
+        private final long day;
+        private final Ref run;
+        private final int number;
+        /**
+         * Время прибытия и отправления, null на первой и последней остановке соответственно
+         */
+        private final Instant arrival;
+        private final Instant departure;
+
+        private PageStop(Ref point, long day, Ref run, int number, Instant arrival, Instant departure) {
+            this.point = point;
+            this.day = day;
+            this.run = run;
+            this.number = number;
+            this.arrival = arrival;
+            this.departure = departure;
+        }
+
+        private SchedulePage.Id pageId() {
+            return new SchedulePage.Id(point.toString(), day);
         }
-        log.info("");
     }
 
     private long getDayOfInstant(Instant instant) {
-        return ZonedDateTime.ofInstant(instant, ZoneOffset.UTC).truncatedTo(ChronoUnit.DAYS).toInstant().toEpochMilli();
+        return Math.floorDiv(instant.toEpochMilli(), MILLIS_PER_DAY) * MILLIS_PER_DAY;
     }
 
     /*
@@ -112,10 +529,13 @@ public class RouteBuilder {
         return timeline.subMap(interval.getSince(), true, interval.getTill(), true);
     }*/
 
-    private List<SchedulePage> fetchPages(Ref<? extends Point> ref, Instant from, Instant to) {
+    private List<SchedulePage> fetchPages(Timetable timetable, Ref<? extends Point> ref, Instant from, Instant to) {
         List<SchedulePage> pages = new ArrayList<>(2);
         while (from.compareTo(to) <= 0) {
-            repository.find(new SchedulePage.Id(ref.toString(), getDayOfInstant(from))).ifPresent(pages::add);
+            SchedulePage page = timetable.page(ref, getDayOfInstant(from));
+            if (page != null) {
+                pages.add(page);
+            }
             from = from.plus(Duration.ofDays(1));
         }
         /*// todo: доделать для длительных интервалов
@@ -128,70 +548,79 @@ public class RouteBuilder {
         return pages;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Стоимость проезда по маршруту по тарифам текущей версии расписания
+     *
+     * @return стоимость в копейках
+     */
+    public long price(Path path) {
+        FareTable fares = timetable.fares;
+        long price = 0;
+        for (ForwardSegment segment : path) {
+            price += fares.price(segment);
+        }
+        return price;
+    }
+
     public List<ForwardSegment> successors(Collection<Ref<? extends Point>> departures, Stop A,
                                            Collection<Ref<? extends Point>> arrivals, Predicate<Properties> propertiesFilter) {
-        TransportRun model = (TransportRun) repository.find(A.getRef()).get();
+        return successors(timetable, departures, A, arrivals, propertiesFilter);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ForwardSegment> successors(Timetable timetable, Collection<Ref<? extends Point>> departures, Stop A,
+                                            Collection<Ref<? extends Point>> arrivals, Predicate<Properties> propertiesFilter) {
+        TransportRun model = timetable.run(A.getRef());
+        TransferIndex transfers = timetable.transfers;
+        int run = transfers.runId(A.getRef());
 
         List<ForwardSegment> segments = new ArrayList<>();
         SegmentTree<Properties> modelProperties = model.getProperties();
 
         // Проверка, можно ли доехать на текущем транспорте без пересадки
-        List<Waypoint> waypoints = model.getWaypoints();
+        List<? extends Waypoint> waypoints = model.getWaypoints();
         int sourceId = waypoints.size();
         int targetId = waypoints.size();
-        Set<Ref> visitedPoints = new HashSet<>();
-        for (int i = A.getNumber() + 1; i < sourceId && i < targetId; ++i) {
-            Waypoint w = waypoints.get(i);
-            if (i != 0 && i != waypoints.size() - 1 && w.isNullStop()) {
-                continue;
-            }
-            visitedPoints.add(w.getPoint());
-            Stop idle = new Stop(i, A.getRef(), w.getPoint(), w.getArrival());//todo:
-            // если можно доехать без пересадки, то игнорируем все пересадки на станции назначения
-            if (departures.contains(idle.getPoint())) {
-                // мы не хотим делать цикл через точку отправления
-                sourceId = i;
-                break;
-            } else if (arrivals.contains(idle.getPoint())) {
-                Properties properties = modelProperties.select(A.getNumber(), i);
-                if (propertiesFilter.test(properties)) {
-                    segments.add(new ForwardSegment(A, idle, idle, properties));
+        // номера пройденных остановок по номерам точек; после просмотра отмеченные точки очищаются
+        int[] lastVisits = run != -1 ? lastVisits(transfers.pointsCount()) : null;
+        int visited = A.getNumber();
+        try {
+            for (int i = A.getNumber() + 1; i < sourceId && i < targetId; ++i) {
+                Waypoint w = waypoints.get(i);
+                if (i != 0 && i != waypoints.size() - 1 && w.isNullStop()) {
+                    continue;
+                }
+                if (run != -1) {
+                    lastVisits[transfers.pointId(run, i)] = i;
+                    visited = i;
+                }
+                Stop idle = new Stop(i, A.getRef(), w.getPoint(), w.getArrival());//todo:
+                // если можно доехать без пересадки, то игнорируем все пересадки на станции назначения
+                if (departures.contains(idle.getPoint())) {
+                    // мы не хотим делать цикл через точку отправления
+                    sourceId = i;
+                    break;
+                } else if (arrivals.contains(idle.getPoint())) {
+                    Properties properties = modelProperties.select(A.getNumber(), i);
+                    if (propertiesFilter.test(properties)) {
+                        segments.add(new ForwardSegment(A, idle, idle, properties));
+                    }
+                    // будем считать, что нет петель или свойства аддитивны
+                    targetId = i;
+                    break;
+                }
+
+                if (run == -1) {
+                    continue;
                 }
-                // будем считать, что нет петель или свойства аддитивны
-                targetId = i;
-                break;
-            }
-
-            Instant minTime = w.getArrival().plus(Duration.ofSeconds(config.getMinTransferTime()));
-            Instant maxTime = w.getArrival().plus(Duration.ofSeconds(config.getMaxTransferTime()));
-            List<SchedulePage> pages = fetchPages(w.getPoint(), minTime, maxTime);
-            Stop B = new Stop(i, A.getRef(), w.getPoint(), w.getArrival());
-            for (SchedulePage page : pages) {
-                Timeline<StopLight> timeline = page.getDepartureTimeline().subMap(minTime, true, maxTime, true);
-                for (Timeline.Entry<StopLight> entry : timeline) {
-                    StopLight stopLight = entry.getValue();
-                    if (stopLight.getNumber() == 0 || !stopLight.getRef().equals(A.getRef())) {
+                Stop B = new Stop(i, A.getRef(), w.getPoint(), w.getArrival());
+                TransferIndex.Station station = transfers.station(run, i);
+                for (int k = transfers.first(run, i); k < transfers.last(run, i); ++k) {
+                    if (station.numbers[k] == 0 || station.runs[k] != run) {
                         // Точка остановки следующего транспорта на последующей станции
-                        Stop C = new Stop(stopLight.getNumber(), stopLight.getRef(), w.getPoint(), entry.getKey());
+                        Stop C = new Stop(station.numbers[k], transfers.runRef(station.runs[k]), w.getPoint(), Instant.ofEpochSecond(station.times[k]));
                         // Недопустим цикл на одной линии (движение прямо на предыдущую станцию движения)
-                        // В такой реализации бьёт по производительности,
-                        Ref nextRef = C.getRef();
-                        TransportRun nextModel = (TransportRun) repository.find(nextRef).get();
-                        List<Waypoint> nextWaypoints = nextModel.getWaypoints();
-                        int nextNumber = C.getNumber() + 1;
-                        boolean backwardDirection = false;
-                        while (nextNumber < nextWaypoints.size()) {
-                            while (nextNumber < nextWaypoints.size() - 1 && nextWaypoints.get(nextNumber).isNullStop()) {
-                                ++nextNumber;
-                            }
-                            if (visitedPoints.contains(nextWaypoints.get(nextNumber).getPoint())) {
-                                backwardDirection = true;
-                                break;
-                            }
-                            ++nextNumber;
-                        }
-                        if (backwardDirection) {
+                        if (transfers.lastVisit(station.runs[k], station.numbers[k], lastVisits, A.getNumber()) != -1) {
                             continue;
                         }
                         // Свойства отрезка пути, по которому должен пройти текущий транспорт, чтобы можно было сделать пересадку
@@ -202,25 +631,224 @@ public class RouteBuilder {
                     }
                 }
             }
+        } finally {
+            for (int i = A.getNumber() + 1; i <= visited; ++i) {
+                if (transfers.pointId(run, i) != -1) {
+                    lastVisits[transfers.pointId(run, i)] = -1;
+                }
+            }
         }
 
         return segments;
     }
 
     /**
-     * Получение экземпляра алгоритма для построения маршрутов.
-     * Если уже существует экземпляр с номеров запроса {@code query.getRequestId()}, то возвращается он, иначе создается новый.
+     * Буфер последних номеров остановок по номерам точек для текущего потока, заполненный -1.
+     * Переиспользуется между просмотрами рейсов, поэтому просмотр очищает только отмеченные точки
      *
-     * @param query   запрос
-     * @param handler обработчик результатов выполнения алгоритма
-     * @return экземпляр алгоритма
+     * @param size количество точек
      */
-    private <Q extends RouteBuilderQuery<Q, F, S>, R extends RouteBuilderResponse<S, F>, F extends RouteBuilderFilter<S>, S>
-    Optional<Algorithm> getAlgorithm(Q query, RouteBuilderResponseHandler<R, S, F> handler) {
-        if (query.getDeparture().getPoint().equals(query.getArrival().getPoint())) {
-            return Optional.empty();
+    private static int[] lastVisits(int size) {
+        int[] lastVisits = LAST_VISITS.get();
+        if (lastVisits.length < size) {
+            lastVisits = new int[Math.max(size, lastVisits.length * 2)];
+            Arrays.fill(lastVisits, -1);
+            LAST_VISITS.set(lastVisits);
+        }
+        return lastVisits;
+    }
+
+    /**
+     * Переходы для всех остановок раунда.
+     * Остановки группируются по рейсам, а рейсы - по шаблонам маршрутов (последовательностям точек остановок рейса).
+     * Рейсы одного шаблона просматриваются одним проходом по остановкам шаблона, начиная с самой ранней посадки:
+     * проверки точек отправления и прибытия и отметки пройденных точек выполняются один раз для всех рейсов шаблона,
+     * а пересадки на станции вычисляются один раз для каждого рейса и раздаются всем посадкам, которые до нее доехали.
+     *
+     * @return переходы для каждой остановки в порядке {@code stops}
+     */
+    public List<List<ForwardSegment>> successors(Collection<Ref<? extends Point>> departures, List<Stop> stops,
+                                                 Collection<Ref<? extends Point>> arrivals, Predicate<Properties> propertiesFilter) {
+        return successors(timetable, departures, stops, arrivals, propertiesFilter);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<List<ForwardSegment>> successors(Timetable timetable, Collection<Ref<? extends Point>> departures, List<Stop> stops,
+                                                  Collection<Ref<? extends Point>> arrivals, Predicate<Properties> propertiesFilter) {
+        List<List<ForwardSegment>> result = new ArrayList<>(stops.size());
+        Map<Ref, List<Integer>> trips = new LinkedHashMap<>();
+        for (int k = 0; k < stops.size(); ++k) {
+            result.add(new ArrayList<>());
+            trips.computeIfAbsent(stops.get(k).getRef(), ref -> new ArrayList<>()).add(k);
         }
+        TransferIndex transfers = timetable.transfers;
+        Map<List<Integer>, List<RunScan>> patterns = new LinkedHashMap<>();
+        for (Map.Entry<Ref, List<Integer>> trip : trips.entrySet()) {
+            int run = transfers.runId(trip.getKey());
+            if (run == -1) {
+                continue;
+            }
+            List<Integer> boardings = trip.getValue();
+            boardings.sort((k1, k2) -> Integer.compare(stops.get(k1).getNumber(), stops.get(k2).getNumber()));
+            int[] points = transfers.runPoints(run);
+            List<Integer> pattern = new ArrayList<>(points.length);
+            for (int point : points) {
+                pattern.add(point);
+            }
+            patterns.computeIfAbsent(pattern, key -> new ArrayList<>())
+                    .add(new RunScan(timetable.run(trip.getKey()), run, stops, boardings));
+        }
+        int[] lastVisits = lastVisits(transfers.pointsCount());
+        for (List<RunScan> scans : patterns.values()) {
+            scan(transfers, lastVisits, scans, departures, stops, arrivals, propertiesFilter, result);
+        }
+        return result;
+    }
+
+    /**
+     * Посадки на один рейс шаблона и посадки, находящиеся в пути при просмотре
+     */
+    private static class RunScan {
+        private final TransportRun model;
+        private final List<Waypoint> waypoints;
+        private final int run;
+        /**
+         * Номера остановок в {@code stops}, отсортированные по порядковому номеру на рейсе, и сами порядковые номера
+         */
+        private final List<Integer> boardings;
+        private final int[] numbers;
+        /**
+         * Посадки [first, next) находятся в пути
+         */
+        private int first;
+        private int next;
+
+        @SuppressWarnings("unchecked")
+        RunScan(TransportRun model, int run, List<Stop> stops, List<Integer> boardings) {
+            this.model = model;
+            this.waypoints = model.getWaypoints();
+            this.run = run;
+            this.boardings = boardings;
+            this.numbers = new int[boardings.size()];
+            for (int k = 0; k < numbers.length; ++k) {
+                numbers[k] = stops.get(boardings.get(k)).getNumber();
+            }
+        }
+    }
+
+    /**
+     * Просмотр рейсов одного шаблона для всех посадок на них
+     *
+     * @param lastVisits массив по номерам точек, заполненный -1; после просмотра остается в том же состоянии
+     * @param scans      рейсы с одной последовательностью точек остановок
+     */
+    @SuppressWarnings("unchecked")
+    private void scan(TransferIndex transfers, int[] lastVisits, List<RunScan> scans, Collection<Ref<? extends Point>> departures,
+                      List<Stop> stops, Collection<Ref<? extends Point>> arrivals, Predicate<Properties> propertiesFilter,
+                      List<List<ForwardSegment>> result) {
+        int[] points = transfers.runPoints(scans.get(0).run);
+        int begin = Integer.MAX_VALUE;
+        for (RunScan scan : scans) {
+            begin = Math.min(begin, scan.numbers[0] + 1);
+        }
+        try {
+            for (int i = begin; i < points.length; ++i) {
+                // следующая посадка, если ни одна посадка шаблона не в пути
+                int resume = Integer.MAX_VALUE;
+                boolean moving = false;
+                for (RunScan scan : scans) {
+                    while (scan.next < scan.numbers.length && scan.numbers[scan.next] < i) {
+                        ++scan.next;
+                    }
+                    if (scan.first != scan.next) {
+                        moving = true;
+                    } else if (scan.next < scan.numbers.length) {
+                        resume = Math.min(resume, scan.numbers[scan.next]);
+                    }
+                }
+                if (!moving) {
+                    if (resume == Integer.MAX_VALUE) {
+                        break;
+                    }
+                    i = resume;
+                    continue;
+                }
+                // промежуточная остановка без стоянки
+                if (points[i] == -1) {
+                    continue;
+                }
+                // последний номер остановки рейсов шаблона в каждой из пройденных точек
+                lastVisits[points[i]] = i;
+                Ref<? extends Point> point = scans.get(0).waypoints.get(i).getPoint();
+                if (departures.contains(point)) {
+                    // мы не хотим делать цикл через точку отправления
+                    for (RunScan scan : scans) {
+                        scan.first = scan.next;
+                    }
+                    continue;
+                }
+                boolean arrival = arrivals.contains(point);
+                for (RunScan scan : scans) {
+                    if (scan.first == scan.next) {
+                        continue;
+                    }
+                    Waypoint w = scan.waypoints.get(i);
+                    SegmentTree<Properties> modelProperties = scan.model.getProperties();
+                    if (arrival) {
+                        Stop idle = new Stop(i, scan.model.getId(), w.getPoint(), w.getArrival());
+                        for (int k = scan.first; k < scan.next; ++k) {
+                            Properties properties = modelProperties.select(scan.numbers[k], i);
+                            if (propertiesFilter.test(properties)) {
+                                result.get(scan.boardings.get(k)).add(new ForwardSegment(stops.get(scan.boardings.get(k)), idle, idle, properties));
+                            }
+                        }
+                        scan.first = scan.next;
+                        continue;
+                    }
+
+                    Stop B = new Stop(i, scan.model.getId(), w.getPoint(), w.getArrival());
+                    TransferIndex.Station station = transfers.station(scan.run, i);
+                    for (int t = transfers.first(scan.run, i); t < transfers.last(scan.run, i); ++t) {
+                        if (station.numbers[t] == 0 || station.runs[t] != scan.run) {
+                            Stop C = new Stop(station.numbers[t], transfers.runRef(station.runs[t]), w.getPoint(), Instant.ofEpochSecond(station.times[t]));
+                            // Движение назад запрещено для посадок, после которых рейс уже прошел одну из следующих точек C
+                            int lastVisit = transfers.lastVisit(station.runs[t], station.numbers[t], lastVisits, scan.numbers[scan.next - 1]);
+                            for (int k = scan.first; k < scan.next; ++k) {
+                                if (lastVisit > scan.numbers[k]) {
+                                    continue;
+                                }
+                                Properties properties = modelProperties.select(scan.numbers[k], i);
+                                if (propertiesFilter.test(properties)) {
+                                    result.get(scan.boardings.get(k)).add(new ForwardSegment(stops.get(scan.boardings.get(k)), B, C, properties));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (int i = begin; i < points.length; ++i) {
+                if (points[i] != -1) {
+                    lastVisits[points[i]] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Интервалы отправления и прибытия запроса, в которых пропущенные границы заменены значениями по умолчанию
+     */
+    private static class Intervals {
+        private final InstantInterval departure;
+        private final InstantInterval arrival;
+
+        private Intervals(InstantInterval departure, InstantInterval arrival) {
+            this.departure = departure;
+            this.arrival = arrival;
+        }
+    }
 
+    private Intervals intervals(RouteBuilderQuery query) {
         Instant now = Now.instant();
         InstantInterval intervalDeparture = query.getDeparture().getTimeInterval();
         if (intervalDeparture.getSince() == null) {
@@ -240,73 +868,195 @@ public class RouteBuilder {
         }
         assert intervalDeparture.getSince() != null && intervalDeparture.getTill() != null;
         assert intervalArrival.getSince() != null && intervalArrival.getTill() != null;
+        return new Intervals(intervalDeparture, intervalArrival);
+    }
+
+    /**
+     * Получение остановок в точке за интервал времени
+     *
+     * @param point      точка
+     * @param interval   интервал времени
+     * @param departures искать отправления (иначе прибытия)
+     * @return список остановок
+     */
+    @SuppressWarnings("unchecked")
+    private List<Stop> fetchStops(Timetable timetable, Ref<? extends Point> point, InstantInterval interval, boolean departures) {
+        List<Stop> stops = new ArrayList<>();
+        for (SchedulePage page : fetchPages(timetable, point, interval.getSince(), interval.getTill())) {
+            Timeline<Ref> timeline = departures ? page.getDepartureTimeline() : page.getArrivalTimeline();
+            Timeline.Cursor<Ref> cursor = timeline.range(interval.getSince(), interval.getTill());
+            while (cursor.next()) {
+                stops.add(new Stop(cursor.number(), cursor.run(), point, cursor.time()));
+            }
+        }
+        return stops;
+    }
+
+    /**
+     * Получение поиска по таблице перегонов для запросов с сортировкой по отправлению или прибытию
+     *
+     * @param query   запрос
+     * @param handler обработчик результатов выполнения алгоритма
+     * @return экземпляр поиска
+     */
+    private <Q extends RouteBuilderQuery<Q, F, S>, R extends RouteBuilderResponse<S, F>, F extends RouteBuilderFilter<S>, S>
+    Optional<ConnectionScan> getConnectionScan(Q query, RouteBuilderResponseHandler<R, S, F> handler, Timetable timetable) {
+        if (query.getDeparture().getPoint().equals(query.getArrival().getPoint())) {
+            return Optional.empty();
+        }
+        Intervals intervals = intervals(query);
+        List<Stop> sources = fetchStops(timetable, query.getDeparture().getPoint(), intervals.departure, true);
+        if (sources.isEmpty()) {
+            return Optional.empty();
+        }
+        Properties.PropertiesFilter propertiesFilter = handler.handleFilter(query.getFilter());
+        return Optional.of(new ConnectionScan(
+                timetable.connections,
+                sources,
+                query.getDeparture().getPoint(),
+                query.getArrival().getPoint(),
+                intervals.arrival.getSince().getEpochSecond(),
+                intervals.arrival.getTill().getEpochSecond(),
+                config.getMinTransferTime(),
+                config.getMaxTransferTime(),
+                propertiesFilter.getMaxTransfers(),
+                propertiesFilter,
+                query.getResultPresentation().getSortOrder(),
+                query.getResultPresentation().getSortDirection()
+        ));
+    }
+
+    /**
+     * Получение экземпляра алгоритма для построения маршрутов.
+     *
+     * @param query   запрос
+     * @param handler обработчик результатов выполнения алгоритма
+     * @return экземпляр алгоритма
+     */
+    private <Q extends RouteBuilderQuery<Q, F, S>, R extends RouteBuilderResponse<S, F>, F extends RouteBuilderFilter<S>, S>
+    Optional<Algorithm> getAlgorithm(Q query, RouteBuilderResponseHandler<R, S, F> handler, Timetable timetable) {
+        if (query.getDeparture().getPoint().equals(query.getArrival().getPoint())) {
+            return Optional.empty();
+        }
+
+        Intervals intervals = intervals(query);
+        InstantInterval intervalDeparture = intervals.departure;
+        InstantInterval intervalArrival = intervals.arrival;
 
         Properties.PropertiesFilter propertiesFilter = handler.handleFilter(query.getFilter());
+        Transfers transfers = new Transfers() {
+            @Override
+            public List<ForwardSegment> successors(Collection<Ref<? extends Point>> departures, Stop A, Collection<Ref<? extends Point>> arrivals) {
+                return RouteBuilder.this.successors(timetable, departures, A, arrivals, propertiesFilter);
+            }
+
+            @Override
+            public List<List<ForwardSegment>> successors(Collection<Ref<? extends Point>> departures, List<Stop> stops, Collection<Ref<? extends Point>> arrivals) {
+                return RouteBuilder.this.successors(timetable, departures, stops, arrivals, propertiesFilter);
+            }
+
+            @Override
+            public long price(ForwardSegment segment) {
+                return timetable.fares.price(segment);
+            }
+        };
         Algorithm algorithm = new Algorithm(
-                (departures1, A, arrivals1) -> {
-                    List<ForwardSegment> newVersion = successors(departures1, A, arrivals1, propertiesFilter);
-                    return newVersion;
-                },
+                transfers,
+                query.getEngine(),
                 propertiesFilter.getMaxTransfers(),
                 query.getResultPresentation().getSortOrder(),
                 query.getResultPresentation().getSortDirection()
         );
-        /*List<Stop> sources1 = new ArrayList<>();
-        for (Map.Entry<Instant, Stop> entry : departures) {
-            sources1.add(entry.getValue());
-        }*/
-        List<Stop> sources2 = new ArrayList<>();
-        for (SchedulePage page : fetchPages(query.getDeparture().getPoint(), intervalDeparture.getSince(), intervalDeparture.getTill())) {
-            Timeline<StopLight> timeline = page.getDepartureTimeline().subMap(intervalDeparture.getSince(), true, intervalDeparture.getTill(), true);
-            for (Timeline.Entry<StopLight> entry : timeline) {
-                sources2.add(new Stop(entry.getValue().getNumber(), entry.getValue().getRef(), query.getDeparture().getPoint(), entry.getKey()));
-            }
+        if (query.isParallel()) {
+            algorithm.parallel(ForkJoinPool.commonPool());
         }
-        //assert sources1.size() == sources2.size() : sources1 + "\n" + sources2;
-        if (sources2.isEmpty()) {
+        List<Stop> sources = fetchStops(timetable, query.getDeparture().getPoint(), intervalDeparture, true);
+        if (sources.isEmpty()) {
             return Optional.empty();
         }
-        sources2.forEach(algorithm::addSource);
+        sources.forEach(algorithm::addSource);
 
-        /*List<Stop> targets1 = new ArrayList<>();
-        for (Map.Entry<Instant, Stop> entry : arrivals) {
-            targets1.add(entry.getValue());
-        }*/
-        List<Stop> targets2 = new ArrayList<>();
-        for (SchedulePage page : fetchPages(query.getArrival().getPoint(), intervalArrival.getSince(), intervalArrival.getTill())) {
-            Timeline<StopLight> timeline = page.getArrivalTimeline().subMap(intervalArrival.getSince(), true, intervalArrival.getTill(), true);
-            for (Timeline.Entry<StopLight> entry : timeline) {
-                targets2.add(new Stop(entry.getValue().getNumber(), entry.getValue().getRef(), query.getArrival().getPoint(), entry.getKey()));
-            }
-        }
-        //assert targets1.size() == targets2.size() : targets1 + "\n" + targets2;
-        if (targets2.isEmpty()) {
+        List<Stop> targets = fetchStops(timetable, query.getArrival().getPoint(), intervalArrival, false);
+        if (targets.isEmpty()) {
             return Optional.empty();
         }
-        targets2.forEach(algorithm::addTarget);
+        targets.forEach(algorithm::addTarget);
+        TransferBounds.TransitionsHeuristic transitionsHeuristic = timetable.transferBounds.towards(query.getArrival().getPoint());
+        if (transitionsHeuristic != null) {
+            algorithm.estimate(transitionsHeuristic);
+        }
+        if (query.getEngine() == SearchEngine.BIDIRECTIONAL) {
+            algorithm.prune(reachability(timetable, targets, intervalDeparture.getSince(), propertiesFilter.getMaxTransfers()));
+        }
         return Optional.of(algorithm);
     }
 
     /**
-     * Финальное построение маршрутов
+     * Обратный проход от конечных точек по шкалам прибытия.
+     * В раунде k просматриваются остановки, с которых до точки прибытия можно доехать с k пересадками,
+     * и по шкале прибытия на их станции находятся рейсы, с которых на них можно пересесть.
+     * Каждая остановка рейса просматривается не более одного раза.
      *
-     * @param algorithm       текущий алгоритм
-     * @param numberOfResults требуемое количество маршрутов
-     * @param handler         обработчик результатов выполнения алгоритма
-     * @return список полученных маршрутов
+     * @param targets           конечные точки
+     * @param earliest          самое раннее отправление
+     * @param maxTransfersCount максимальное количество пересадок
+     * @return достижимость точки прибытия
      */
-    private <R extends RouteBuilderResponse<S, F>, F extends RouteBuilderFilter<S>, S> List<S> buildRoutes(Algorithm algorithm, int numberOfResults, RouteBuilderResponseHandler<R, S, F> handler) {
-        List<S> offers = new ArrayList<>();
-        int found = 0;
-        Iterator<Path> pathIterator = algorithm.iterator();
-        Iterator<S> offerIterator = handler.getHandlingIterator(pathIterator);
-        while (found < numberOfResults && offerIterator.hasNext()) {
-            offers.add(offerIterator.next());
-            ++found;
+    @SuppressWarnings("unchecked")
+    private Reachability reachability(Timetable timetable, List<Stop> targets, Instant earliest, int maxTransfersCount) {
+        Reachability reachability = new Reachability(maxTransfersCount);
+        // новые остановки посадки [from, to) для каждого рейса
+        Map<Ref, int[]> boardings = new LinkedHashMap<>();
+        for (Stop target : targets) {
+            board(reachability, boardings, target.getRef(), target.getNumber(), 0);
         }
-        return offers;
+        for (int k = 0; k < maxTransfersCount && !boardings.isEmpty(); ++k) {
+            Map<Ref, int[]> nextBoardings = new LinkedHashMap<>();
+            for (Map.Entry<Ref, int[]> boarding : boardings.entrySet()) {
+                TransportRun model = timetable.run(boarding.getKey());
+                List<? extends Waypoint> waypoints = model.getWaypoints();
+                for (int j = boarding.getValue()[0]; j < boarding.getValue()[1]; ++j) {
+                    Waypoint w = waypoints.get(j);
+                    if (j != 0 && w.isNullStop() || w.getDeparture().isBefore(earliest)) {
+                        continue;
+                    }
+                    Instant minTime = w.getDeparture().minus(Duration.ofSeconds(config.getMaxTransferTime()));
+                    Instant maxTime = w.getDeparture().minus(Duration.ofSeconds(config.getMinTransferTime()));
+                    // прибытие хранится на странице дня отправления, поэтому берем на день больше
+                    List<SchedulePage> pages = fetchPages(timetable, w.getPoint(), minTime, maxTime.plus(Duration.ofDays(1)));
+                    for (SchedulePage page : pages) {
+                        Timeline.Cursor<Ref> cursor = page.getArrivalTimeline().range(minTime, maxTime);
+                        while (cursor.next()) {
+                            board(reachability, nextBoardings, cursor.run(), cursor.number(), k + 1);
+                        }
+                    }
+                }
+            }
+            boardings = nextBoardings;
+        }
+        return reachability;
     }
 
+    private void board(Reachability reachability, Map<Ref, int[]> boardings, Ref run, int number, int transfersCount) {
+        int previous = reachability.improve(run, number, transfersCount);
+        if (previous < number) {
+            // диапазоны одного рейса в раунде идут подряд
+            boardings.computeIfAbsent(run, ref -> new int[]{previous, previous})[1] = number;
+        }
+    }
+
+    /**
+     * Поиск маршрутов с постраничной выдачей.
+     * Поиск сохраняется, только если запрошена постраничная выдача: у запроса есть номер {@code query.getRequestId()}
+     * или запрошена не первая страница. Запрос с номером продолжает построение маршрутов поиска, сохраненного
+     * с тем же номером и теми же параметрами, иначе выполняется новый поиск. Поиску, сохраненному для запроса
+     * без номера, выдается новый номер. Номер сохраненного поиска возвращается в ответе, для остальных запросов - 0.
+     * Номера, выбранные клиентами, и выданные номера могут совпадать, но поиски с разными параметрами не смешиваются.
+     *
+     * @param query   запрос
+     * @param handler обработчик результатов выполнения алгоритма
+     * @return маршруты, начиная с {@code query.getResultPresentation().getOffset()}
+     */
     public <Q extends RouteBuilderQuery<Q, F, S>, R extends RouteBuilderResponse<S, F>, F extends RouteBuilderFilter<S>, S> R findRoutes(Q query, RouteBuilderResponseHandler<R, S, F> handler) {
         if (query.getResultPresentation().getNumberOfResult() < 0) {
             throw new InvalidNumberOfResultException("number of results can not be less than 0");
@@ -316,6 +1066,9 @@ public class RouteBuilder {
             throw new InvalidNumberOfResultException("current max number of results = " + maxNumberOfResult
                     + ", so " + query.getResultPresentation().getNumberOfResult() + " > " + maxNumberOfResult);
         }
+        if (query.getResultPresentation().getOffset() < 0) {
+            throw new InvalidNumberOfResultException("offset can not be less than 0");
+        }
         if (query.getResultPresentation().getNumberOfResult() == 0) {
             return handler.defaultResponse(Collections.emptyList(), Properties.empty(), 0);
         }
@@ -323,21 +1076,33 @@ public class RouteBuilder {
             log.info("RequestId = " + query.getRequestId());
             log.info("Thread = " + Thread.currentThread());
             //Visualizer.visualize(repository, "/tmp/fetch.dot");
-            Optional<Algorithm> optionalAlgorithm = getAlgorithm(query, handler);
-            if (optionalAlgorithm.isPresent()) {
-                Algorithm algorithm = optionalAlgorithm.get();
-                algorithm = algorithm.execute();
-
-                F newFilter = query.getFilter();
-                if (handler.isEmpty(newFilter)) {
-                    algorithm.buildProperties();
-                    newFilter = handler.handleProperties(algorithm.getProperties(), newFilter.getMaxTransfersCount(), newFilter.getRequiredQuantity());
-                }/**/
-
-                int required = query.getResultPresentation().getNumberOfResult();
-                return handler.handleResponse(buildRoutes(algorithm, required, handler), newFilter, 0);
-            } else {
-                return handler.handleResponse(Collections.emptyList(), query.getFilter(), 0);
+            Deadline deadline = Deadline.after(query.getTimeout());
+            int offset = query.getResultPresentation().getOffset();
+            int required = query.getResultPresentation().getNumberOfResult();
+            boolean paged = query.getRequestId() != 0 || offset > 0;
+            Session<S, F> session = paged ? findSession(query) : null;
+            if (session == null) {
+                long requestId = !paged ? 0 : query.getRequestId() != 0 ? query.getRequestId() : nextRequestId.incrementAndGet();
+                session = search(query, handler, deadline, offset + required, SessionKey.of(requestId, query));
+                if (session == null) {
+                    return handler.handleResponse(Collections.emptyList(), query.getFilter(), 0);
+                }
+            }
+            synchronized (session) {
+                session.until(deadline);
+                List<S> routes = session.page(offset, required, handler);
+                R response = handler.handleResponse(routes, session.filter, session.key.requestId);
+                response.setTruncated(session.isTruncated());
+                if (!paged) {
+                    return response;
+                }
+                if (session.isTruncated()) {
+                    // прерванный поиск неполон, следующие страницы строятся заново
+                    requests.remove(session.key);
+                } else {
+                    requests.put(session.key, session, session.getWeight());
+                }
+                return response;
             }
         } catch (Exception e) {
             log.error("RouteBuilderException", e);
@@ -345,8 +1110,205 @@ public class RouteBuilder {
         }
     }
 
-    @PostConstruct
-    private void prepare() {
-        requests = new LRUCache<>(config.getMaxCacheSize());
+    /**
+     * Новый поиск маршрутов
+     *
+     * @param query    запрос
+     * @param handler  обработчик результатов выполнения алгоритма
+     * @param deadline крайний срок
+     * @param required количество маршрутов, которое нужно построить сразу
+     * @param key      ключ поиска в кеше запросов
+     * @return поиск или null, если маршрутов заведомо нет
+     */
+    private <Q extends RouteBuilderQuery<Q, F, S>, R extends RouteBuilderResponse<S, F>, F extends RouteBuilderFilter<S>, S>
+    Session<S, F> search(Q query, RouteBuilderResponseHandler<R, S, F> handler, Deadline deadline, int required, SessionKey key) {
+        // поиск и все следующие страницы читают одну версию расписания
+        Timetable timetable = this.timetable;
+        ResultPresentation.SortOrder order = query.getResultPresentation().getSortOrder();
+        // множество Парето строится только просмотром таблицы перегонов
+        if (order == ResultPresentation.SortOrder.PARETO
+                || query.getEngine() == SearchEngine.CONNECTION_SCAN && ConnectionScan.supports(order)) {
+            Optional<ConnectionScan> optionalScan = getConnectionScan(query, handler, timetable);
+            if (!optionalScan.isPresent()) {
+                return null;
+            }
+            ConnectionScan scan = optionalScan.get().until(deadline);
+            Session<S, F> session = new Session<>(key, handler.getHandlingIterator(scan.iterator()));
+            session.scan = scan;
+            session.fill(required, handler);
+            F newFilter = query.getFilter();
+            if (handler.isEmpty(newFilter)) {
+                // свойства известны только для построенных маршрутов
+                newFilter = handler.handleProperties(scan.getProperties(), newFilter.getMaxTransfersCount(), newFilter.getRequiredQuantity());
+            }
+            session.filter = newFilter;
+            return session;
+        }
+        Optional<Algorithm> optionalAlgorithm = getAlgorithm(query, handler, timetable);
+        if (!optionalAlgorithm.isPresent()) {
+            return null;
+        }
+        Algorithm algorithm = optionalAlgorithm.get().until(deadline);
+        if (algorithm.isOrderedByTransfers()) {
+            // первые маршруты могут найтись без исследования уровней с большим количеством пересадок,
+            // остальные уровни раскрываются, только если маршрутов не хватит
+            algorithm.bounded(required);
+        }
+        algorithm.execute();
+        Session<S, F> session = new Session<>(key, handler.getHandlingIterator(algorithm.iterator()));
+        session.algorithm = algorithm;
+        session.fill(required, handler);
+
+        F newFilter = query.getFilter();
+        if (handler.isEmpty(newFilter)) {
+            // при ограниченном поиске свойства известны только для исследованных уровней
+            session.algorithm.buildProperties();
+            newFilter = handler.handleProperties(session.algorithm.getProperties(), newFilter.getMaxTransfersCount(), newFilter.getRequiredQuantity());
+        }/**/
+        session.filter = newFilter;
+        return session;
+    }
+
+    /**
+     * Сохраненный поиск с тем же номером и теми же параметрами, что и у запроса
+     */
+    @SuppressWarnings("unchecked")
+    private <S, F extends RouteBuilderFilter<S>> Session<S, F> findSession(RouteBuilderQuery<?, F, S> query) {
+        if (query.getRequestId() == 0) {
+            return null;
+        }
+        return (Session<S, F>) requests.get(SessionKey.of(query.getRequestId(), query));
+    }
+
+    /**
+     * Ключ сохраненного поиска: номер запроса и параметры поиска, номер страницы и ограничение времени не учитываются
+     */
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static final class SessionKey {
+        private final long requestId;
+        private final PointTimeInterval departure;
+        private final PointTimeInterval arrival;
+        private final Object filter;
+        private final ResultPresentation.SortOrder order;
+        private final ResultPresentation.SortDirection direction;
+        private final SearchEngine engine;
+
+        static SessionKey of(long requestId, RouteBuilderQuery<?, ?, ?> query) {
+            return new SessionKey(requestId, query.getDeparture(), query.getArrival(), query.getFilter(),
+                    query.getResultPresentation().getSortOrder(), query.getResultPresentation().getSortDirection(),
+                    query.getEngine());
+        }
+    }
+
+    /**
+     * Задержка рейса начиная с остановки с порядковым номером {@code number}
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Delay {
+        private final Ref<? extends TransportRun> run;
+        private final int number;
+        private final Duration delay;
+    }
+
+    /**
+     * Загрузчик рейсов, см. {@link #loader()}. Используется одним потоком
+     */
+    public class Loader {
+        private final List<TransportRun> runs = new ArrayList<>();
+
+        public void add(Collection<? extends TransportRun> batch) {
+            runs.addAll(batch);
+        }
+
+        /**
+         * @return количество накопленных рейсов
+         */
+        public int size() {
+            return runs.size();
+        }
+
+        /**
+         * Добавление накопленных рейсов в расписание одним обновлением
+         */
+        public void finish() {
+            if (!runs.isEmpty()) {
+                update(runs, Collections.emptyList(), Collections.emptyList());
+                runs.clear();
+            }
+        }
+    }
+
+    /**
+     * Поиск с постраничной выдачей: уже построенные маршруты и итератор для построения следующих
+     */
+    private static class Session<S, F extends RouteBuilderFilter<S>> {
+        private final SessionKey key;
+        private final List<S> routes = new ArrayList<>();
+        private Iterator<S> offers;
+        private F filter;
+        /**
+         * Исследованная сеть или просмотр таблицы перегонов
+         */
+        private Algorithm algorithm;
+        private ConnectionScan scan;
+
+        Session(SessionKey key, Iterator<S> offers) {
+            this.key = key;
+            this.offers = offers;
+        }
+
+        void until(Deadline deadline) {
+            if (algorithm != null) {
+                algorithm.until(deadline);
+            }
+            if (scan != null) {
+                scan.until(deadline);
+            }
+        }
+
+        /**
+         * Построение маршрутов, пока их не станет {@code count}
+         */
+        void fill(int count, RouteBuilderResponseHandler<?, S, F> handler) {
+            while (routes.size() < count) {
+                if (offers.hasNext()) {
+                    routes.add(offers.next());
+                } else if (algorithm != null && algorithm.isBounded() && !isTruncated()) {
+                    // маршруты исследованных уровней исчерпаны, с новым уровнем первыми выдаются те же маршруты
+                    offers = handler.getHandlingIterator(algorithm.deepen().iterator());
+                    for (int i = 0; i < routes.size() && offers.hasNext(); ++i) {
+                        offers.next();
+                    }
+                } else {
+                    break;
+                }
+            }
+        }
+
+        List<S> page(int offset, int count, RouteBuilderResponseHandler<?, S, F> handler) {
+            fill(offset + count, handler);
+            if (offset >= routes.size()) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<>(routes.subList(offset, Math.min(offset + count, routes.size())));
+        }
+
+        boolean isTruncated() {
+            return algorithm != null ? algorithm.isTruncated() : scan.isTruncated();
+        }
+
+        long getWeight() {
+            return algorithm != null ? algorithm.getWeight() : scan.getWeight();
+        }
+
+        /**
+         * @return может ли поиск вернуть маршрут по одному из рейсов
+         */
+        boolean touches(Collection<? extends Ref> runs) {
+            // просмотр таблицы перегонов и ограниченный поиск продолжаются по расписанию до изменения
+            return algorithm == null || algorithm.isBounded() || algorithm.touches(runs);
+        }
     }
 }
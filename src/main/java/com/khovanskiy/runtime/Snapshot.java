@@ -0,0 +1,985 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Carriage;
+import com.khovanskiy.model.CarriageType;
+import com.khovanskiy.model.CoupeCarriage;
+import com.khovanskiy.model.HighComfortCarriage;
+import com.khovanskiy.model.OpenPlanCarriage;
+import com.khovanskiy.model.Point;
+import com.khovanskiy.model.Properties;
+import com.khovanskiy.model.PropertiesSegmentTree;
+import com.khovanskiy.model.RailwayWaypoint;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.State;
+import com.khovanskiy.model.TrainRun;
+import com.khovanskiy.model.TransportRun;
+import com.khovanskiy.model.Waypoint;
+import com.khovanskiy.util.ChunkedHashMap;
+import com.khovanskiy.util.Idx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Двоичный снимок версии расписания: словарь точек, рейсы с маршрутными точками и свойствами, столбцы таблицы
+ * перегонов, страницы расписания, индекс пересадок и тарифы.
+ * <p>
+ * Снимок записывается после построения расписания и открывается отображением файла в память.
+ * Примитивные столбцы копируются из отображения целиком, без сортировок и группировок, а рейсы декодируются
+ * из отображения при первом обращении к ним, поэтому узел начинает обслуживать поиски сразу после открытия снимка.
+ * <p>
+ * Формат: заголовок с признаком, версией формата и смещениями разделов, затем разделы. Числа записываются
+ * в порядке байтов little-endian, строки - длиной и байтами UTF-8; имена классов, состояний и констант
+ * перечислений - номерами в словаре имен, который записывается последним разделом.
+ * Рейсы сохраняются с полями, которые использует поиск и тариф: вагоны сохраняются с номерами и типами,
+ * но без купе и мест, составы не сохраняются. Рейс с вагоном неизвестного класса в снимок не записывается.
+ *
+ * @author victor
+ */
+final class Snapshot {
+    private static final int MAGIC = 0x5354544B;
+    private static final int FORMAT = 3;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * Разделы снимка
+     */
+    private static final int POINTS = 0;
+    private static final int RUNS = 1;
+    private static final int RUN_INDEX = 2;
+    private static final int TIMETABLE = 3;
+    private static final int NAMES = 4;
+    private static final int SECTIONS = 5;
+    private static final int HEADER_SIZE = 8 + 8 * SECTIONS;
+
+    /**
+     * Шаг отображения файла: отображение одним буфером ограничено 2 ГБ, поэтому файл отображается сегментами,
+     * которые начинаются через каждый шаг и имеют длину почти в два шага. Значение, начинающееся внутри шага
+     * сегмента и меньшее шага, целиком лежит в этом сегменте; массивы читаются по сегментам.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_STEP = 1L << SEGMENT_SHIFT;
+
+    /**
+     * Признаки типов значений свойств
+     */
+    private static final byte NULL_VALUE = 0;
+    private static final byte ENUM_VALUE = 1;
+    private static final byte STRING_VALUE = 2;
+    private static final byte INTEGER_VALUE = 3;
+    private static final byte SERIALIZED_VALUE = 4;
+
+    private static final long NULL_INSTANT = Long.MIN_VALUE;
+
+    /**
+     * Классы вагонов, которые восстанавливаются при чтении снимка
+     */
+    private static final Set<Class<?>> CARRIAGE_CLASSES = new HashSet<>(Arrays.asList(
+            CoupeCarriage.class, OpenPlanCarriage.class, HighComfortCarriage.class));
+
+    private Snapshot() {
+    }
+
+    /**
+     * Запись снимка версии расписания. Снимок пишется во временный файл, который затем заменяет {@code file},
+     * поэтому узел, открывающий снимок одновременно с записью, получает старый или новый снимок целиком.
+     */
+    @SuppressWarnings("unchecked")
+    static void write(Timetable timetable, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             Writer out = new Writer(channel)) {
+            ConnectionTable table = timetable.connections;
+            // точки таблицы сохраняют свои номера, за ними идут точки остановок без стоянки
+            for (int pointId = 0; pointId < table.pointsCount(); ++pointId) {
+                out.pointId(table.point(pointId));
+            }
+            for (int runId = 0; runId < table.runsCount(); ++runId) {
+                if (table.isFree(runId)) {
+                    continue;
+                }
+                for (Waypoint<?, ?> waypoint : (List<Waypoint>) table.run(runId).getWaypoints()) {
+                    out.pointId(waypoint.getPoint());
+                }
+            }
+            out.section(POINTS);
+            out.writeInt(out.points.size());
+            for (Ref<? extends Point> point : out.points) {
+                out.writeRef(point);
+            }
+
+            // свободные номера удаленных рейсов сохраняются, чтобы номера остальных рейсов не изменились
+            out.section(RUNS);
+            long[] offsets = new long[table.runsCount()];
+            for (int runId = 0; runId < table.runsCount(); ++runId) {
+                offsets[runId] = -1;
+                if (!table.isFree(runId)) {
+                    offsets[runId] = out.position();
+                    out.writeRun(table.run(runId));
+                }
+            }
+            out.section(RUN_INDEX);
+            out.writeInt(offsets.length);
+            for (int runId = 0; runId < offsets.length; ++runId) {
+                out.writeLong(offsets[runId]);
+                out.writeRef(offsets[runId] == -1 ? null : table.run(runId).getId());
+            }
+
+            out.section(TIMETABLE);
+            timetable.write(out);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Открытие снимка
+     *
+     * @return версия расписания, столбцы которой скопированы из снимка, а рейсы читаются из отображения файла
+     */
+    static Timetable read(Path file, long minTransferTime, long maxTransferTime) throws IOException {
+        ByteBuffer[] segments;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            segments = new ByteBuffer[(int) Math.max(1, (size + SEGMENT_STEP - 1) >>> SEGMENT_SHIFT)];
+            for (int segment = 0; segment < segments.length; ++segment) {
+                long start = (long) segment << SEGMENT_SHIFT;
+                // отображения остаются доступными после закрытия канала
+                segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(size - start, 2 * SEGMENT_STEP - 1));
+            }
+        }
+        Reader in = new Reader(segments);
+        in.seek(POINTS);
+        int pointsCount = in.readInt();
+        List<Ref<? extends Point>> points = new ArrayList<>(pointsCount);
+        for (int i = 0; i < pointsCount; ++i) {
+            points.add(in.readRef());
+        }
+        in.points = points;
+
+        in.seek(RUN_INDEX);
+        int runsCount = in.readInt();
+        long[] offsets = new long[runsCount];
+        Ref[] refs = new Ref[runsCount];
+        ChunkedHashMap.Builder<Ref, Integer> runIds = ChunkedHashMap.<Ref, Integer>empty().builder();
+        for (int runId = 0; runId < runsCount; ++runId) {
+            offsets[runId] = in.readLong();
+            refs[runId] = in.readRef();
+            if (refs[runId] != null) {
+                runIds.put(refs[runId], runId);
+            }
+        }
+        in.runRefs = refs;
+
+        in.seek(TIMETABLE);
+        return Timetable.read(in, new MappedRuns(in, offsets, refs), runIds.build(), minTransferTime, maxTransferTime);
+    }
+
+    /**
+     * Тело самодостаточной записи
+     */
+    interface RecordBody {
+        void write(Writer out) throws IOException;
+    }
+
+    /**
+     * Кодирование самодостаточной записи, например записи журнала изменений: словарь имен, словарь точек и тело.
+     * Рейсы в теле записываются вместе с идентификаторами ({@link Writer#writeRunWithId}).
+     */
+    static ByteBuffer encodeRecord(RecordBody body) throws IOException {
+        Writer content = new Writer((Writer) null);
+        body.write(content);
+        // классы ссылок на точки попадают в словарь имен, поэтому словарь имен пишется последним
+        Writer points = new Writer(content);
+        points.writeInt(content.points.size());
+        for (Ref<? extends Point> point : content.points) {
+            points.writeRef(point);
+        }
+        Writer names = new Writer((Writer) null);
+        names.writeInt(content.names.size());
+        for (String name : content.names) {
+            names.writeString(name);
+        }
+        ByteBuffer record = ByteBuffer.allocate(names.buffer.position() + points.buffer.position()
+                + content.buffer.position());
+        for (Writer writer : Arrays.asList(names, points, content)) {
+            writer.buffer.flip();
+            record.put(writer.buffer);
+        }
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Чтение записи, закодированной {@link #encodeRecord}
+     *
+     * @return чтение тела записи
+     */
+    static Reader decodeRecord(ByteBuffer record) {
+        Reader in = new Reader(new ByteBuffer[]{record}, new long[0], new ArrayList<>());
+        int namesCount = in.readInt();
+        for (int i = 0; i < namesCount; ++i) {
+            in.names.add(in.readString());
+        }
+        int pointsCount = in.readInt();
+        List<Ref<? extends Point>> points = new ArrayList<>(pointsCount);
+        for (int i = 0; i < pointsCount; ++i) {
+            points.add(in.readRef());
+        }
+        in.points = points;
+        return in;
+    }
+
+    /**
+     * Запись снимка через буфер в канал или записи в память
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private ByteBuffer buffer;
+        private final long[] sections = new long[SECTIONS];
+        private final Map<String, Integer> nameIds;
+        private final List<String> names;
+        private final Map<Ref<? extends Point>, Integer> pointIds;
+        private final List<Ref<? extends Point>> points;
+
+        private Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(1 << 20).order(ORDER);
+            this.nameIds = new HashMap<>();
+            this.names = new ArrayList<>();
+            this.pointIds = new HashMap<>();
+            this.points = new ArrayList<>();
+            buffer.put(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Запись в память, буфер растет по мере записи
+         *
+         * @param dictionaries запись, словари имен и точек которой используются, или null для новых словарей
+         */
+        private Writer(Writer dictionaries) {
+            this.channel = null;
+            this.buffer = ByteBuffer.allocate(256).order(ORDER);
+            this.nameIds = dictionaries == null ? new HashMap<>() : dictionaries.nameIds;
+            this.names = dictionaries == null ? new ArrayList<>() : dictionaries.names;
+            this.pointIds = dictionaries == null ? new HashMap<>() : dictionaries.pointIds;
+            this.points = dictionaries == null ? new ArrayList<>() : dictionaries.points;
+        }
+
+        private long position() throws IOException {
+            return channel.position() + buffer.position();
+        }
+
+        private void section(int section) throws IOException {
+            sections[section] = position();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            if (channel != null) {
+                flush();
+                return;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).order(ORDER);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void writeByte(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void writeInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            ensure(8);
+            buffer.putDouble(value);
+        }
+
+        /**
+         * Запись первых {@code count} элементов массива
+         */
+        void writeLongs(long[] values, int count) throws IOException {
+            writeInt(count);
+            for (int i = 0; i < count; ++i) {
+                writeLong(values[i]);
+            }
+        }
+
+        void writeInts(int[] values, int count) throws IOException {
+            writeInt(count);
+            for (int i = 0; i < count; ++i) {
+                writeInt(values[i]);
+            }
+        }
+
+        /**
+         * Запись массива, который может отсутствовать
+         */
+        void writeNullableInts(int[] values) throws IOException {
+            if (values == null) {
+                writeInt(-1);
+            } else {
+                writeInts(values, values.length);
+            }
+        }
+
+        void writeNullableLongs(long[] values) throws IOException {
+            if (values == null) {
+                writeInt(-1);
+            } else {
+                writeLongs(values, values.length);
+            }
+        }
+
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeBytes(bytes);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeInt(bytes.length);
+            for (int offset = 0; offset < bytes.length; ) {
+                ensure(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        /**
+         * Запись повторяющегося имени номером в словаре имен
+         */
+        void writeName(String name) throws IOException {
+            if (name == null) {
+                writeInt(-1);
+                return;
+            }
+            Integer id = nameIds.get(name);
+            if (id == null) {
+                id = names.size();
+                names.add(name);
+                nameIds.put(name, id);
+            }
+            writeInt(id);
+        }
+
+        private void writeInstant(Instant instant) throws IOException {
+            if (instant == null) {
+                writeLong(NULL_INSTANT);
+                return;
+            }
+            writeLong(instant.getEpochSecond());
+            writeInt(instant.getNano());
+        }
+
+        /**
+         * Запись ссылки: класса и единственного строкового поля
+         */
+        void writeRef(Ref<?> ref) throws IOException {
+            if (ref == null) {
+                writeInt(-1);
+                return;
+            }
+            RefType type = RefType.of(ref.getClass());
+            writeName(ref.getClass().getName());
+            writeString(type.value(ref));
+        }
+
+        /**
+         * @return номер точки в словаре точек снимка
+         */
+        private int pointId(Ref<? extends Point> point) {
+            Integer id = pointIds.get(point);
+            if (id == null) {
+                id = points.size();
+                points.add(point);
+                pointIds.put(point, id);
+            }
+            return id;
+        }
+
+        /**
+         * Запись рейса вместе с идентификатором
+         */
+        void writeRunWithId(TransportRun<?, ?, ?> run) throws IOException {
+            writeRef(run.getId());
+            writeRun(run);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeRun(TransportRun<?, ?, ?> run) throws IOException {
+            if (!(run instanceof TrainRun)) {
+                throw new IllegalArgumentException("Run " + run.getId() + " of type " + run.getClass().getName()
+                        + " is not supported by snapshot");
+            }
+            TrainRun trainRun = (TrainRun) run;
+            writeString(trainRun.getName());
+            writeName(trainRun.getState() == null ? null : trainRun.getState().name());
+            writeRef(trainRun.getCarrierId());
+            writeInt(trainRun.getSaleDepth());
+            writeCarriages(trainRun.getCarriages());
+            List<RailwayWaypoint> waypoints = trainRun.getWaypoints();
+            writeInt(waypoints.size());
+            for (RailwayWaypoint waypoint : waypoints) {
+                writeInt(waypoint.getIdx() == null ? -1 : waypoint.getIdx().getNumber());
+                writeInt(pointId(waypoint.getPoint()));
+                writeInstant(waypoint.getArrival());
+                writeInstant(waypoint.getDeparture());
+                writeDouble(waypoint.getDistance());
+            }
+            List<Properties> leaves = trainRun.getProperties().getCollection();
+            writeInt(leaves.size());
+            for (Properties properties : leaves) {
+                writeProperties(properties);
+            }
+        }
+
+        /**
+         * Запись номеров и типов вагонов; купе и места не записываются
+         */
+        private void writeCarriages(List<Carriage> carriages) throws IOException {
+            if (carriages == null) {
+                writeInt(-1);
+                return;
+            }
+            writeInt(carriages.size());
+            for (Carriage<?> carriage : carriages) {
+                if (!CARRIAGE_CLASSES.contains(carriage.getClass())) {
+                    throw new IllegalArgumentException("Carriage " + carriage.getCarriageNumber() + " of type "
+                            + carriage.getClass().getName() + " is not supported by snapshot");
+                }
+                writeName(carriage.getClass().getName());
+                writeInt(carriage.getIdx() == null ? -1 : carriage.getIdx().getNumber());
+                writeString(carriage.getCarriageNumber());
+                CarriageType type = carriage.getMainType();
+                writeRef(type == null ? null : type.getId());
+                if (type != null) {
+                    writeString(type.getCode());
+                    writeString(type.getName());
+                }
+            }
+        }
+
+        private void writeProperties(Properties properties) throws IOException {
+            Map<Class<?>, Map<Object, Integer>> data = properties.getData();
+            writeInt(data.size());
+            for (Map.Entry<Class<?>, Map<Object, Integer>> type : data.entrySet()) {
+                writeName(type.getKey().getName());
+                writeInt(type.getValue().size());
+                for (Map.Entry<Object, Integer> value : type.getValue().entrySet()) {
+                    writeValue(value.getKey());
+                    writeInt(value.getValue());
+                }
+            }
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                writeByte(NULL_VALUE);
+            } else if (value instanceof Enum) {
+                writeByte(ENUM_VALUE);
+                writeName(((Enum) value).getDeclaringClass().getName());
+                writeName(((Enum) value).name());
+            } else if (value instanceof String) {
+                writeByte(STRING_VALUE);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                writeByte(INTEGER_VALUE);
+                writeInt((Integer) value);
+            } else if (value instanceof Serializable) {
+                writeByte(SERIALIZED_VALUE);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(value);
+                }
+                writeBytes(bytes.toByteArray());
+            } else {
+                throw new IllegalArgumentException("Property value " + value + " is not supported by snapshot");
+            }
+        }
+
+        /**
+         * Запись словаря имен и заголовка
+         */
+        @Override
+        public void close() throws IOException {
+            section(NAMES);
+            writeInt(names.size());
+            for (String name : names) {
+                writeString(name);
+            }
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+            header.putInt(MAGIC).putInt(FORMAT);
+            for (long section : sections) {
+                header.putLong(section);
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Чтение снимка из отображения файла. Позиция чтения - смещение от начала файла; перед чтением значения
+     * за шагом текущего сегмента чтение переходит в сегмент, в шаге которого лежит эта позиция.
+     */
+    static final class Reader {
+        private final ByteBuffer[] segments;
+        private final long[] sections;
+        private final List<String> names;
+        private List<Ref<? extends Point>> points = Collections.emptyList();
+        private Ref[] runRefs = new Ref[0];
+        /**
+         * Текущий сегмент и смещение его начала в файле
+         */
+        private ByteBuffer buffer;
+        private long base;
+
+        private Reader(ByteBuffer[] segments) throws IOException {
+            this(segments, new long[SECTIONS], new ArrayList<>());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a timetable snapshot");
+            }
+            if (buffer.getInt(4) != FORMAT) {
+                throw new IOException("Unsupported snapshot format " + buffer.getInt(4));
+            }
+            for (int section = 0; section < SECTIONS; ++section) {
+                sections[section] = buffer.getLong(8 + 8 * section);
+            }
+            seek(NAMES);
+            int count = readInt();
+            for (int i = 0; i < count; ++i) {
+                names.add(readString());
+            }
+        }
+
+        private Reader(ByteBuffer[] segments, long[] sections, List<String> names) {
+            this.segments = segments;
+            this.sections = sections;
+            this.names = names;
+            moveTo(0);
+        }
+
+        private Reader(Reader reader, long position) {
+            this.segments = reader.segments;
+            this.sections = reader.sections;
+            this.names = reader.names;
+            this.points = reader.points;
+            this.runRefs = reader.runRefs;
+            moveTo(position);
+        }
+
+        private void seek(int section) {
+            moveTo(sections[section]);
+        }
+
+        private void moveTo(long position) {
+            int segment = (int) (position >>> SEGMENT_SHIFT);
+            base = (long) segment << SEGMENT_SHIFT;
+            buffer = segments[segment].duplicate().order(ORDER);
+            buffer.position((int) (position - base));
+        }
+
+        /**
+         * @return сегмент, в котором лежит следующее значение
+         */
+        private ByteBuffer next() {
+            if (buffer.position() >= SEGMENT_STEP && segments.length > 1) {
+                moveTo(base + buffer.position());
+            }
+            return buffer;
+        }
+
+        byte readByte() {
+            return next().get();
+        }
+
+        int readInt() {
+            return next().getInt();
+        }
+
+        long readLong() {
+            return next().getLong();
+        }
+
+        double readDouble() {
+            return next().getDouble();
+        }
+
+        /**
+         * Чтение массива копированием из отображения, по одному копированию на сегмент
+         */
+        long[] readLongs() {
+            long[] values = new long[readInt()];
+            for (int offset = 0; offset < values.length; ) {
+                ByteBuffer current = next();
+                int length = Math.max(1, Math.min(values.length - offset, current.remaining() / 8));
+                current.asLongBuffer().get(values, offset, length);
+                current.position(current.position() + 8 * length);
+                offset += length;
+            }
+            return values;
+        }
+
+        int[] readInts() {
+            int[] values = new int[readInt()];
+            for (int offset = 0; offset < values.length; ) {
+                ByteBuffer current = next();
+                int length = Math.max(1, Math.min(values.length - offset, current.remaining() / 4));
+                current.asIntBuffer().get(values, offset, length);
+                current.position(current.position() + 4 * length);
+                offset += length;
+            }
+            return values;
+        }
+
+        int[] readNullableInts() {
+            ByteBuffer current = next();
+            int count = current.getInt(current.position());
+            if (count == -1) {
+                readInt();
+                return null;
+            }
+            return readInts();
+        }
+
+        long[] readNullableLongs() {
+            ByteBuffer current = next();
+            int count = current.getInt(current.position());
+            if (count == -1) {
+                readInt();
+                return null;
+            }
+            return readLongs();
+        }
+
+        String readString() {
+            byte[] bytes = readBytes();
+            return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private byte[] readBytes() {
+            int length = readInt();
+            if (length == -1) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            for (int offset = 0; offset < length; ) {
+                ByteBuffer current = next();
+                int count = Math.max(1, Math.min(length - offset, current.remaining()));
+                current.get(bytes, offset, count);
+                offset += count;
+            }
+            return bytes;
+        }
+
+        String readName() {
+            int id = readInt();
+            return id == -1 ? null : names.get(id);
+        }
+
+        private Instant readInstant() {
+            long seconds = readLong();
+            if (seconds == NULL_INSTANT) {
+                return null;
+            }
+            return Instant.ofEpochSecond(seconds, readInt());
+        }
+
+        @SuppressWarnings("unchecked")
+        <R extends Ref<?>> R readRef() {
+            String type = readName();
+            if (type == null) {
+                return null;
+            }
+            return (R) RefType.of(type).create(readString());
+        }
+
+        /**
+         * @return точка по номеру в словаре точек снимка
+         */
+        Ref<? extends Point> point(int pointId) {
+            return points.get(pointId);
+        }
+
+        /**
+         * @return ссылка на рейс по номеру без декодирования рейса
+         */
+        Ref<?> runRef(int runId) {
+            return runRefs[runId];
+        }
+
+        /**
+         * Чтение рейса, записанного {@link Writer#writeRunWithId}
+         */
+        TransportRun<?, ?, ?> readRunWithId() {
+            return readRun(readRef());
+        }
+
+        @SuppressWarnings("unchecked")
+        private TransportRun<?, ?, ?> readRun(Ref id) {
+            String name = readString();
+            String state = readName();
+            Ref carrierId = readRef();
+            int saleDepth = readInt();
+            List<Carriage> carriages = readCarriages();
+            int count = readInt();
+            List<RailwayWaypoint> waypoints = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                int idx = readInt();
+                Ref point = points.get(readInt());
+                Instant arrival = readInstant();
+                Instant departure = readInstant();
+                double distance = readDouble();
+                waypoints.add(new RailwayWaypoint(idx == -1 ? null : new Idx<>(idx), point, arrival, departure, null, distance));
+            }
+            TrainRun run = new TrainRun(id, name, waypoints);
+            run.setState(state == null ? null : State.valueOf(state));
+            run.fillRailwayRun(run, carrierId, saleDepth, carriages);
+            int leavesCount = readInt();
+            if (leavesCount > 0) {
+                List<Properties> leaves = new ArrayList<>(leavesCount);
+                for (int i = 0; i < leavesCount; ++i) {
+                    leaves.add(readProperties());
+                }
+                run.setProperties(new PropertiesSegmentTree(leaves, PropertiesSegmentTree.PropertiesBiFunction.Min,
+                        Properties.empty()));
+            }
+            return run;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<Carriage> readCarriages() {
+            int count = readInt();
+            if (count == -1) {
+                return null;
+            }
+            List<Carriage> carriages = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                String type = readName();
+                int number = readInt();
+                Idx idx = number == -1 ? null : new Idx<>(number);
+                String carriageNumber = readString();
+                CarriageType.Id typeId = readRef();
+                CarriageType mainType = typeId == null ? null : new CarriageType(typeId, readString(), readString());
+                if (type.equals(CoupeCarriage.class.getName())) {
+                    carriages.add(new CoupeCarriage(idx, carriageNumber, mainType, new ArrayList<>()));
+                } else if (type.equals(OpenPlanCarriage.class.getName())) {
+                    carriages.add(new OpenPlanCarriage(idx, carriageNumber, mainType, new ArrayList<>()));
+                } else if (type.equals(HighComfortCarriage.class.getName())) {
+                    carriages.add(new HighComfortCarriage(idx, carriageNumber, mainType, new ArrayList<>()));
+                } else {
+                    throw new IllegalStateException("Unknown carriage class " + type + " in snapshot");
+                }
+            }
+            return carriages;
+        }
+
+        private Properties readProperties() {
+            int typesCount = readInt();
+            if (typesCount == 0) {
+                return Properties.empty();
+            }
+            Map<Class<?>, Map<Object, Integer>> data = new HashMap<>();
+            for (int i = 0; i < typesCount; ++i) {
+                Class<?> type = classForName(readName());
+                int valuesCount = readInt();
+                Map<Object, Integer> values = new HashMap<>();
+                for (int j = 0; j < valuesCount; ++j) {
+                    Object value = readValue();
+                    values.put(value, readInt());
+                }
+                data.put(type, values);
+            }
+            return new Properties(data);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readValue() {
+            byte tag = readByte();
+            switch (tag) {
+                case NULL_VALUE:
+                    return null;
+                case ENUM_VALUE:
+                    return Enum.valueOf((Class<Enum>) classForName(readName()), readName());
+                case STRING_VALUE:
+                    return readString();
+                case INTEGER_VALUE:
+                    return readInt();
+                case SERIALIZED_VALUE:
+                    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(readBytes()))) {
+                        return in.readObject();
+                    } catch (IOException | ClassNotFoundException e) {
+                        throw new IllegalStateException("Broken property value in snapshot", e);
+                    }
+                default:
+                    throw new IllegalStateException("Unknown property value tag " + tag);
+            }
+        }
+    }
+
+    /**
+     * Рейсы снимка по номерам, null для свободных номеров. Рейс декодируется из отображения при первом обращении
+     * и запоминается.
+     */
+    private static final class MappedRuns extends AbstractList<TransportRun> implements RandomAccess {
+        private final Reader reader;
+        private final long[] offsets;
+        private final Ref<?>[] refs;
+        private final AtomicReferenceArray<TransportRun> runs;
+
+        private MappedRuns(Reader reader, long[] offsets, Ref<?>[] refs) {
+            this.reader = reader;
+            this.offsets = offsets;
+            this.refs = refs;
+            this.runs = new AtomicReferenceArray<>(offsets.length);
+        }
+
+        @Override
+        public TransportRun get(int runId) {
+            TransportRun<?, ?, ?> run = runs.get(runId);
+            if (run != null || offsets[runId] == -1) {
+                return run;
+            }
+            run = new Reader(reader, offsets[runId]).readRun(refs[runId]);
+            // поиски, одновременно декодирующие рейс, должны получить один и тот же объект
+            return runs.compareAndSet(runId, null, run) ? run : runs.get(runId);
+        }
+
+        @Override
+        public int size() {
+            return offsets.length;
+        }
+    }
+
+    private static Class<?> classForName(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Unknown class " + name + " in snapshot", e);
+        }
+    }
+
+    /**
+     * Ссылка с единственным строковым полем и конструктором от него
+     */
+    private static final class RefType {
+        private static final Map<String, RefType> BY_NAME = new ConcurrentHashMap<>();
+        private static final ClassValue<RefType> BY_CLASS = new ClassValue<RefType>() {
+            @Override
+            protected RefType computeValue(Class<?> type) {
+                Field field = null;
+                for (Field declared : type.getDeclaredFields()) {
+                    if (Modifier.isStatic(declared.getModifiers())) {
+                        continue;
+                    }
+                    if (field != null || declared.getType() != String.class) {
+                        throw new IllegalArgumentException("Ref " + type.getName() + " is not supported by snapshot");
+                    }
+                    field = declared;
+                }
+                if (field == null) {
+                    throw new IllegalArgumentException("Ref " + type.getName() + " is not supported by snapshot");
+                }
+                try {
+                    Constructor<?> constructor = type.getDeclaredConstructor(String.class);
+                    field.setAccessible(true);
+                    constructor.setAccessible(true);
+                    return new RefType(field, constructor);
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalArgumentException("Ref " + type.getName() + " is not supported by snapshot", e);
+                }
+            }
+        };
+
+        private final Field field;
+        private final Constructor<?> constructor;
+
+        private RefType(Field field, Constructor<?> constructor) {
+            this.field = field;
+            this.constructor = constructor;
+        }
+
+        static RefType of(Class<?> type) {
+            return BY_CLASS.get(type);
+        }
+
+        static RefType of(String name) {
+            return BY_NAME.computeIfAbsent(name, key -> of(classForName(key)));
+        }
+
+        String value(Object ref) {
+            try {
+                return (String) field.get(ref);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object create(String value) {
+            try {
+                return constructor.newInstance(value);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Can not create ref " + constructor.getDeclaringClass().getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.Stop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Плотная нумерация остановок, обнаруженных в ходе поиска.
+ * Номер выдается при первом обращении к остановке и дальше используется как индекс в массивах состояния.
+ *
+ * @author victor
+ */
+class StopIndex {
+    private static final int NONE = -1;
+
+    /**
+     * Первый номер остановки для каждого порядкового номера на рейсе
+     */
+    private final Map<Ref, int[]> runs = new HashMap<>();
+    /**
+     * Следующий номер с тем же рейсом и порядковым номером (остановки прибытия и отправления различаются временем)
+     */
+    private int[] next = new int[16];
+    private final List<Stop<?, ?>> stops = new ArrayList<>();
+
+    /**
+     * Последний запрошенный рейс, т.к. соседние запросы обычно относятся к одному рейсу
+     */
+    private Ref<?> lastRef;
+    private int[] lastSlots;
+
+    /**
+     * Возвращает номер остановки, при необходимости выдавая новый
+     *
+     * @param stop остановка
+     * @return номер остановки
+     */
+    public int add(Stop<?, ?> stop) {
+        int[] slots = slots(stop.getRef(), stop.getNumber() + 1);
+        int id = find(slots, stop);
+        if (id != NONE) {
+            return id;
+        }
+        id = stops.size();
+        stops.add(stop);
+        if (id == next.length) {
+            next = Arrays.copyOf(next, id * 2);
+        }
+        next[id] = slots[stop.getNumber()] - 1;
+        slots[stop.getNumber()] = id + 1;
+        return id;
+    }
+
+    /**
+     * @param stop остановка
+     * @return номер остановки или -1, если остановка еще не встречалась
+     */
+    public int find(Stop<?, ?> stop) {
+        int[] slots = slots(stop.getRef(), 0);
+        if (slots == null || stop.getNumber() >= slots.length) {
+            return NONE;
+        }
+        return find(slots, stop);
+    }
+
+    /**
+     * @return встречались ли остановки рейса
+     */
+    public boolean contains(Ref<?> ref) {
+        return runs.containsKey(ref);
+    }
+
+    public Stop<?, ?> get(int id) {
+        return stops.get(id);
+    }
+
+    public int size() {
+        return stops.size();
+    }
+
+    private int find(int[] slots, Stop<?, ?> stop) {
+        for (int id = slots[stop.getNumber()] - 1; id != NONE; id = next[id]) {
+            Stop<?, ?> other = stops.get(id);
+            if (other.getTime().equals(stop.getTime()) && other.getPoint().equals(stop.getPoint())) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private int[] slots(Ref<?> ref, int minLength) {
+        int[] slots;
+        if (ref == lastRef) {
+            slots = lastSlots;
+        } else {
+            slots = runs.get(ref);
+            if (slots == null && minLength == 0) {
+                return null;
+            }
+        }
+        if (slots == null || slots.length < minLength) {
+            slots = slots == null ? new int[Math.max(minLength, 8)] : Arrays.copyOf(slots, Math.max(minLength, slots.length * 2));
+            runs.put(ref, slots);
+        }
+        lastRef = ref;
+        lastSlots = slots;
+        return slots;
+    }
+}
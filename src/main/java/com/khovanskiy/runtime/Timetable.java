@@ -0,0 +1,188 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Point;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.SchedulePage;
+import com.khovanskiy.model.TransportRun;
+import com.khovanskiy.util.ChunkedHashMap;
+import com.khovanskiy.util.ChunkedList;
+import com.khovanskiy.util.Timeline;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Версия расписания: таблица перегонов, индекс пересадок, оценки количества пересадок, тарифы и страницы расписания.
+ * Версия неизменяема. Обновление строит следующую версию, разделяющую с текущей неизмененные страницы и рейсы,
+ * и публикует ее одной записью, поэтому поиск, закрепивший версию в начале запроса, не видит частично примененных
+ * изменений и не блокирует обновление.
+ *
+ * @author victor
+ */
+class Timetable {
+    final long version;
+    final ConnectionTable connections;
+    final TransferIndex transfers;
+    final TransferBounds transferBounds;
+    final FareTable fares;
+    /**
+     * Страницы расписания по номерам точек таблицы перегонов и дням; отображения не изменяются после публикации
+     */
+    private final ChunkedList<Map<Long, SchedulePage>> pages;
+
+    Timetable(long minTransferTime, long maxTransferTime) {
+        this(0, ConnectionTable.EMPTY, new TransferIndex(minTransferTime, maxTransferTime), new FareTable(new FareModel()),
+                ChunkedList.empty());
+    }
+
+    private Timetable(long version, ConnectionTable connections, TransferIndex transfers, FareTable fares,
+                      ChunkedList<Map<Long, SchedulePage>> pages) {
+        this(version, connections, transfers, new TransferBounds(connections, transfers), fares, pages);
+    }
+
+    private Timetable(long version, ConnectionTable connections, TransferIndex transfers, TransferBounds transferBounds,
+                      FareTable fares, ChunkedList<Map<Long, SchedulePage>> pages) {
+        this.version = version;
+        this.connections = connections;
+        this.transfers = transfers;
+        this.transferBounds = transferBounds;
+        this.fares = fares;
+        this.pages = pages;
+    }
+
+    /**
+     * Построение следующей версии
+     *
+     * @param patternsChanged изменились ли последовательности остановок рейсов; если нет, оценки количества пересадок
+     *                        и их вычисленные строки разделяются с текущей версией, т.к. не зависят от времени
+     * @param changedPages    перестроенные страницы по точкам и дням, null для страниц, на которых не осталось событий;
+     *                        остальные страницы разделяются с текущей версией
+     * @return новая версия
+     */
+    Timetable next(ConnectionTable connections, TransferIndex transfers, boolean patternsChanged, FareTable fares,
+                   Map<Ref, Map<Long, SchedulePage>> changedPages) {
+        ChunkedList.Builder<Map<Long, SchedulePage>> newPages = pages.builder();
+        while (newPages.size() < connections.pointsCount()) {
+            newPages.add(Collections.emptyMap());
+        }
+        for (Map.Entry<Ref, Map<Long, SchedulePage>> entry : changedPages.entrySet()) {
+            int pointId = connections.pointId(entry.getKey());
+            Map<Long, SchedulePage> days = new HashMap<>(newPages.get(pointId));
+            entry.getValue().forEach((day, page) -> {
+                if (page != null) {
+                    days.put(day, page);
+                } else {
+                    days.remove(day);
+                }
+            });
+            newPages.set(pointId, days);
+        }
+        TransferBounds bounds = patternsChanged ? new TransferBounds(connections, transfers) : transferBounds;
+        return new Timetable(version + 1, connections, transfers, bounds, fares, newPages.build());
+    }
+
+    /**
+     * Запись версии в снимок. События страниц записываются по столбцам с номерами рейсов таблицы перегонов.
+     */
+    void write(Snapshot.Writer out) throws IOException {
+        out.writeLong(version);
+        connections.write(out);
+        transfers.write(out);
+        fares.write(out);
+        out.writeInt(pages.size());
+        for (int pointId = 0; pointId < pages.size(); ++pointId) {
+            Map<Long, SchedulePage> days = pages.get(pointId);
+            out.writeInt(days.size());
+            for (Map.Entry<Long, SchedulePage> day : days.entrySet()) {
+                out.writeLong(day.getKey());
+                writeTimeline(out, day.getValue().getArrivalTimeline());
+                writeTimeline(out, day.getValue().getDepartureTimeline());
+            }
+        }
+    }
+
+    /**
+     * Запись шкалы: словарь номеров рейсов шкалы и столбцы событий с номерами рейсов в этом словаре
+     */
+    private void writeTimeline(Snapshot.Writer out, Timeline<Ref> timeline) throws IOException {
+        long[] times = new long[timeline.size()];
+        int[] runs = new int[times.length];
+        int[] numbers = new int[times.length];
+        Map<Ref, Integer> dictionary = new LinkedHashMap<>();
+        Timeline.Cursor<Ref> cursor = timeline.range(Long.MIN_VALUE, Long.MAX_VALUE);
+        for (int i = 0; cursor.next(); ++i) {
+            times[i] = cursor.seconds();
+            runs[i] = dictionary.computeIfAbsent(cursor.run(), run -> dictionary.size());
+            numbers[i] = cursor.number();
+        }
+        int[] runIds = new int[dictionary.size()];
+        dictionary.forEach((run, id) -> runIds[id] = connections.runId(run));
+        out.writeInts(runIds, runIds.length);
+        out.writeLongs(times, times.length);
+        out.writeInts(runs, runs.length);
+        out.writeInts(numbers, numbers.length);
+    }
+
+    /**
+     * Чтение версии из снимка. Индекс пересадок и тарифы читаются из снимка, строки оценок количества пересадок
+     * вычисляются только по запросу.
+     *
+     * @param runs   рейсы снимка по номерам, null для свободных номеров
+     * @param runIds номера рейсов
+     */
+    static Timetable read(Snapshot.Reader in, List<TransportRun> runs, ChunkedHashMap<Ref, Integer> runIds,
+                          long minTransferTime, long maxTransferTime) throws IOException {
+        long version = in.readLong();
+        ConnectionTable connections = ConnectionTable.read(in, runs, runIds);
+        TransferIndex transfers = TransferIndex.read(in, connections, minTransferTime, maxTransferTime);
+        FareTable fares = FareTable.read(in, new FareModel(), connections);
+        int pointsCount = in.readInt();
+        ChunkedList.Builder<Map<Long, SchedulePage>> pages = ChunkedList.<Map<Long, SchedulePage>>empty().builder();
+        for (int pointId = 0; pointId < pointsCount; ++pointId) {
+            int daysCount = in.readInt();
+            Map<Long, SchedulePage> days = new HashMap<>(daysCount * 2);
+            for (int i = 0; i < daysCount; ++i) {
+                long day = in.readLong();
+                SchedulePage page = new SchedulePage();
+                page.setId(new SchedulePage.Id(connections.point(pointId).toString(), day));
+                page.setArrivalTimeline(readTimeline(in));
+                page.setDepartureTimeline(readTimeline(in));
+                days.put(day, page);
+            }
+            pages.add(days);
+        }
+        return new Timetable(version, connections, transfers, fares, pages.build());
+    }
+
+    private static Timeline<Ref> readTimeline(Snapshot.Reader in) {
+        int[] runIds = in.readInts();
+        Ref[] dictionary = new Ref[runIds.length];
+        for (int i = 0; i < runIds.length; ++i) {
+            dictionary[i] = in.runRef(runIds[i]);
+        }
+        return Timeline.ofSorted(in.readLongs(), in.readInts(), in.readInts(), dictionary);
+    }
+
+    /**
+     * @return страница расписания точки за день или null
+     */
+    SchedulePage page(Ref<? extends Point> point, long day) {
+        int pointId = connections.pointId(point);
+        if (pointId == -1 || pointId >= pages.size()) {
+            return null;
+        }
+        return pages.get(pointId).get(day);
+    }
+
+    /**
+     * @return версия рейса в этой версии расписания или null, если рейса нет
+     */
+    TransportRun<?, ?, ?> run(Ref<?> ref) {
+        int runId = connections.runId(ref);
+        return runId == -1 ? null : connections.run(runId);
+    }
+}
@@ -0,0 +1,139 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Point;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.Stop;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Таблица минимального количества поездок между станциями без учета времени.
+ * Остановки рейсов на каждой точке берутся из прибытий индекса пересадок, поэтому таблица не требует построения
+ * и создается заново при изменении последовательностей остановок рейсов.
+ * Строка таблицы для точки прибытия вычисляется обратным поиском в ширину при первом запросе и кешируется
+ * до следующего изменения.
+ * <p>
+ * Количество поездок не зависит от времени и направления пересадок, поэтому оно не превосходит
+ * количества поездок любого реального маршрута и дает нижнюю оценку количества пересадок.
+ *
+ * @author victor
+ */
+class TransferBounds {
+    /**
+     * Станция недостижима
+     */
+    static final byte UNREACHABLE = Byte.MAX_VALUE;
+
+    private final ConnectionTable table;
+    /**
+     * Индекс пересадок той же версии расписания: остановки рейсов с предыдущими точками - прибытия в точках
+     */
+    private final TransferIndex transfers;
+    /**
+     * Количество поездок до точки прибытия для каждой точки, по номеру точки прибытия
+     */
+    private final Map<Integer, byte[]> rides = new ConcurrentHashMap<>();
+
+    TransferBounds(ConnectionTable table, TransferIndex transfers) {
+        this.table = table;
+        this.transfers = transfers;
+    }
+
+    /**
+     * Оценка количества пересадок до точки прибытия. Находясь на остановке рейса, пассажир может выйти
+     * на ней или на любой следующей остановке, поэтому оценка - минимум количества поездок по оставшимся остановкам рейса.
+     * Оценки для рейса вычисляются при первом обращении.
+     *
+     * @param arrival точка прибытия
+     * @return оценка или null, если точка прибытия отсутствует в расписании
+     */
+    TransitionsHeuristic towards(Ref<? extends Point> arrival) {
+        int target = table.pointId(arrival);
+        if (target == -1) {
+            return null;
+        }
+        byte[] row = rides.computeIfAbsent(target, this::rides);
+        AtomicReferenceArray<byte[]> bounds = new AtomicReferenceArray<>(table.runsCount());
+        return stop -> {
+            int run = table.runId(stop.getRef());
+            if (run == -1) {
+                return 0;
+            }
+            byte[] runBounds = bounds.get(run);
+            if (runBounds == null) {
+                runBounds = bounds(row, run);
+                bounds.set(run, runBounds);
+            }
+            return runBounds[stop.getNumber()];
+        };
+    }
+
+    /**
+     * Обратный поиск в ширину от точки прибытия. В раунде r находятся точки, с которых можно доехать
+     * до точек раунда r - 1 одним рейсом. Для каждого рейса запоминается наибольший просмотренный номер остановки,
+     * поэтому каждая остановка просматривается не более одного раза.
+     *
+     * @param target номер точки прибытия
+     * @return количество поездок для каждой точки
+     */
+    private byte[] rides(int target) {
+        byte[] row = new byte[table.pointsCount()];
+        Arrays.fill(row, UNREACHABLE);
+        row[target] = 0;
+        int[] scanned = new int[table.runsCount()];
+        int[] frontier = {target};
+        int frontierSize = 1;
+        for (int r = 1; frontierSize > 0 && r < UNREACHABLE; ++r) {
+            int[] nextFrontier = new int[16];
+            int nextFrontierSize = 0;
+            for (int i = 0; i < frontierSize; ++i) {
+                TransferIndex.Station station = transfers.pointStation(frontier[i]);
+                for (int k = 0; k < station.arrivalsCount; ++k) {
+                    int run = station.arrivalRuns[k];
+                    int[] points = table.runPoints(run);
+                    for (int number = scanned[run]; number < station.arrivalNumbers[k]; ++number) {
+                        int previous = points[number];
+                        if (previous != -1 && row[previous] == UNREACHABLE) {
+                            row[previous] = (byte) r;
+                            if (nextFrontierSize == nextFrontier.length) {
+                                nextFrontier = Arrays.copyOf(nextFrontier, nextFrontierSize * 2);
+                            }
+                            nextFrontier[nextFrontierSize++] = previous;
+                        }
+                    }
+                    scanned[run] = Math.max(scanned[run], station.arrivalNumbers[k]);
+                }
+            }
+            frontier = nextFrontier;
+            frontierSize = nextFrontierSize;
+        }
+        return row;
+    }
+
+    /**
+     * Оценки для всех остановок рейса: минимум количества поездок по этой и следующим остановкам
+     */
+    private byte[] bounds(byte[] row, int run) {
+        int[] points = table.runPoints(run);
+        byte[] bounds = new byte[points.length];
+        byte min = UNREACHABLE;
+        for (int number = points.length - 1; number >= 0; --number) {
+            if (points[number] != -1 && row[points[number]] < min) {
+                min = row[points[number]];
+            }
+            bounds[number] = min;
+        }
+        return bounds;
+    }
+
+    /**
+     * Нижняя оценка количества пересадок от остановки до точки прибытия
+     */
+    @FunctionalInterface
+    interface TransitionsHeuristic {
+        int estimate(Stop<?, ?> stop);
+    }
+}
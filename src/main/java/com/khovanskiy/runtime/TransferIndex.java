@@ -0,0 +1,533 @@
+package com.khovanskiy.runtime;
+
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.TransportRun;
+import com.khovanskiy.model.Waypoint;
+import com.khovanskiy.util.ChunkedList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Индекс пересадок. Для каждой точки хранятся отправления рейсов, отсортированные по времени,
+ * а для каждой остановки рейса - интервал отправлений в той же точке, на которые можно пересесть:
+ * не раньше {@code minTransferTime} и не позже {@code maxTransferTime} после прибытия.
+ * Для каждого рейса также хранятся точки, которые он проходит после каждой из остановок.
+ * <p>
+ * Индекс не зависит от запроса и неизменяем: изменение рейсов создает новый индекс,
+ * в котором перестраиваются только точки добавленных, удаленных и задержанных рейсов и интервалы остановок в этих точках,
+ * а остальные точки и рейсы разделяются с текущим индексом.
+ *
+ * @author victor
+ */
+class TransferIndex {
+    private final ConnectionTable table;
+    /**
+     * Время на пересадку, секунды
+     */
+    private final long minTransferTime;
+    private final long maxTransferTime;
+    /**
+     * Отправления и прибытия по номерам точек
+     */
+    private final ChunkedList<Station> stations;
+    /**
+     * Интервалы пересадок и точки, которые рейс проходит после остановок, по номерам рейсов; null для свободных номеров
+     */
+    private final ChunkedList<RunTransfers> runs;
+
+    TransferIndex(long minTransferTime, long maxTransferTime) {
+        this(ConnectionTable.EMPTY, minTransferTime, maxTransferTime, ChunkedList.empty(), ChunkedList.empty());
+    }
+
+    private TransferIndex(ConnectionTable table, long minTransferTime, long maxTransferTime,
+                          ChunkedList<Station> stations, ChunkedList<RunTransfers> runs) {
+        this.table = table;
+        this.minTransferTime = minTransferTime;
+        this.maxTransferTime = maxTransferTime;
+        this.stations = stations;
+        this.runs = runs;
+    }
+
+    /**
+     * Построение нового индекса без рейсов {@code removed}, дополненного рейсами {@code added}.
+     * Номер удаленного рейса может быть занят новым рейсом.
+     *
+     * @param table   таблица перегонов, уже содержащая рейсы {@code added}
+     * @param removed номера удаленных рейсов и старых версий обновляемых рейсов в таблице этого индекса
+     * @param added   новые рейсы
+     * @return новый индекс
+     */
+    TransferIndex update(ConnectionTable table, Collection<Integer> removed, List<? extends TransportRun> added) {
+        ChunkedList.Builder<Station> newStations = stations.builder();
+        while (newStations.size() < table.pointsCount()) {
+            newStations.add(Station.EMPTY);
+        }
+        ChunkedList.Builder<RunTransfers> newRuns = runs.builder();
+        while (newRuns.size() < table.runsCount()) {
+            newRuns.add(null);
+        }
+
+        Map<Integer, Station.Builder> touched = new LinkedHashMap<>();
+        Map<Integer, Integer> bounds = new HashMap<>();
+        for (int runId : removed) {
+            for (int point : this.table.runPoints(runId)) {
+                if (point != -1) {
+                    touched.computeIfAbsent(point, key -> new Station.Builder());
+                }
+            }
+            bounds.put(runId, 0);
+            newRuns.set(runId, null);
+        }
+        // интервалы рейсов, которые уже принадлежат новому индексу и изменяются на месте
+        Set<Integer> owned = new HashSet<>();
+        for (TransportRun<?, ?, ?> run : added) {
+            int runId = table.runId(run.getId());
+            List<? extends Waypoint<?, ?>> waypoints = run.getWaypoints();
+            int[] numbers = ConnectionTable.stopNumbers(waypoints);
+            int[] points = table.runPoints(runId);
+            addEvents(touched, runId, waypoints, numbers, points, 0);
+            int[] downstream = new int[numbers.length];
+            int[] downstreamNumbers = new int[numbers.length];
+            int distinct = 0;
+            for (int k = numbers.length - 1; k >= 0; --k) {
+                int point = points[numbers[k]];
+                int j = 0;
+                while (j < distinct && downstream[j] != point) {
+                    ++j;
+                }
+                if (j == distinct) {
+                    downstream[distinct] = point;
+                    downstreamNumbers[distinct] = numbers[k];
+                    ++distinct;
+                }
+            }
+            newRuns.set(runId, new RunTransfers(new int[2 * waypoints.size()],
+                    Arrays.copyOf(downstream, distinct), Arrays.copyOf(downstreamNumbers, distinct)));
+            owned.add(runId);
+        }
+        return rebuild(table, newStations, newRuns, touched, bounds, owned);
+    }
+
+    /**
+     * Построение нового индекса, в котором рейсы заменены новыми версиями с измененным временем остановок.
+     * Перестраиваются только точки остановок с порядковым номером не меньше {@code numbers.get(runId)}:
+     * отправления и прибытия в остальных точках не изменяются, поэтому интервалы пересадок в них остаются верными.
+     *
+     * @param table   таблица перегонов с новыми версиями рейсов {@code shifted}
+     * @param shifted новые версии рейсов с той же последовательностью остановок
+     * @param numbers первый порядковый номер остановки с измененным временем по номерам рейсов
+     * @return новый индекс
+     */
+    TransferIndex withShiftedRuns(ConnectionTable table, List<? extends TransportRun> shifted, Map<Integer, Integer> numbers) {
+        Map<Integer, Station.Builder> touched = new LinkedHashMap<>();
+        for (TransportRun<?, ?, ?> run : shifted) {
+            int runId = table.runId(run.getId());
+            List<? extends Waypoint<?, ?>> waypoints = run.getWaypoints();
+            addEvents(touched, runId, waypoints, ConnectionTable.stopNumbers(waypoints), table.runPoints(runId), numbers.get(runId));
+        }
+        return rebuild(table, stations.builder(), runs.builder(), touched, numbers, new HashSet<>());
+    }
+
+    /**
+     * Добавление событий остановок рейса с порядковым номером не меньше {@code first} к событиям их точек
+     */
+    private static void addEvents(Map<Integer, Station.Builder> touched, int runId, List<? extends Waypoint<?, ?>> waypoints,
+                                  int[] numbers, int[] points, int first) {
+        for (int k = 0; k < numbers.length; ++k) {
+            int number = numbers[k];
+            if (number < first) {
+                continue;
+            }
+            Station.Builder builder = touched.computeIfAbsent(points[number], point -> new Station.Builder());
+            if (k != numbers.length - 1) {
+                builder.addDeparture(waypoints.get(number).getDeparture().getEpochSecond(), runId, number);
+            }
+            if (k != 0) {
+                builder.addArrival(waypoints.get(number).getArrival().getEpochSecond(), runId, number);
+            }
+        }
+    }
+
+    /**
+     * Слияние событий затронутых точек и пересчет интервалов пересадок всех прибытий в эти точки.
+     * Интервалы старых рейсов копируются перед изменением, т.к. старый индекс может использоваться поиском.
+     *
+     * @param bounds старые события рейса с порядковым номером не меньше границы убираются
+     * @param owned  рейсы, интервалы которых уже принадлежат новому индексу и изменяются на месте
+     */
+    private TransferIndex rebuild(ConnectionTable table, ChunkedList.Builder<Station> newStations,
+                                  ChunkedList.Builder<RunTransfers> newRuns, Map<Integer, Station.Builder> touched,
+                                  Map<Integer, Integer> bounds, Set<Integer> owned) {
+        for (Map.Entry<Integer, Station.Builder> entry : touched.entrySet()) {
+            Station station = newStations.get(entry.getKey()).merge(table, entry.getValue(), (runId, number) -> {
+                Integer bound = bounds.get(runId);
+                return bound != null && number >= bound;
+            });
+            newStations.set(entry.getKey(), station);
+            for (int k = 0; k < station.arrivalsCount; ++k) {
+                int runId = station.arrivalRuns[k];
+                RunTransfers runTransfers = newRuns.get(runId);
+                if (owned.add(runId)) {
+                    runTransfers = runTransfers.copy();
+                    newRuns.set(runId, runTransfers);
+                }
+                int number = station.arrivalNumbers[k];
+                runTransfers.windows[2 * number] = station.lowerBound(station.arrivalTimes[k] + minTransferTime);
+                runTransfers.windows[2 * number + 1] = station.upperBound(station.arrivalTimes[k] + maxTransferTime);
+            }
+        }
+        return new TransferIndex(table, minTransferTime, maxTransferTime, newStations.build(), newRuns.build());
+    }
+
+    /**
+     * Запись индекса в снимок
+     */
+    void write(Snapshot.Writer out) throws IOException {
+        out.writeLong(minTransferTime);
+        out.writeLong(maxTransferTime);
+        out.writeInt(stations.size());
+        for (int pointId = 0; pointId < stations.size(); ++pointId) {
+            Station station = stations.get(pointId);
+            out.writeLongs(station.times, station.size);
+            out.writeInts(station.runs, station.size);
+            out.writeInts(station.numbers, station.size);
+            out.writeLongs(station.arrivalTimes, station.arrivalsCount);
+            out.writeInts(station.arrivalRuns, station.arrivalsCount);
+            out.writeInts(station.arrivalNumbers, station.arrivalsCount);
+        }
+        out.writeInt(runs.size());
+        for (int runId = 0; runId < runs.size(); ++runId) {
+            RunTransfers runTransfers = runs.get(runId);
+            out.writeNullableInts(runTransfers == null ? null : runTransfers.windows);
+            out.writeNullableInts(runTransfers == null ? null : runTransfers.downstreamPoints);
+            out.writeNullableInts(runTransfers == null ? null : runTransfers.downstreamNumbers);
+        }
+    }
+
+    /**
+     * Чтение индекса из снимка
+     *
+     * @param table таблица перегонов снимка
+     * @throws IOException если снимок построен с другим временем на пересадку
+     */
+    static TransferIndex read(Snapshot.Reader in, ConnectionTable table, long minTransferTime, long maxTransferTime) throws IOException {
+        if (in.readLong() != minTransferTime || in.readLong() != maxTransferTime) {
+            throw new IOException("Snapshot was built with other transfer times");
+        }
+        int stationsCount = in.readInt();
+        ChunkedList.Builder<Station> stations = ChunkedList.<Station>empty().builder();
+        for (int pointId = 0; pointId < stationsCount; ++pointId) {
+            long[] times = in.readLongs();
+            int[] runs = in.readInts();
+            int[] numbers = in.readInts();
+            long[] arrivalTimes = in.readLongs();
+            int[] arrivalRuns = in.readInts();
+            int[] arrivalNumbers = in.readInts();
+            stations.add(new Station(times, runs, numbers, times.length,
+                    arrivalTimes, arrivalRuns, arrivalNumbers, arrivalTimes.length));
+        }
+        int runsCount = in.readInt();
+        ChunkedList.Builder<RunTransfers> runs = ChunkedList.<RunTransfers>empty().builder();
+        for (int runId = 0; runId < runsCount; ++runId) {
+            int[] windows = in.readNullableInts();
+            int[] downstreamPoints = in.readNullableInts();
+            int[] downstreamNumbers = in.readNullableInts();
+            runs.add(windows == null ? null : new RunTransfers(windows, downstreamPoints, downstreamNumbers));
+        }
+        return new TransferIndex(table, minTransferTime, maxTransferTime, stations.build(), runs.build());
+    }
+
+    /**
+     * @return номер рейса или -1, если рейса нет в индексе
+     */
+    int runId(Ref<?> ref) {
+        return table.runId(ref);
+    }
+
+    Ref<?> runRef(int runId) {
+        return table.run(runId).getId();
+    }
+
+    /**
+     * @return номер точки остановки рейса, -1 для промежуточных остановок без стоянки
+     */
+    int pointId(int runId, int number) {
+        return table.runPoints(runId)[number];
+    }
+
+    /**
+     * @return номера точек остановок рейса по порядковым номерам, -1 для промежуточных остановок без стоянки
+     */
+    int[] runPoints(int runId) {
+        return table.runPoints(runId);
+    }
+
+    int pointsCount() {
+        return table.pointsCount();
+    }
+
+    /**
+     * Последний порядковый номер остановки текущего рейса в точке, которую рейс {@code next}
+     * проходит после остановки с номером {@code number}
+     *
+     * @param lastVisits последние номера остановок текущего рейса по номерам точек, -1 для непройденных точек
+     * @param bound      номер, после которого поиск можно прекратить
+     * @return номер остановки или -1
+     */
+    int lastVisit(int next, int number, int[] lastVisits, int bound) {
+        int[] points = runs.get(next).downstreamPoints;
+        int[] numbers = runs.get(next).downstreamNumbers;
+        int result = -1;
+        for (int k = 0; k < points.length && numbers[k] > number; ++k) {
+            if (lastVisits[points[k]] > result) {
+                result = lastVisits[points[k]];
+                if (result > bound) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return отправления в точке остановки рейса
+     */
+    Station station(int runId, int number) {
+        return stations.get(table.runPoints(runId)[number]);
+    }
+
+    /**
+     * @return отправления и прибытия в точке
+     */
+    Station pointStation(int pointId) {
+        return stations.get(pointId);
+    }
+
+    /**
+     * @return первая позиция в отправлениях точки, на которую можно пересесть с остановки рейса
+     */
+    int first(int runId, int number) {
+        return runs.get(runId).windows[2 * number];
+    }
+
+    /**
+     * @return позиция после последнего отправления, на которое можно пересесть с остановки рейса
+     */
+    int last(int runId, int number) {
+        return runs.get(runId).windows[2 * number + 1];
+    }
+
+    /**
+     * Пересадки с остановок рейса: для остановки с порядковым номером n - позиции
+     * {@code [windows[2n], windows[2n + 1])} в отправлениях точки остановки. Также различные точки рейса в порядке убывания
+     * последнего порядкового номера остановки в них и сами эти номера: точки, которые рейс проходит после остановки
+     * с номером n, образуют префикс, в котором номера больше n.
+     */
+    private static final class RunTransfers {
+        final int[] windows;
+        final int[] downstreamPoints;
+        final int[] downstreamNumbers;
+
+        RunTransfers(int[] windows, int[] downstreamPoints, int[] downstreamNumbers) {
+            this.windows = windows;
+            this.downstreamPoints = downstreamPoints;
+            this.downstreamNumbers = downstreamNumbers;
+        }
+
+        /**
+         * @return копия с собственными интервалами пересадок
+         */
+        RunTransfers copy() {
+            return new RunTransfers(windows.clone(), downstreamPoints, downstreamNumbers);
+        }
+    }
+
+    /**
+     * Отбор событий точки по номеру рейса и порядковому номеру остановки
+     */
+    private interface EventFilter {
+        boolean test(int runId, int number);
+    }
+
+    /**
+     * Отправления и прибытия в точке. Отправления отсортированы по времени, при равенстве - по рейсу
+     * в порядке {@link ConnectionTable#RUN_ORDER} и порядковому номеру остановки.
+     */
+    static class Station {
+        static final Station EMPTY = new Station(new long[0], new int[0], new int[0], 0, new long[0], new int[0], new int[0], 0);
+
+        /**
+         * Время отправления, секунды от начала эпохи, номер рейса и порядковый номер остановки
+         */
+        final long[] times;
+        final int[] runs;
+        final int[] numbers;
+        final int size;
+        /**
+         * Прибытия в точку в порядке добавления
+         */
+        final long[] arrivalTimes;
+        final int[] arrivalRuns;
+        final int[] arrivalNumbers;
+        final int arrivalsCount;
+
+        private Station(long[] times, int[] runs, int[] numbers, int size,
+                        long[] arrivalTimes, int[] arrivalRuns, int[] arrivalNumbers, int arrivalsCount) {
+            this.times = times;
+            this.runs = runs;
+            this.numbers = numbers;
+            this.size = size;
+            this.arrivalTimes = arrivalTimes;
+            this.arrivalRuns = arrivalRuns;
+            this.arrivalNumbers = arrivalNumbers;
+            this.arrivalsCount = arrivalsCount;
+        }
+
+        /**
+         * Слияние с новыми событиями
+         *
+         * @param table   таблица перегонов, в которой заданы номера рейсов событий
+         * @param dropped старые события (номер рейса, порядковый номер остановки), которые не попадают в результат
+         */
+        private Station merge(ConnectionTable table, Builder added, EventFilter dropped) {
+            Integer[] order = new Integer[added.size];
+            for (int i = 0; i < added.size; ++i) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (i, j) -> compare(table, added.times[i], added.runs[i], added.numbers[i],
+                    added.times[j], added.runs[j], added.numbers[j]));
+            Builder result = new Builder(size + added.size, arrivalsCount + added.arrivalsCount);
+            int i = 0;
+            int j = 0;
+            while (i < size || j < added.size) {
+                // номер убранного рейса может быть уже свободен, поэтому его события не сравниваются
+                if (i < size && dropped.test(runs[i], numbers[i])) {
+                    ++i;
+                } else if (j == added.size || (i < size && compare(table, times[i], runs[i], numbers[i],
+                        added.times[order[j]], added.runs[order[j]], added.numbers[order[j]]) <= 0)) {
+                    result.addDeparture(times[i], runs[i], numbers[i]);
+                    ++i;
+                } else {
+                    result.addDeparture(added.times[order[j]], added.runs[order[j]], added.numbers[order[j]]);
+                    ++j;
+                }
+            }
+            for (int k = 0; k < arrivalsCount; ++k) {
+                if (!dropped.test(arrivalRuns[k], arrivalNumbers[k])) {
+                    result.addArrival(arrivalTimes[k], arrivalRuns[k], arrivalNumbers[k]);
+                }
+            }
+            for (int k = 0; k < added.arrivalsCount; ++k) {
+                result.addArrival(added.arrivalTimes[k], added.arrivalRuns[k], added.arrivalNumbers[k]);
+            }
+            return new Station(result.times, result.runs, result.numbers, result.size,
+                    result.arrivalTimes, result.arrivalRuns, result.arrivalNumbers, result.arrivalsCount);
+        }
+
+        /**
+         * Сравнение отправлений по времени, рейсу и порядковому номеру остановки
+         */
+        private static int compare(ConnectionTable table, long lhsTime, int lhsRun, int lhsNumber,
+                                   long rhsTime, int rhsRun, int rhsNumber) {
+            int result = Long.compare(lhsTime, rhsTime);
+            if (result == 0 && lhsRun != rhsRun) {
+                result = ConnectionTable.RUN_ORDER.compare(table.run(lhsRun).getId(), table.run(rhsRun).getId());
+            }
+            return result != 0 ? result : Integer.compare(lhsNumber, rhsNumber);
+        }
+
+        /**
+         * @return первая позиция отправления не раньше {@code time}
+         */
+        private int lowerBound(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return первая позиция отправления позже {@code time}
+         */
+        private int upperBound(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] <= time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * События точки в процессе построения
+         */
+        private static class Builder {
+            long[] times;
+            int[] runs;
+            int[] numbers;
+            int size;
+            long[] arrivalTimes;
+            int[] arrivalRuns;
+            int[] arrivalNumbers;
+            int arrivalsCount;
+
+            Builder() {
+                this(4, 4);
+            }
+
+            Builder(int capacity, int arrivalsCapacity) {
+                times = new long[Math.max(capacity, 1)];
+                runs = new int[times.length];
+                numbers = new int[times.length];
+                arrivalTimes = new long[Math.max(arrivalsCapacity, 1)];
+                arrivalRuns = new int[arrivalTimes.length];
+                arrivalNumbers = new int[arrivalTimes.length];
+            }
+
+            void addDeparture(long time, int run, int number) {
+                if (size == times.length) {
+                    times = Arrays.copyOf(times, size * 2);
+                    runs = Arrays.copyOf(runs, size * 2);
+                    numbers = Arrays.copyOf(numbers, size * 2);
+                }
+                times[size] = time;
+                runs[size] = run;
+                numbers[size] = number;
+                ++size;
+            }
+
+            void addArrival(long time, int run, int number) {
+                if (arrivalsCount == arrivalTimes.length) {
+                    arrivalTimes = Arrays.copyOf(arrivalTimes, arrivalsCount * 2);
+                    arrivalRuns = Arrays.copyOf(arrivalRuns, arrivalsCount * 2);
+                    arrivalNumbers = Arrays.copyOf(arrivalNumbers, arrivalsCount * 2);
+                }
+                arrivalTimes[arrivalsCount] = time;
+                arrivalRuns[arrivalsCount] = run;
+                arrivalNumbers[arrivalsCount] = number;
+                ++arrivalsCount;
+            }
+        }
+    }
+}
@@ -5,20 +5,22 @@ import com.khovanskiy.model.Ref;
 import lombok.NonNull;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Заглушка для базы данных
+ * Заглушка для базы данных.
+ * Объекты лежат в конкурентных таблицах: задержанные рейсы сохраняются во время загрузки расписания из другого потока.
  *
  * @author victor
  */
 public class Repository {
 
-    private Map<Class, Map<Ref, Object>> objects = new HashMap<>();
+    private final Map<Class, Map<Ref, Object>> objects = new ConcurrentHashMap<>();
 
     @SuppressWarnings("unchecked")
     public <M extends Model<M>> Optional<M> find(@NonNull Ref<M> id) {
@@ -32,7 +34,7 @@ public class Repository {
     public <M extends Model<M>> M create(@NonNull M model) {
         objects.compute(model.getId().type(), (key, map) -> {
             if (map == null) {
-                map = new HashMap<>();
+                map = new ConcurrentHashMap<>();
             }
             map.put(model.getId(), model);
             return map;
@@ -40,6 +42,15 @@ public class Repository {
         return model;
     }
 
+    /**
+     * Сохранение нескольких объектов одной операцией
+     */
+    public <M extends Model<M>> void createAll(@NonNull Collection<M> models) {
+        for (M model : models) {
+            objects.computeIfAbsent(model.getId().type(), key -> new ConcurrentHashMap<>()).put(model.getId(), model);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public <M extends Model<M>> List<M> findAll(Class<M> type) {
         return new ArrayList(objects.getOrDefault(type, Collections.emptyMap()).values());
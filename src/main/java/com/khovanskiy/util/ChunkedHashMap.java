@@ -0,0 +1,184 @@
+package com.khovanskiy.util;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Неизменяемое хеш-отображение, корзины которого хранятся в {@link ChunkedList}. Изменение строит новое отображение
+ * через {@link Builder}: копируются только измененные корзины и блоки списка корзин, поэтому изменение k ключей
+ * отображения размера n занимает O(k + n / 1024) в среднем, а старое отображение остается доступным для чтения.
+ * Количество корзин удваивается, когда ключей становится вдвое больше корзин.
+ *
+ * @param <K> тип ключей
+ * @param <V> тип значений, null не допускается
+ * @author victor
+ */
+public final class ChunkedHashMap<K, V> {
+    private static final int INITIAL_BUCKETS = 16;
+    private static final ChunkedHashMap<?, ?> EMPTY = new ChunkedHashMap<>(buckets(INITIAL_BUCKETS), 0);
+
+    /**
+     * Корзины: чередующиеся ключи и значения, null для пустой корзины
+     */
+    private final ChunkedList<Object[]> buckets;
+    private final int size;
+
+    private ChunkedHashMap(ChunkedList<Object[]> buckets, int size) {
+        this.buckets = buckets;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> ChunkedHashMap<K, V> empty() {
+        return (ChunkedHashMap<K, V>) EMPTY;
+    }
+
+    /**
+     * @return значение или null, если ключа нет
+     */
+    public V get(Object key) {
+        return find(buckets.get(bucket(key, buckets.size())), key);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return построитель нового отображения, изначально равного этому
+     */
+    public Builder<K, V> builder() {
+        return new Builder<>(buckets, size);
+    }
+
+    private static ChunkedList<Object[]> buckets(int count) {
+        ChunkedList.Builder<Object[]> buckets = ChunkedList.<Object[]>empty().builder();
+        for (int i = 0; i < count; ++i) {
+            buckets.add(null);
+        }
+        return buckets.build();
+    }
+
+    private static int bucket(Object key, int count) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (count - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V find(Object[] bucket, Object key) {
+        if (bucket != null) {
+            for (int i = 0; i < bucket.length; i += 2) {
+                if (Objects.equals(bucket[i], key)) {
+                    return (V) bucket[i + 1];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Построитель нового отображения, используется один раз
+     */
+    public static final class Builder<K, V> {
+        private ChunkedList.Builder<Object[]> buckets;
+        private int size;
+
+        private Builder(ChunkedList<Object[]> buckets, int size) {
+            this.buckets = buckets.builder();
+            this.size = size;
+        }
+
+        public V get(Object key) {
+            return find(buckets.get(bucket(key, buckets.size())), key);
+        }
+
+        /**
+         * @return предыдущее значение или null
+         */
+        public V put(K key, V value) {
+            Objects.requireNonNull(value);
+            int index = bucket(key, buckets.size());
+            Object[] bucket = buckets.get(index);
+            if (bucket != null) {
+                for (int i = 0; i < bucket.length; i += 2) {
+                    if (Objects.equals(bucket[i], key)) {
+                        V previous = find(bucket, key);
+                        bucket = bucket.clone();
+                        bucket[i + 1] = value;
+                        buckets.set(index, bucket);
+                        return previous;
+                    }
+                }
+            }
+            Object[] grown = bucket == null ? new Object[2] : Arrays.copyOf(bucket, bucket.length + 2);
+            grown[grown.length - 2] = key;
+            grown[grown.length - 1] = value;
+            buckets.set(index, grown);
+            if (++size > 2 * buckets.size()) {
+                rehash(buckets.size() * 2);
+            }
+            return null;
+        }
+
+        /**
+         * @return удаленное значение или null
+         */
+        public V remove(Object key) {
+            int index = bucket(key, buckets.size());
+            Object[] bucket = buckets.get(index);
+            if (bucket == null) {
+                return null;
+            }
+            for (int i = 0; i < bucket.length; i += 2) {
+                if (Objects.equals(bucket[i], key)) {
+                    V previous = find(bucket, key);
+                    Object[] shrunk = null;
+                    if (bucket.length > 2) {
+                        shrunk = new Object[bucket.length - 2];
+                        System.arraycopy(bucket, 0, shrunk, 0, i);
+                        System.arraycopy(bucket, i + 2, shrunk, i, bucket.length - i - 2);
+                    }
+                    buckets.set(index, shrunk);
+                    --size;
+                    return previous;
+                }
+            }
+            return null;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public ChunkedHashMap<K, V> build() {
+            ChunkedHashMap<K, V> map = new ChunkedHashMap<>(buckets.build(), size);
+            buckets = null;
+            return map;
+        }
+
+        /**
+         * Перераспределение ключей по новым корзинам, амортизируется удвоением количества корзин
+         */
+        private void rehash(int count) {
+            ChunkedList<Object[]> old = buckets.build();
+            Object[][] grown = new Object[count][];
+            for (int index = 0; index < old.size(); ++index) {
+                Object[] bucket = old.get(index);
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.length; i += 2) {
+                    int target = bucket(bucket[i], count);
+                    Object[] entries = grown[target] == null ? new Object[2] : Arrays.copyOf(grown[target], grown[target].length + 2);
+                    entries[entries.length - 2] = bucket[i];
+                    entries[entries.length - 1] = bucket[i + 1];
+                    grown[target] = entries;
+                }
+            }
+            buckets = ChunkedList.<Object[]>empty().builder();
+            for (Object[] bucket : grown) {
+                buckets.add(bucket);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.khovanskiy.util;
+
+import java.util.Arrays;
+
+/**
+ * Неизменяемый список, разбитый на блоки фиксированного размера. Изменение строит новый список через
+ * {@link Builder}: копируются только измененные блоки и массив ссылок на блоки, остальные блоки разделяются
+ * со старым списком. Поэтому изменение k элементов списка длины n занимает O(k * CHUNK + n / CHUNK),
+ * а старый список остается доступным для чтения без блокировок.
+ *
+ * @param <T> тип элементов, допускается null
+ * @author victor
+ */
+public final class ChunkedList<T> {
+    private static final int SHIFT = 10;
+    private static final int CHUNK = 1 << SHIFT;
+    private static final int MASK = CHUNK - 1;
+    private static final ChunkedList<?> EMPTY = new ChunkedList<>(new Object[0][], 0);
+
+    private final Object[][] chunks;
+    private final int size;
+
+    private ChunkedList(Object[][] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> ChunkedList<T> empty() {
+        return (ChunkedList<T>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return (T) chunks[index >>> SHIFT][index & MASK];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return построитель нового списка, изначально равного этому
+     */
+    public Builder<T> builder() {
+        return new Builder<>(chunks, size);
+    }
+
+    /**
+     * Построитель нового списка. Блок старого списка копируется при первом изменении,
+     * поэтому построитель используется один раз: после {@link #build()} он больше не изменяется.
+     */
+    public static final class Builder<T> {
+        private Object[][] chunks;
+        /**
+         * Блоки, уже скопированные построителем
+         */
+        private boolean[] owned;
+        private int size;
+
+        private Builder(Object[][] chunks, int size) {
+            this.chunks = chunks.clone();
+            this.owned = new boolean[chunks.length];
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return (T) chunks[index >>> SHIFT][index & MASK];
+        }
+
+        public void set(int index, T value) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            chunk(index >>> SHIFT)[index & MASK] = value;
+        }
+
+        /**
+         * @return номер добавленного элемента
+         */
+        public int add(T value) {
+            int index = size;
+            int chunk = index >>> SHIFT;
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(4, chunks.length * 2));
+                owned = Arrays.copyOf(owned, chunks.length);
+            }
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new Object[CHUNK];
+                owned[chunk] = true;
+            }
+            ++size;
+            chunk(chunk)[index & MASK] = value;
+            return index;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public ChunkedList<T> build() {
+            ChunkedList<T> list = new ChunkedList<>(chunks, size);
+            chunks = null;
+            owned = null;
+            return list;
+        }
+
+        private Object[] chunk(int chunk) {
+            if (!owned[chunk]) {
+                chunks[chunk] = chunks[chunk].clone();
+                owned[chunk] = true;
+            }
+            return chunks[chunk];
+        }
+    }
+}
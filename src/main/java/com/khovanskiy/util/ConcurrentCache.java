@@ -0,0 +1,225 @@
+package com.khovanskiy.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Потокобезопасный кеш с ограничением по количеству элементов, суммарному весу и времени хранения.
+ * Чтение и добавление выполняются без блокировок. Элемент с истекшим временем хранения не возвращается
+ * и удаляется при обращении, остальные устаревшие элементы удаляются периодическим просмотром кеша,
+ * который выполняет не чаще раза за время хранения один из добавляющих потоков.
+ * <p>
+ * Вытеснение выполняется под отдельной блокировкой, только когда добавление нарушило ограничения:
+ * сначала удаляются устаревшие элементы, затем давно запрошенные, пока количество и вес не опустятся
+ * на {@code 1 / EVICTION_FRACTION} ниже ограничений. Поэтому заполненный кеш сортируется не при каждом добавлении,
+ * а примерно раз на {@code maxSize / EVICTION_FRACTION} добавлений.
+ *
+ * @author victor
+ */
+public class ConcurrentCache<K, V> {
+    /**
+     * Доля ограничений, освобождаемая при вытеснении
+     */
+    private static final int EVICTION_FRACTION = 10;
+
+    private final int maxSize;
+    private final long maxWeight;
+    private final long ttl;
+
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong();
+    private final Object evictionLock = new Object();
+    /**
+     * Время следующего просмотра устаревших элементов
+     */
+    private final AtomicLong nextSweep;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize   максимальное количество элементов
+     * @param maxWeight максимальный суммарный вес элементов
+     * @param ttl       время хранения элемента без обращений, секунды
+     */
+    public ConcurrentCache(int maxSize, long maxWeight, long ttl) {
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+        this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+        this.nextSweep = new AtomicLong(System.nanoTime() + this.ttl);
+    }
+
+    /**
+     * @return значение или null, если его нет или время хранения истекло
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        long now = System.nanoTime();
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (isExpired(entry, now)) {
+            misses.increment();
+            if (remove(key, entry)) {
+                evictions.increment();
+            }
+            return null;
+        }
+        hits.increment();
+        entry.lastAccess = now;
+        return entry.value;
+    }
+
+    /**
+     * Добавление или замена значения
+     *
+     * @param weight вес значения
+     */
+    public void put(K key, V value, long weight) {
+        long now = System.nanoTime();
+        Entry<V> entry = new Entry<>(value, weight, now);
+        Entry<V> previous = entries.put(key, entry);
+        this.weight.addAndGet(weight - (previous != null ? previous.weight : 0));
+        if (isOverflown(0)) {
+            evict(entry);
+            return;
+        }
+        long next = nextSweep.get();
+        if (now - next >= 0 && nextSweep.compareAndSet(next, now + ttl)) {
+            sweep(entry, now);
+        }
+    }
+
+    public void remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            weight.addAndGet(-entry.weight);
+        }
+    }
+
+    /**
+     * Удаление всех значений, удовлетворяющих условию
+     */
+    public void removeIf(Predicate<? super V> predicate) {
+        for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+            if (predicate.test(entry.getValue().value)) {
+                remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @param reserve доля ограничений, которая должна оставаться свободной, в единицах {@code 1 / EVICTION_FRACTION}
+     * @return нарушены ли ограничения с учетом запаса
+     */
+    private boolean isOverflown(int reserve) {
+        return entries.size() > maxSize - (long) maxSize * reserve / EVICTION_FRACTION
+                || weight.get() > maxWeight - maxWeight / EVICTION_FRACTION * reserve;
+    }
+
+    /**
+     * Удаление устаревших элементов, кроме только что добавленного
+     */
+    private void sweep(Entry<V> added, long now) {
+        for (Map.Entry<K, Entry<V>> candidate : entries.entrySet()) {
+            if (candidate.getValue() != added && isExpired(candidate.getValue(), now) && remove(candidate.getKey(), candidate.getValue())) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Вытеснение устаревших и давно запрошенных элементов с запасом, только что добавленный элемент не вытесняется
+     */
+    private void evict(Entry<V> added) {
+        synchronized (evictionLock) {
+            if (!isOverflown(0)) {
+                // другой поток уже освободил место
+                return;
+            }
+            long now = System.nanoTime();
+            sweep(added, now);
+            nextSweep.set(now + ttl);
+            if (!isOverflown(1)) {
+                return;
+            }
+            // время обращения запоминается, т.к. оно может измениться во время сортировки
+            List<Candidate<K, V>> candidates = new ArrayList<>(entries.size());
+            entries.forEach((key, entry) -> candidates.add(new Candidate<>(key, entry, entry.lastAccess)));
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+            for (Candidate<K, V> candidate : candidates) {
+                if (!isOverflown(1)) {
+                    break;
+                }
+                if (candidate.entry != added && remove(candidate.key, candidate.entry)) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    private boolean remove(K key, Entry<V> entry) {
+        if (entries.remove(key, entry)) {
+            weight.addAndGet(-entry.weight);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return now - entry.lastAccess > ttl;
+    }
+
+    private static class Candidate<K, V> {
+        private final K key;
+        private final Entry<V> entry;
+        private final long lastAccess;
+
+        Candidate(K key, Entry<V> entry, long lastAccess) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+        private volatile long lastAccess;
+
+        Entry(V value, long weight, long lastAccess) {
+            this.value = value;
+            this.weight = weight;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
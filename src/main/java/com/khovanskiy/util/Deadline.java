@@ -0,0 +1,49 @@
+package com.khovanskiy.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Крайний срок выполнения запроса. Проверяется длительными вычислениями кооперативно:
+ * после истечения срока вычисление прекращается и возвращает уже полученный результат.
+ *
+ * @author victor
+ */
+public class Deadline {
+    /**
+     * Срок, который никогда не истекает
+     */
+    public static final Deadline NONE = new Deadline(0) {
+        @Override
+        public boolean isExpired() {
+            return false;
+        }
+    };
+
+    private final long expiresAt;
+    private volatile boolean expired;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * @param timeout время на выполнение в миллисекундах, 0 - без ограничения
+     * @return срок, отсчитываемый от текущего момента
+     */
+    public static Deadline after(long timeout) {
+        if (timeout <= 0) {
+            return NONE;
+        }
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+    }
+
+    /**
+     * @return истек ли срок, истекший срок остается истекшим
+     */
+    public boolean isExpired() {
+        if (!expired && System.nanoTime() - expiresAt >= 0) {
+            expired = true;
+        }
+        return expired;
+    }
+}
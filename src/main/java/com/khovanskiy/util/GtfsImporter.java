@@ -0,0 +1,619 @@
+package com.khovanskiy.util;
+
+import com.khovanskiy.model.RailwayCarrier;
+import com.khovanskiy.model.RailwayWaypoint;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.State;
+import com.khovanskiy.model.StationPoint;
+import com.khovanskiy.model.TrainRun;
+import com.khovanskiy.runtime.RouteBuilder;
+import com.khovanskiy.service.Repository;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Потоковая загрузка расписания в формате GTFS: каталог с файлами stops.txt, calendar.txt, trips.txt
+ * и stop_times.txt. Рейс строится на каждый день обслуживания поездки в заданном интервале дат.
+ * <p>
+ * Файлы читаются через буфер NIO без построчного чтения в строки. Остановки, календарь и поездки невелики
+ * и загружаются целиком, а stop_times.txt, самый большой файл, читается потоком: в памяти хранятся только
+ * остановки текущей поездки и пакет построенных рейсов, который сохраняется в репозитории и передается
+ * загрузчику расписания ({@link RouteBuilder#loader()}) при достижении заданного размера. Поэтому память
+ * загрузчика не зависит от размера расписания. Расписание строится одним обновлением после чтения всех поездок,
+ * а не перестраивается на каждый пакет.
+ * <p>
+ * Строки stop_times.txt должны быть сгруппированы по поездкам, как это принято в GTFS. Остановки платформ
+ * с заданной родительской станцией относятся к станции. Время промежуточных остановок без времени
+ * интерполируется по соседним остановкам. Исключения календаря (calendar_dates.txt) не поддерживаются.
+ *
+ * @author victor
+ */
+@Slf4j
+public class GtfsImporter {
+    private final Repository repository;
+    private final RouteBuilder routeBuilder;
+    /**
+     * Часовой пояс перевозчика, в котором заданы времена поездок
+     */
+    private final ZoneId zoneId;
+    private final Ref<RailwayCarrier> carrierId;
+    /**
+     * Количество рейсов в одном пакете, сохраняемом в репозитории
+     */
+    private final int batchSize;
+
+    public GtfsImporter(Repository repository, RouteBuilder routeBuilder, ZoneId zoneId, Ref<RailwayCarrier> carrierId,
+                        int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        this.repository = repository;
+        this.routeBuilder = routeBuilder;
+        this.zoneId = zoneId;
+        this.carrierId = carrierId;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Загрузка расписания
+     *
+     * @param directory каталог с файлами GTFS
+     * @param from      первый загружаемый день обслуживания
+     * @param to        последний загружаемый день обслуживания
+     * @return статистика загрузки
+     */
+    public Statistics load(Path directory, LocalDate from, LocalDate to) throws IOException {
+        long start = System.nanoTime();
+        Statistics statistics = new Statistics();
+        Map<String, StationPoint.Id> stops = loadStops(directory.resolve("stops.txt"), statistics);
+        Map<String, List<LocalDate>> services = loadCalendar(directory.resolve("calendar.txt"), from, to, statistics);
+        Map<String, Trip> trips = loadTrips(directory.resolve("trips.txt"), services, statistics);
+        loadStopTimes(directory.resolve("stop_times.txt"), stops, trips, statistics);
+        statistics.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("Загружено " + statistics);
+        return statistics;
+    }
+
+    private Map<String, StationPoint.Id> loadStops(Path file, Statistics statistics) throws IOException {
+        Map<String, StationPoint.Id> stops = new HashMap<>();
+        Map<String, String> parents = new HashMap<>();
+        List<StationPoint> points = new ArrayList<>();
+        try (CsvReader in = new CsvReader(file)) {
+            int id = in.column("stop_id");
+            int name = in.column("stop_name");
+            int parent = in.optionalColumn("parent_station");
+            int timezone = in.optionalColumn("stop_timezone");
+            while (in.next()) {
+                String stopId = in.string(id);
+                String parentId = in.string(parent);
+                if (!parentId.isEmpty()) {
+                    parents.put(stopId, parentId);
+                    continue;
+                }
+                String zone = in.string(timezone);
+                StationPoint point = new StationPoint(stopId, in.string(name), zone.isEmpty() ? zoneId : ZoneId.of(zone));
+                point.setState(State.ACTIVE);
+                points.add(point);
+                stops.put(stopId, (StationPoint.Id) point.getId());
+            }
+            statistics.bytes += in.getBytes();
+        }
+        for (Map.Entry<String, String> entry : parents.entrySet()) {
+            StationPoint.Id station = stops.get(entry.getValue());
+            if (station == null) {
+                throw new IOException("Unknown parent station " + entry.getValue() + " of stop " + entry.getKey());
+            }
+            stops.put(entry.getKey(), station);
+        }
+        repository.createAll(points);
+        statistics.stops = points.size();
+        return stops;
+    }
+
+    /**
+     * @return дни обслуживания в интервале по идентификаторам календаря
+     */
+    private Map<String, List<LocalDate>> loadCalendar(Path file, LocalDate from, LocalDate to,
+                                                      Statistics statistics) throws IOException {
+        Map<String, List<LocalDate>> services = new HashMap<>();
+        try (CsvReader in = new CsvReader(file)) {
+            int id = in.column("service_id");
+            int[] days = new int[DayOfWeek.values().length];
+            for (DayOfWeek day : DayOfWeek.values()) {
+                days[day.ordinal()] = in.column(day.name().toLowerCase());
+            }
+            int startDate = in.column("start_date");
+            int endDate = in.column("end_date");
+            while (in.next()) {
+                LocalDate first = in.date(startDate);
+                LocalDate last = in.date(endDate);
+                List<LocalDate> dates = new ArrayList<>();
+                for (LocalDate date = first.isBefore(from) ? from : first; !date.isAfter(last) && !date.isAfter(to);
+                     date = date.plusDays(1)) {
+                    if (in.integer(days[date.getDayOfWeek().ordinal()]) == 1) {
+                        dates.add(date);
+                    }
+                }
+                services.put(in.string(id), dates);
+            }
+            statistics.bytes += in.getBytes();
+        }
+        return services;
+    }
+
+    private Map<String, Trip> loadTrips(Path file, Map<String, List<LocalDate>> services,
+                                        Statistics statistics) throws IOException {
+        Map<String, Trip> trips = new HashMap<>();
+        try (CsvReader in = new CsvReader(file)) {
+            int id = in.column("trip_id");
+            int service = in.column("service_id");
+            int shortName = in.optionalColumn("trip_short_name");
+            while (in.next()) {
+                String tripId = in.string(id);
+                String name = in.string(shortName);
+                trips.put(tripId, new Trip(name.isEmpty() ? tripId : name,
+                        services.getOrDefault(in.string(service), Collections.emptyList())));
+            }
+            statistics.bytes += in.getBytes();
+        }
+        statistics.trips = trips.size();
+        return trips;
+    }
+
+    private void loadStopTimes(Path file, Map<String, StationPoint.Id> stops, Map<String, Trip> trips,
+                               Statistics statistics) throws IOException {
+        StopTimes stopTimes = new StopTimes();
+        List<TrainRun> batch = new ArrayList<>(batchSize);
+        RouteBuilder.Loader loader = routeBuilder.loader();
+        long start = System.nanoTime();
+        try (CsvReader in = new CsvReader(file)) {
+            int tripColumn = in.column("trip_id");
+            int arrival = in.column("arrival_time");
+            int departure = in.column("departure_time");
+            int stop = in.column("stop_id");
+            int sequence = in.column("stop_sequence");
+            int distance = in.optionalColumn("shape_dist_traveled");
+            String tripId = null;
+            Trip trip = null;
+            while (in.next()) {
+                String rowTripId = in.string(tripColumn);
+                if (!rowTripId.equals(tripId)) {
+                    addRuns(tripId, trip, stopTimes, batch, statistics);
+                    flush(batch, loader, statistics, start, false);
+                    tripId = rowTripId;
+                    trip = trips.get(tripId);
+                    if (trip != null) {
+                        if (trip.loaded) {
+                            throw new IOException(file + " is not grouped by trip_id: trip " + tripId + " is split");
+                        }
+                        trip.loaded = true;
+                    }
+                    stopTimes.clear();
+                }
+                if (trip == null) {
+                    continue;
+                }
+                StationPoint.Id point = stops.get(in.string(stop));
+                if (point == null) {
+                    throw new IOException("Unknown stop " + in.string(stop) + " of trip " + tripId);
+                }
+                stopTimes.add(in.integer(sequence), point, in.seconds(arrival), in.seconds(departure),
+                        distance == -1 || in.isEmpty(distance) ? 0 : Double.parseDouble(in.string(distance)));
+            }
+            addRuns(tripId, trip, stopTimes, batch, statistics);
+            flush(batch, loader, statistics, start, true);
+            statistics.stopTimes = in.getRows();
+            statistics.bytes += in.getBytes();
+        }
+        long unknown = trips.values().stream().filter(trip -> !trip.loaded).count();
+        if (unknown > 0) {
+            log.warn(unknown + " trips have no stop times");
+        }
+    }
+
+    /**
+     * Построение рейсов поездки на все ее дни обслуживания
+     */
+    private void addRuns(String tripId, Trip trip, StopTimes stopTimes, List<TrainRun> batch, Statistics statistics) {
+        if (trip == null || trip.dates.isEmpty()) {
+            return;
+        }
+        if (stopTimes.size < 2 || !stopTimes.prepare()) {
+            log.warn("Trip " + tripId + " without times of the first and the last stops is skipped");
+            return;
+        }
+        for (LocalDate date : trip.dates) {
+            // время в GTFS отсчитывается от полудня минус 12 часов, что отличается от полуночи в дни перевода часов
+            Instant base = date.atTime(LocalTime.NOON).atZone(zoneId).minusHours(12).toInstant();
+            List<RailwayWaypoint> waypoints = new ArrayList<>(stopTimes.size);
+            for (int i = 0; i < stopTimes.size; ++i) {
+                int k = stopTimes.order[i];
+                waypoints.add(new RailwayWaypoint(new Idx<>(i), stopTimes.points[k],
+                        base.plusSeconds(stopTimes.arrivals[k]), base.plusSeconds(stopTimes.departures[k]),
+                        null, stopTimes.distances[k]));
+            }
+            TrainRun run = new TrainRun(new TrainRun.Id(tripId + "/" + date), trip.name, waypoints);
+            run.fillRailwayRun(run, carrierId, 45, Collections.emptyList());
+            batch.add(run);
+        }
+    }
+
+    /**
+     * Сохранение пакета рейсов, если пакет заполнен или загрузка закончена, и построение расписания
+     * в конце загрузки
+     */
+    private void flush(List<TrainRun> batch, RouteBuilder.Loader loader, Statistics statistics, long start, boolean last) {
+        if (!batch.isEmpty() && (batch.size() >= batchSize || last)) {
+            repository.createAll(batch);
+            loader.add(batch);
+            statistics.runs += batch.size();
+            batch.clear();
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            log.info("Прочитано " + statistics.runs + " рейсов, " + statistics.runs * 1000 / millis + " рейсов/с");
+        }
+        if (last) {
+            loader.finish();
+        }
+    }
+
+    /**
+     * Статистика загрузки
+     */
+    @Data
+    public static class Statistics {
+        private long stops;
+        private long trips;
+        private long stopTimes;
+        private long runs;
+        /**
+         * Размер прочитанных файлов
+         */
+        private long bytes;
+        private long millis;
+
+        /**
+         * @return строк stop_times.txt в секунду
+         */
+        public long getStopTimesPerSecond() {
+            return stopTimes * 1000 / Math.max(1, millis);
+        }
+
+        /**
+         * @return мегабайт в секунду
+         */
+        public double getMegabytesPerSecond() {
+            return bytes / 1048576.0 * 1000 / Math.max(1, millis);
+        }
+
+        @Override
+        public String toString() {
+            return stops + " станций, " + trips + " поездок, " + stopTimes + " остановок поездок, " + runs + " рейсов"
+                    + " (" + bytes / 1048576 + " МБ) за " + millis + " мс: " + getStopTimesPerSecond()
+                    + " остановок/с, " + String.format("%.1f", getMegabytesPerSecond()) + " МБ/с";
+        }
+    }
+
+    private static final class Trip {
+        private final String name;
+        private final List<LocalDate> dates;
+        /**
+         * Остановки поездки уже прочитаны
+         */
+        private boolean loaded;
+
+        private Trip(String name, List<LocalDate> dates) {
+            this.name = name;
+            this.dates = dates;
+        }
+    }
+
+    /**
+     * Остановки текущей поездки; массивы переиспользуются между поездками
+     */
+    private static final class StopTimes {
+        private int size;
+        private int[] sequences = new int[64];
+        private StationPoint.Id[] points = new StationPoint.Id[64];
+        private int[] arrivals = new int[64];
+        private int[] departures = new int[64];
+        private double[] distances = new double[64];
+        /**
+         * Индексы остановок в порядке stop_sequence
+         */
+        private int[] order = new int[64];
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int sequence, StationPoint.Id point, int arrival, int departure, double distance) {
+            if (size == sequences.length) {
+                int capacity = size * 2;
+                sequences = Arrays.copyOf(sequences, capacity);
+                points = Arrays.copyOf(points, capacity);
+                arrivals = Arrays.copyOf(arrivals, capacity);
+                departures = Arrays.copyOf(departures, capacity);
+                distances = Arrays.copyOf(distances, capacity);
+                order = Arrays.copyOf(order, capacity);
+            }
+            sequences[size] = sequence;
+            points[size] = point;
+            arrivals[size] = arrival;
+            departures[size] = departure;
+            distances[size] = distance;
+            ++size;
+        }
+
+        /**
+         * Упорядочивание остановок и заполнение отсутствующего времени
+         *
+         * @return false, если не задано время первой или последней остановки
+         */
+        boolean prepare() {
+            boolean sorted = true;
+            for (int i = 0; i < size; ++i) {
+                order[i] = i;
+                sorted &= i == 0 || sequences[i - 1] < sequences[i];
+            }
+            if (!sorted) {
+                Integer[] boxed = new Integer[size];
+                for (int i = 0; i < size; ++i) {
+                    boxed[i] = i;
+                }
+                Arrays.sort(boxed, (lhs, rhs) -> Integer.compare(sequences[lhs], sequences[rhs]));
+                for (int i = 0; i < size; ++i) {
+                    order[i] = boxed[i];
+                }
+            }
+            for (int i = 0; i < size; ++i) {
+                int k = order[i];
+                if (arrivals[k] == -1) {
+                    arrivals[k] = departures[k];
+                } else if (departures[k] == -1) {
+                    departures[k] = arrivals[k];
+                }
+            }
+            if (departures[order[0]] == -1 || arrivals[order[size - 1]] == -1) {
+                return false;
+            }
+            int previous = 0;
+            for (int i = 1; i < size; ++i) {
+                int k = order[i];
+                if (arrivals[k] != -1) {
+                    // промежуточные остановки без времени равномерно распределяются между соседними остановками
+                    int from = departures[order[previous]];
+                    for (int j = previous + 1; j < i; ++j) {
+                        int time = from + (int) ((long) (arrivals[k] - from) * (j - previous) / (i - previous));
+                        arrivals[order[j]] = time;
+                        departures[order[j]] = time;
+                    }
+                    previous = i;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Чтение файла CSV через буфер NIO. Поля текущей строки хранятся в общем массиве байт и декодируются по запросу,
+     * числа и время разбираются прямо из байт
+     */
+    static final class CsvReader implements Closeable {
+        private final Path file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        private final Map<String, Integer> columns = new HashMap<>();
+        private byte[] line = new byte[256];
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int fields;
+        private long bytes;
+        private long rows;
+
+        CsvReader(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            buffer.flip();
+            if (!next()) {
+                channel.close();
+                throw new IOException(file + " has no header");
+            }
+            if (ends[0] - starts[0] >= 3 && line[0] == (byte) 0xEF && line[1] == (byte) 0xBB && line[2] == (byte) 0xBF) {
+                starts[0] += 3;
+            }
+            for (int i = 0; i < fields; ++i) {
+                columns.put(string(i), i);
+            }
+            rows = 0;
+        }
+
+        int column(String name) throws IOException {
+            int column = optionalColumn(name);
+            if (column == -1) {
+                throw new IOException(file + " has no column " + name);
+            }
+            return column;
+        }
+
+        int optionalColumn(String name) {
+            return columns.getOrDefault(name, -1);
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        long getRows() {
+            return rows;
+        }
+
+        private int read() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int count = channel.read(buffer);
+                buffer.flip();
+                if (count <= 0) {
+                    return -1;
+                }
+                bytes += count;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        /**
+         * Чтение следующей строки
+         *
+         * @return false, если файл закончился
+         */
+        boolean next() throws IOException {
+            int c = read();
+            while (c == '\r' || c == '\n') {
+                c = read();
+            }
+            if (c == -1) {
+                return false;
+            }
+            fields = 0;
+            int length = 0;
+            int start = 0;
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException(file + " has an unterminated quoted field in row " + (rows + 1));
+                    }
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                } else if (c == '"' && length == start) {
+                    quoted = true;
+                    c = read();
+                    continue;
+                } else if (c == ',' || c == '\n' || c == '\r' || c == -1) {
+                    addField(start, length);
+                    if (c != ',') {
+                        break;
+                    }
+                    start = length;
+                    c = read();
+                    continue;
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = (byte) c;
+                c = read();
+            }
+            ++rows;
+            return true;
+        }
+
+        private void addField(int start, int end) {
+            if (fields == starts.length) {
+                starts = Arrays.copyOf(starts, fields * 2);
+                ends = Arrays.copyOf(ends, fields * 2);
+            }
+            starts[fields] = start;
+            ends[fields] = end;
+            ++fields;
+        }
+
+        boolean isEmpty(int column) {
+            return column < 0 || column >= fields || starts[column] == ends[column];
+        }
+
+        /**
+         * @return значение поля без пробелов по краям; пустая строка, если поля нет
+         */
+        String string(int column) {
+            if (isEmpty(column)) {
+                return "";
+            }
+            return new String(line, starts[column], ends[column] - starts[column], StandardCharsets.UTF_8).trim();
+        }
+
+        int integer(int column) throws IOException {
+            if (isEmpty(column)) {
+                throw new IOException(file + " has an empty number in row " + rows);
+            }
+            int value = 0;
+            boolean negative = false;
+            for (int i = starts[column]; i < ends[column]; ++i) {
+                byte c = line[i];
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + c - '0';
+                } else if (c == '-' && i == starts[column]) {
+                    negative = true;
+                } else if (c != ' ') {
+                    throw new IOException(file + " has an invalid number " + string(column) + " in row " + rows);
+                }
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * @return время вида H:MM:SS в секундах от начала дня обслуживания (может превышать сутки) или -1, если поле пусто
+         */
+        int seconds(int column) throws IOException {
+            if (isEmpty(column)) {
+                return -1;
+            }
+            int value = 0;
+            int part = 0;
+            int parts = 0;
+            for (int i = starts[column]; i < ends[column]; ++i) {
+                byte c = line[i];
+                if (c >= '0' && c <= '9') {
+                    part = part * 10 + c - '0';
+                } else if (c == ':') {
+                    value = value * 60 + part;
+                    part = 0;
+                    ++parts;
+                } else if (c != ' ') {
+                    throw new IOException(file + " has an invalid time " + string(column) + " in row " + rows);
+                }
+            }
+            if (parts != 2) {
+                throw new IOException(file + " has an invalid time " + string(column) + " in row " + rows);
+            }
+            return value * 60 + part;
+        }
+
+        /**
+         * @return дата вида YYYYMMDD
+         */
+        LocalDate date(int column) throws IOException {
+            int value = integer(column);
+            return LocalDate.of(value / 10000, value / 100 % 100, value % 100);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.math3.distribution.EnumeratedDistribution;
+import org.apache.commons.math3.random.JDKRandomGenerator;
 
 import java.time.Clock;
 import java.time.Duration;
@@ -17,7 +18,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
-import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collector;
@@ -30,7 +30,11 @@ import java.util.stream.Collectors;
 public class MapGenerator {
     private final MapConfiguration config;
 
-    private final Random random;
+    /**
+     * Источник случайности генератора, в том числе для выбора соседних станций, поэтому станции и рейсы карты
+     * полностью определяются {@link MapConfiguration#getGraphSeed()}
+     */
+    private final JDKRandomGenerator random;
 
     private final Repository repository;
 
@@ -50,7 +54,8 @@ public class MapGenerator {
 
     public MapGenerator(MapConfiguration config, Repository repository, TransportRunService transportRunService) {
         this.config = config;
-        this.random = new Random(config.getGraphSeed());
+        this.random = new JDKRandomGenerator();
+        this.random.setSeed(config.getGraphSeed());
         this.repository = repository;
         this.transportRunService = transportRunService;
     }
@@ -327,7 +332,7 @@ public class MapGenerator {
                 if (list.isEmpty()) {
                     break;
                 }
-                neighbours = new EnumeratedDistribution<>(list);
+                neighbours = new EnumeratedDistribution<>(random, list);
                 //Collections.shuffle(neighbours, random);
                 GeoPoint next = neighbours.sample();
                 /*for (GeoPoint neighbour : neighbours) {
@@ -1,133 +1,356 @@
 package com.khovanskiy.util;
 
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Predicate;
 
 /**
+ * Временная шкала остановок рейсов, хранящаяся по столбцам: время в секундах от начала эпохи,
+ * номер рейса в словаре шкалы и порядковый номер остановки. Время хранится с точностью до секунды.
+ * <p>
+ * Добавленные события накапливаются в конце неотсортированными и сливаются с отсортированной частью
+ * одной сортировкой при первом чтении, поэтому загрузка n событий занимает O(n log n), а не O(n^2).
+ * Отсортированные столбцы неизменяемы и публикуются целиком, поэтому чтение не блокирует запись.
+ * При равном времени события упорядочиваются по рейсу и порядковому номеру остановки, если задан порядок рейсов,
+ * иначе идут в порядке добавления. Заданный порядок делает шкалу независимой от того, достраивалась ли она
+ * по частям или строилась заново.
+ *
+ * @param <R> тип ссылки на рейс
  * @author victor
  */
-public class Timeline<V> implements Iterable<Timeline.Entry<V>> {
-    private static final Comparator<? super Entry> COMPARATOR = (lhs, rhs) -> lhs.getKey().compareTo(rhs.getKey());
-    private transient Timeline<V> instance;
-    private transient Instant fromKey;
-    private transient boolean fromInclusive;
-    private transient Instant toKey;
-    private transient boolean toInclusive;
-    private final List<Entry<V>> data = new ArrayList<>();
-
-    protected Timeline(Timeline<V> instance, Instant fromKey, boolean fromInclusive, Instant toKey,
-                        boolean toInclusive) {
-        this.instance = instance;
-        this.fromKey = fromKey;
-        this.fromInclusive = fromInclusive;
-        this.toKey = toKey;
-        this.toInclusive = toInclusive;
-    }
+public class Timeline<R> {
+    private volatile Columns sorted;
+    /**
+     * События, еще не слитые с отсортированной частью, и словарь рейсов; изменяются под блокировкой шкалы
+     */
+    private Columns pending;
+    private final Map<R, Integer> runIds;
+    /**
+     * Порядок рейсов для событий с равным временем, null - порядок добавления
+     */
+    private final Comparator<Object> runOrder;
+    private volatile boolean dirty;
 
     public Timeline() {
-        this.instance = this;
+        this(Columns.EMPTY, new HashMap<>(), null);
+    }
+
+    private Timeline(Columns sorted, Map<R, Integer> runIds, Comparator<Object> runOrder) {
+        this.sorted = sorted;
+        this.runIds = runIds;
+        this.runOrder = runOrder;
     }
 
-    public void put(Instant key, V value) {
-        if (key == null) {
+    /**
+     * Шкала из столбцов, уже отсортированных по времени, например прочитанных из снимка расписания; массивы не копируются
+     *
+     * @param runs       номера рейсов в словаре {@code dictionary}
+     * @param dictionary различные рейсы шкалы
+     */
+    public static <R> Timeline<R> ofSorted(long[] times, int[] runs, int[] numbers, R[] dictionary) {
+        Map<R, Integer> runIds = new HashMap<>(dictionary.length * 2);
+        for (int i = 0; i < dictionary.length; ++i) {
+            runIds.put(dictionary[i], i);
+        }
+        return new Timeline<>(new Columns(times, runs, numbers, dictionary), runIds, null);
+    }
+
+    /**
+     * Добавление события
+     *
+     * @param time   время
+     * @param run    рейс
+     * @param number порядковый номер остановки рейса
+     */
+    public synchronized void put(Instant time, R run, int number) {
+        if (time == null) {
             throw new NullPointerException();
         }
-        Entry<V> entry = new Entry<>(key, value);
-        int index = Collections.binarySearch(data, entry, COMPARATOR);
-        if (index < 0) {
-            index = -(index + 1);
+        if (pending == null) {
+            pending = new Columns(16, sorted.dictionary);
         }
-        instance.data.add(index, entry);
+        pending.add(time.getEpochSecond(), runId(run, runIds, pending), number);
+        dirty = true;
     }
 
-    public Timeline<V> subMap(Instant fromKey, boolean fromInclusive, Instant toKey,
-                               boolean toInclusive) {
-        return new Timeline<>(this, fromKey, fromInclusive, toKey, toInclusive);
+    /**
+     * @return количество событий
+     */
+    public int size() {
+        return columns().size;
     }
 
-    public Timeline<V> headMap(Instant toKey, boolean inclusive) {
-        return new Timeline<>(this, null, false, toKey, inclusive);
+    /**
+     * События в интервале времени, границы включаются
+     */
+    public Cursor<R> range(Instant from, Instant to) {
+        // событие в секунду from попадает в интервал, только если у from нет долей секунды
+        long since = from == null ? Long.MIN_VALUE : from.getEpochSecond() + (from.getNano() > 0 ? 1 : 0);
+        long till = to == null ? Long.MAX_VALUE : to.getEpochSecond();
+        return range(since, till);
     }
 
-    public Timeline<V> tailMap(Instant fromKey, boolean inclusive) {
-        return new Timeline<>(this, fromKey, inclusive, null, false);
+    /**
+     * События в интервале времени, границы включаются
+     *
+     * @param from время в секундах от начала эпохи
+     * @param to   время в секундах от начала эпохи
+     */
+    public Cursor<R> range(long from, long to) {
+        Columns columns = columns();
+        return new Cursor<>(columns, columns.lowerBound(from), columns.lowerBound(to == Long.MAX_VALUE ? to : to + 1));
     }
 
-    @Override
-    public Iterator<Entry<V>> iterator() {
-        return new TimelineIterator();
+    /**
+     * Отсортированные столбцы, включающие все добавленные события
+     */
+    private Columns columns() {
+        if (dirty) {
+            synchronized (this) {
+                if (pending != null) {
+                    sorted = sorted.merge(pending, runOrder);
+                    pending = null;
+                }
+                dirty = false;
+            }
+        }
+        return sorted;
+    }
+
+    private static <R> int runId(R run, Map<R, Integer> runIds, Columns columns) {
+        Integer id = runIds.get(run);
+        if (id == null) {
+            id = runIds.size();
+            runIds.put(run, id);
+            if (id == columns.dictionary.length) {
+                columns.dictionary = Arrays.copyOf(columns.dictionary, Math.max(4, id * 2));
+            }
+            columns.dictionary[id] = run;
+        }
+        return id;
     }
 
-    public String toString() {
-        return "Timeline(" + this.data + ")";
+    /**
+     * Построение шкалы из большого количества событий с одной сортировкой
+     */
+    public static class Builder<R> {
+        private final Columns columns;
+        private final Map<R, Integer> runIds = new HashMap<>();
+        private final Comparator<Object> runOrder;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int capacity) {
+            this(capacity, null);
+        }
+
+        /**
+         * @param runOrder порядок рейсов для событий с равным временем, null - порядок добавления
+         */
+        @SuppressWarnings("unchecked")
+        public Builder(int capacity, Comparator<? super R> runOrder) {
+            this.columns = new Columns(Math.max(capacity, 1), new Object[4]);
+            this.runOrder = (Comparator<Object>) runOrder;
+        }
+
+        public Builder<R> add(Instant time, R run, int number) {
+            return add(time.getEpochSecond(), run, number);
+        }
+
+        public Builder<R> add(long time, R run, int number) {
+            columns.add(time, runId(run, runIds, columns), number);
+            return this;
+        }
+
+        /**
+         * Добавление событий шкалы, рейсы которых удовлетворяют условию, в порядке шкалы
+         */
+        public Builder<R> addAll(Timeline<R> timeline, Predicate<? super R> filter) {
+            Cursor<R> cursor = timeline.range(Long.MIN_VALUE, Long.MAX_VALUE);
+            while (cursor.next()) {
+                if (filter.test(cursor.run())) {
+                    add(cursor.seconds(), cursor.run(), cursor.number());
+                }
+            }
+            return this;
+        }
+
+        public Timeline<R> build() {
+            return new Timeline<>(Columns.EMPTY.merge(columns, runOrder), new HashMap<>(runIds), runOrder);
+        }
     }
 
-    public static class Entry<V> implements Map.Entry<Instant, V> {
+    /**
+     * Курсор по событиям интервала. Перед чтением первого события вызывается {@link #next()}.
+     */
+    public static final class Cursor<R> {
+        private final Columns columns;
+        private int position;
+        private final int end;
 
-        private final Instant key;
-        private V value;
+        private Cursor(Columns columns, int begin, int end) {
+            this.columns = columns;
+            this.position = begin - 1;
+            this.end = end;
+        }
+
+        /**
+         * @return есть ли следующее событие, на которое перемещен курсор
+         */
+        public boolean next() {
+            return ++position < end;
+        }
 
-        public Entry(Instant key, V value) {
-            this.key = key;
-            this.value = value;
+        /**
+         * @return время в секундах от начала эпохи
+         */
+        public long seconds() {
+            return columns.times[position];
         }
 
-        @Override
-        public Instant getKey() {
-            return key;
+        public Instant time() {
+            return Instant.ofEpochSecond(columns.times[position]);
         }
 
-        @Override
-        public V getValue() {
-            return value;
+        @SuppressWarnings("unchecked")
+        public R run() {
+            return (R) columns.dictionary[columns.runs[position]];
         }
 
-        @Override
-        public V setValue(V value) {
-            V oldValue = this.value;
-            this.value = value;
-            return oldValue;
+        public int number() {
+            return columns.numbers[position];
         }
     }
 
-    private class TimelineIterator implements Iterator<Entry<V>> {
-        private int fromIndex;
-        private int toIndex;
+    /**
+     * Столбцы событий. Отсортированные столбцы не изменяются после публикации,
+     * словарь рейсов может только дополняться.
+     */
+    private static final class Columns {
+        static final Columns EMPTY = new Columns(0, new Object[0]);
 
-        public TimelineIterator() {
-            if (fromKey != null) {
-                Entry<V> fromEntry = new Entry<>(fromKey, null);
-                if (fromInclusive) {
-                    fromIndex = CollectionUtils.lowerBound(instance.data, fromEntry, COMPARATOR);
+        long[] times;
+        int[] runs;
+        int[] numbers;
+        int size;
+        Object[] dictionary;
+
+        Columns(int capacity, Object[] dictionary) {
+            this(new long[capacity], new int[capacity], new int[capacity], dictionary);
+            this.size = 0;
+        }
+
+        Columns(long[] times, int[] runs, int[] numbers, Object[] dictionary) {
+            this.times = times;
+            this.runs = runs;
+            this.numbers = numbers;
+            this.size = times.length;
+            this.dictionary = dictionary;
+        }
+
+        void add(long time, int run, int number) {
+            if (size == times.length) {
+                int capacity = Math.max(16, size * 2);
+                times = Arrays.copyOf(times, capacity);
+                runs = Arrays.copyOf(runs, capacity);
+                numbers = Arrays.copyOf(numbers, capacity);
+            }
+            times[size] = time;
+            runs[size] = run;
+            numbers[size] = number;
+            ++size;
+        }
+
+        /**
+         * @return первая позиция события не раньше {@code time}
+         */
+        int lowerBound(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < time) {
+                    low = mid + 1;
                 } else {
-                    fromIndex = CollectionUtils.upperBound(instance.data, fromEntry, COMPARATOR);
+                    high = mid;
                 }
             }
-            if (toKey != null) {
-                Entry<V> toEntry = new Entry<>(toKey, null);
-                if (toInclusive) {
-                    toIndex = CollectionUtils.upperBound(instance.data, toEntry, COMPARATOR);
+            return low;
+        }
+
+        /**
+         * Слияние с неотсортированными событиями, при равенстве текущие события идут первыми
+         *
+         * @param added    события с номерами рейсов в словаре {@code added.dictionary}, продолжающем словарь текущих
+         * @param runOrder порядок рейсов для событий с равным временем, null - порядок добавления
+         * @return новые столбцы
+         */
+        Columns merge(Columns added, Comparator<Object> runOrder) {
+            int[] order = new int[added.size];
+            for (int i = 0; i < added.size; ++i) {
+                order[i] = i;
+            }
+            mergeSort(added, runOrder, order, new int[added.size], 0, added.size);
+            Columns result = new Columns(size + added.size, added.dictionary);
+            int i = 0;
+            int j = 0;
+            while (i < size || j < added.size) {
+                if (j == added.size || (i < size && compare(this, i, added, order[j], runOrder) <= 0)) {
+                    result.add(times[i], runs[i], numbers[i]);
+                    ++i;
                 } else {
-                    toIndex = CollectionUtils.lowerBound(instance.data, toEntry, COMPARATOR);
+                    result.add(added.times[order[j]], added.runs[order[j]], added.numbers[order[j]]);
+                    ++j;
                 }
-            } else {
-                toIndex = instance.data.size();
             }
+            return result;
         }
 
-        @Override
-        public boolean hasNext() {
-            return fromIndex < toIndex;
+        /**
+         * Сравнение событий по времени, а при равном времени - по рейсу и порядковому номеру остановки,
+         * если порядок рейсов задан
+         */
+        private static int compare(Columns lhs, int i, Columns rhs, int j, Comparator<Object> runOrder) {
+            int result = Long.compare(lhs.times[i], rhs.times[j]);
+            if (result != 0 || runOrder == null) {
+                return result;
+            }
+            Object lhsRun = lhs.dictionary[lhs.runs[i]];
+            Object rhsRun = rhs.dictionary[rhs.runs[j]];
+            if (lhsRun != rhsRun && !lhsRun.equals(rhsRun)) {
+                result = runOrder.compare(lhsRun, rhsRun);
+            }
+            return result != 0 ? result : Integer.compare(lhs.numbers[i], rhs.numbers[j]);
         }
 
-        @Override
-        public Entry<V> next() {
-            return instance.data.get(fromIndex++);
+        /**
+         * Устойчивая сортировка позиций событий
+         */
+        private static void mergeSort(Columns columns, Comparator<Object> runOrder, int[] order, int[] buffer, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            mergeSort(columns, runOrder, order, buffer, from, mid);
+            mergeSort(columns, runOrder, order, buffer, mid, to);
+            if (compare(columns, order[mid - 1], columns, order[mid], runOrder) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, buffer, from, to - from);
+            int i = from;
+            int j = mid;
+            for (int k = from; k < to; ++k) {
+                if (j == to || (i < mid && compare(columns, buffer[i], columns, buffer[j], runOrder) <= 0)) {
+                    order[k] = buffer[i++];
+                } else {
+                    order[k] = buffer[j++];
+                }
+            }
         }
     }
 }
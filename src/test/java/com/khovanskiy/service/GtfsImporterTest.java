@@ -0,0 +1,172 @@
+package com.khovanskiy.service;
+
+import com.khovanskiy.config.RouteBuilderConfig;
+import com.khovanskiy.model.Path;
+import com.khovanskiy.model.PointTimeInterval;
+import com.khovanskiy.model.RailwayCarrier;
+import com.khovanskiy.model.RailwayWaypoint;
+import com.khovanskiy.model.ResultPresentation;
+import com.khovanskiy.model.StationPoint;
+import com.khovanskiy.model.TrainRun;
+import com.khovanskiy.model.runtime.RouteBuilderQuery;
+import com.khovanskiy.runtime.DefaultRouteBuilderFilter;
+import com.khovanskiy.runtime.DefaultRouteBuilderHandler;
+import com.khovanskiy.runtime.RouteBuilder;
+import com.khovanskiy.util.GtfsImporter;
+import com.khovanskiy.util.InstantInterval;
+import com.khovanskiy.util.Now;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Загрузка расписания GTFS: рейсы строятся на дни обслуживания с заполнением пропущенного времени,
+ * а расписание, загруженное пакетами, совпадает с расписанием, построенным по тем же рейсам одним обновлением
+ *
+ * @author victor
+ */
+public class GtfsImporterTest {
+    private static final LocalDate FROM = LocalDate.of(2016, 2, 5);
+    private static final LocalDate TO = LocalDate.of(2016, 2, 8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RouteBuilderConfig config = new RouteBuilderConfig(3, 600, 86400, 5, 500);
+
+    @Before
+    public void setClock() {
+        Now.setClock(Clock.fixed(FROM.atStartOfDay().toInstant(ZoneOffset.UTC), ZoneOffset.UTC));
+    }
+
+    @Test
+    public void buildsRunsForServiceDays() throws IOException {
+        Repository repository = new Repository();
+        GtfsImporter.Statistics statistics = load(repository, new RouteBuilder(config, repository), 1);
+        Assert.assertEquals(4, statistics.getStops());
+        Assert.assertEquals(4, statistics.getTrips());
+        Assert.assertEquals(9, statistics.getStopTimes());
+        // T1 по будням 5 и 8 февраля, T2 по выходным 6 и 7 февраля; у T3 нет дней обслуживания,
+        // у T4 нет времени последней остановки
+        Assert.assertEquals(4, statistics.getRuns());
+        Assert.assertEquals(4, repository.findAll(TrainRun.class).size());
+
+        TrainRun weekday = repository.find(new TrainRun.Id("T1/2016-02-08")).get();
+        Assert.assertEquals("101", weekday.getName());
+        // промежуточная остановка на платформе относится к станции, ее время делит перегон пополам
+        assertWaypoints(weekday,
+                "A", "2016-02-08T08:00:00Z", "2016-02-08T08:05:00Z",
+                "B", "2016-02-08T09:02:30Z", "2016-02-08T09:02:30Z",
+                "C", "2016-02-08T10:00:00Z", "2016-02-08T10:00:00Z");
+
+        // время после полуночи отсчитывается от дня обслуживания
+        TrainRun weekend = repository.find(new TrainRun.Id("T2/2016-02-07")).get();
+        Assert.assertEquals("T2", weekend.getName());
+        assertWaypoints(weekend,
+                "C", "2016-02-07T23:30:00Z", "2016-02-07T23:40:00Z",
+                "D", "2016-02-08T01:10:00Z", "2016-02-08T01:10:00Z");
+        Assert.assertTrue(repository.find(new StationPoint.Id("D")).isPresent());
+        Assert.assertFalse(repository.find(new StationPoint.Id("B1")).isPresent());
+        Assert.assertFalse(repository.find(new TrainRun.Id("T3/2016-02-05")).isPresent());
+    }
+
+    @Test
+    public void batchesMatchSingleUpdate() throws IOException {
+        Repository repository = new Repository();
+        RouteBuilder imported = new RouteBuilder(config, repository);
+        load(repository, imported, 1);
+        List<TrainRun> runs = repository.findAll(TrainRun.class);
+        RouteBuilder rebuilt = new RouteBuilder(config, repository);
+        rebuilt.update(runs, Collections.emptyList(), Collections.emptyList());
+
+        List<String> expected = search(rebuilt);
+        Assert.assertEquals(expected, search(imported));
+        Assert.assertTrue(expected.get(0), expected.get(0).contains("2016-02-05T10:00:00Z"));
+        Assert.assertTrue(expected.get(1), expected.get(1).contains("2016-02-08T01:10:00Z"));
+    }
+
+    private GtfsImporter.Statistics load(Repository repository, RouteBuilder routeBuilder, int batchSize) throws IOException {
+        java.nio.file.Path directory = folder.newFolder().toPath();
+        // файл с меткой порядка байт, платформой станции и полем в кавычках
+        write(directory, "stops.txt",
+                "\uFEFFstop_id,stop_name,parent_station",
+                "A,Альфа,",
+                "B,Бета,",
+                "B1,Бета платформа 1,B",
+                "C,Гамма,",
+                "D,\"Вокзал, главный\",");
+        write(directory, "calendar.txt",
+                "service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date",
+                "WEEKDAY,1,1,1,1,1,0,0,20160101,20161231",
+                "WEEKEND,0,0,0,0,0,1,1,20160101,20161231");
+        write(directory, "trips.txt",
+                "route_id,service_id,trip_id,trip_short_name",
+                "R1,WEEKDAY,T1,101",
+                "R2,WEEKEND,T2,",
+                "R3,HOLIDAY,T3,",
+                "R4,WEEKDAY,T4,");
+        // остановки поездки T1 идут не по порядку, у остановки на платформе нет времени
+        write(directory, "stop_times.txt",
+                "trip_id,arrival_time,departure_time,stop_id,stop_sequence,shape_dist_traveled",
+                "T1,08:00:00,08:05:00,A,1,0",
+                "T1,10:00:00,10:00:00,C,3,120.5",
+                "T1,,,B1,2,60",
+                "T2,23:30:00,23:40:00,C,1,",
+                "T2,25:10:00,25:10:00,D,2,",
+                "T3,12:00:00,12:00:00,A,1,",
+                "T3,13:00:00,13:00:00,B,2,",
+                "T4,12:00:00,12:00:00,A,1,",
+                "T4,,,B,2,");
+        return new GtfsImporter(repository, routeBuilder, ZoneOffset.UTC, new RailwayCarrier.Id("RA"), batchSize)
+                .load(directory, FROM, TO);
+    }
+
+    private static void write(java.nio.file.Path directory, String name, String... lines) throws IOException {
+        Files.write(directory.resolve(name), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    private static void assertWaypoints(TrainRun run, String... expected) {
+        List<String> actual = new ArrayList<>();
+        for (RailwayWaypoint waypoint : run.getWaypoints()) {
+            actual.add(((StationPoint.Id) waypoint.getPoint()).getId());
+            actual.add(waypoint.getArrival().toString());
+            actual.add(waypoint.getDeparture().toString());
+        }
+        Assert.assertEquals(Arrays.asList(expected), actual);
+    }
+
+    /**
+     * Маршруты A -> C и C -> D с начала загруженного интервала
+     */
+    @SuppressWarnings("unchecked")
+    private static List<String> search(RouteBuilder routeBuilder) {
+        List<String> results = new ArrayList<>();
+        for (String[] stations : new String[][]{{"A", "C"}, {"C", "D"}}) {
+            RouteBuilderQuery query = new RouteBuilderQuery(
+                    new PointTimeInterval(new StationPoint.Id(stations[0]), new InstantInterval(Now.instant(), null)),
+                    new PointTimeInterval(new StationPoint.Id(stations[1]), InstantInterval.full()),
+                    new DefaultRouteBuilderFilter(),
+                    new ResultPresentation(ResultPresentation.SortOrder.ARRIVAL, ResultPresentation.SortDirection.ASC, 10),
+                    0);
+            StringBuilder result = new StringBuilder();
+            for (Path path : routeBuilder.findRoutes(query, new DefaultRouteBuilderHandler()).getRoutes()) {
+                result.append(path);
+            }
+            results.add(result.toString());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,176 @@
+package com.khovanskiy.service;
+
+import com.khovanskiy.config.RouteBuilderConfig;
+import com.khovanskiy.model.Path;
+import com.khovanskiy.model.PointTimeInterval;
+import com.khovanskiy.model.RailwayWaypoint;
+import com.khovanskiy.model.ResultPresentation;
+import com.khovanskiy.model.TrainRun;
+import com.khovanskiy.model.runtime.RouteBuilderQuery;
+import com.khovanskiy.runtime.DefaultRouteBuilderFilter;
+import com.khovanskiy.runtime.DefaultRouteBuilderHandler;
+import com.khovanskiy.runtime.Journal;
+import com.khovanskiy.runtime.RouteBuilder;
+import com.khovanskiy.util.GeneratedMap;
+import com.khovanskiy.util.InstantInterval;
+import com.khovanskiy.util.MapConfiguration;
+import com.khovanskiy.util.MapGenerator;
+import com.khovanskiy.util.Now;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Восстановление расписания из снимка и журнала: поиски и стоимости проезда после повторного открытия
+ * совпадают с поисками и стоимостями исходного расписания
+ *
+ * @author victor
+ */
+public class JournalTest {
+    private static final int QUERIES_COUNT = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RouteBuilderConfig config = new RouteBuilderConfig(3, 1800, 86400, 5, 500);
+    private final MapConfiguration configuration = MapConfiguration.getDefaultConfiguration();
+    private GeneratedMap map;
+
+    @Before
+    public void generate() {
+        configuration.setPointsCount(40);
+        configuration.setMaxTrainsCount(40);
+        configuration.setMaxRunsCount(300);
+        Now.setClock(Clock.fixed(configuration.getFakeNow(), ZoneId.systemDefault()));
+        Repository repository = new Repository();
+        map = new MapGenerator(configuration, repository, new TransportRunService()).generate();
+    }
+
+    @Test
+    public void replaysUpdatesAndDelaysOverSnapshot() throws IOException {
+        java.nio.file.Path directory = folder.newFolder().toPath();
+        RouteBuilder routeBuilder = new RouteBuilder(config, new Repository());
+        Journal journal = new Journal(directory, 0, Long.MAX_VALUE);
+        routeBuilder.openJournal(journal);
+        routeBuilder.update(map.getTrainRuns(), Collections.emptyList(), Collections.emptyList());
+        routeBuilder.compactJournal();
+        applyChanges(routeBuilder);
+        List<String> expected = search(routeBuilder);
+        journal.close();
+
+        RouteBuilder reopened = new RouteBuilder(config, new Repository());
+        try (Journal reopenedJournal = new Journal(directory, 0, Long.MAX_VALUE)) {
+            reopened.openJournal(reopenedJournal);
+            Assert.assertEquals(expected, search(reopened));
+        }
+    }
+
+    @Test
+    public void dropsTornTail() throws IOException {
+        java.nio.file.Path directory = folder.newFolder().toPath();
+        RouteBuilder routeBuilder = new RouteBuilder(config, new Repository());
+        Journal journal = new Journal(directory, 0, Long.MAX_VALUE);
+        routeBuilder.openJournal(journal);
+        routeBuilder.update(map.getTrainRuns(), Collections.emptyList(), Collections.emptyList());
+        routeBuilder.compactJournal();
+        applyChanges(routeBuilder);
+        List<String> beforeLast = search(routeBuilder);
+        // последняя запись журнала - задержка всех рейсов
+        List<RouteBuilder.Delay> last = new ArrayList<>();
+        for (TrainRun run : map.getTrainRuns()) {
+            last.add(new RouteBuilder.Delay(run.getId(), 0, Duration.ofMinutes(90)));
+        }
+        routeBuilder.delay(last);
+        List<String> expected = search(routeBuilder);
+        Assert.assertNotEquals(beforeLast, expected);
+        journal.close();
+
+        // последняя запись оборвана
+        java.nio.file.Path file = directory.resolve("timetable.journal");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        RouteBuilder reopened = new RouteBuilder(config, new Repository());
+        try (Journal reopenedJournal = new Journal(directory, 0, Long.MAX_VALUE)) {
+            reopened.openJournal(reopenedJournal);
+            Assert.assertEquals(beforeLast, search(reopened));
+            // новая запись идет сразу за последней целой записью
+            reopened.delay(last);
+            Assert.assertEquals(expected, search(reopened));
+        }
+
+        RouteBuilder again = new RouteBuilder(config, new Repository());
+        try (Journal againJournal = new Journal(directory, 0, Long.MAX_VALUE)) {
+            again.openJournal(againJournal);
+            Assert.assertEquals(expected, search(again));
+        }
+    }
+
+    /**
+     * Обновление и удаление части рейсов и задержки рейсов снимка и обновленных рейсов
+     */
+    private void applyChanges(RouteBuilder routeBuilder) {
+        List<TrainRun> runs = map.getTrainRuns();
+        List<TrainRun> updated = new ArrayList<>();
+        List<TrainRun> deleted = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += 7) {
+            TrainRun run = runs.get(i);
+            if (i % 2 == 0) {
+                List<RailwayWaypoint> waypoints = new ArrayList<>();
+                for (RailwayWaypoint waypoint : run.getWaypoints()) {
+                    waypoints.add(waypoint.shifted(Duration.ofMinutes(20)));
+                }
+                updated.add(run.withWaypoints(waypoints));
+            } else {
+                deleted.add(run);
+            }
+        }
+        routeBuilder.update(Collections.emptyList(), updated, deleted);
+        for (int i = 3; i < runs.size(); i += 11) {
+            TrainRun run = runs.get(i);
+            routeBuilder.delay(run.getId(), i % run.getWaypoints().size(), Duration.ofMinutes(15 + i % 60));
+        }
+        routeBuilder.delay(updated.get(0).getId(), 1, Duration.ofMinutes(30));
+    }
+
+    /**
+     * Маршруты и их стоимости для одних и тех же запросов
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> search(RouteBuilder routeBuilder) {
+        Random random = new Random(17);
+        List<MapGenerator.GeoPoint> stations = map.getStations();
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < QUERIES_COUNT; ++i) {
+            MapGenerator.GeoPoint from = stations.get(random.nextInt(stations.size()));
+            MapGenerator.GeoPoint to = stations.get(random.nextInt(stations.size()));
+            ResultPresentation.SortOrder order = i % 2 == 0 ? ResultPresentation.SortOrder.PRICE
+                    : ResultPresentation.SortOrder.ARRIVAL;
+            RouteBuilderQuery query = new RouteBuilderQuery(
+                    new PointTimeInterval(from.getPoint().getId(), new InstantInterval(configuration.getFakeNow(), null)),
+                    new PointTimeInterval(to.getPoint().getId(), InstantInterval.full()),
+                    new DefaultRouteBuilderFilter(),
+                    new ResultPresentation(order, ResultPresentation.SortDirection.ASC, 5),
+                    0);
+            StringBuilder result = new StringBuilder(from.getPoint().getId() + " -> " + to.getPoint().getId() + "\n");
+            for (Path path : routeBuilder.findRoutes(query, new DefaultRouteBuilderHandler()).getRoutes()) {
+                result.append(path).append("price ").append(routeBuilder.price(path)).append('\n');
+            }
+            results.add(result.toString());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,124 @@
+package com.khovanskiy.service;
+
+import com.khovanskiy.config.RouteBuilderConfig;
+import com.khovanskiy.model.Path;
+import com.khovanskiy.model.PointTimeInterval;
+import com.khovanskiy.model.RailwayWaypoint;
+import com.khovanskiy.model.ResultPresentation;
+import com.khovanskiy.model.TrainRun;
+import com.khovanskiy.model.runtime.RouteBuilderQuery;
+import com.khovanskiy.model.runtime.SearchEngine;
+import com.khovanskiy.runtime.DefaultRouteBuilderFilter;
+import com.khovanskiy.runtime.DefaultRouteBuilderHandler;
+import com.khovanskiy.runtime.RouteBuilder;
+import com.khovanskiy.util.GeneratedMap;
+import com.khovanskiy.util.InstantInterval;
+import com.khovanskiy.util.MapConfiguration;
+import com.khovanskiy.util.MapGenerator;
+import com.khovanskiy.util.Now;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Параллельное исследование сети находит те же маршруты, что и последовательное
+ *
+ * @author victor
+ */
+public class ParallelSearchTest {
+    private static final int QUERIES_COUNT = 30;
+    /**
+     * Количество дней, по которым повторяются рейсы карты
+     */
+    private static final int DAYS_COUNT = 3;
+    /**
+     * Больше количества маршрутов между любыми станциями карты, поэтому порядок маршрутов с равными ключами
+     * сортировки не влияет на их набор
+     */
+    private static final int LIMIT = 100000;
+
+    private final RouteBuilderConfig config = new RouteBuilderConfig(2, 1800, 86400, 5, LIMIT);
+    private final MapConfiguration configuration = MapConfiguration.getDefaultConfiguration();
+    private GeneratedMap map;
+    private RouteBuilder routeBuilder;
+
+    @Before
+    public void generate() {
+        configuration.setPointsCount(40);
+        configuration.setMaxTrainsCount(40);
+        configuration.setMaxRunsCount(100);
+        Now.setClock(Clock.fixed(configuration.getFakeNow(), ZoneId.systemDefault()));
+        Repository repository = new Repository();
+        map = new MapGenerator(configuration, repository, new TransportRunService()).generate();
+        routeBuilder = new RouteBuilder(config, repository);
+        routeBuilder.update(repeatedRuns(), Collections.emptyList(), Collections.emptyList());
+    }
+
+    @Test
+    public void findsSamePaths() {
+        for (ResultPresentation.SortOrder order : ResultPresentation.SortOrder.values()) {
+            Assert.assertEquals(order.toString(), search(order, SearchEngine.BFS, false),
+                    search(order, SearchEngine.BFS, true));
+        }
+    }
+
+    @Test
+    public void findsSamePathsByRounds() {
+        Assert.assertEquals(search(ResultPresentation.SortOrder.TRANSFERS, SearchEngine.RAPTOR, false),
+                search(ResultPresentation.SortOrder.TRANSFERS, SearchEngine.RAPTOR, true));
+    }
+
+    /**
+     * Рейсы карты, повторенные в следующие дни, чтобы очередь состояний делилась пулом на несколько частей
+     */
+    private List<TrainRun> repeatedRuns() {
+        List<TrainRun> runs = new ArrayList<>(map.getTrainRuns());
+        for (int day = 1; day < DAYS_COUNT; ++day) {
+            for (TrainRun run : map.getTrainRuns()) {
+                List<RailwayWaypoint> waypoints = new ArrayList<>();
+                for (RailwayWaypoint waypoint : run.getWaypoints()) {
+                    waypoints.add(waypoint.shifted(Duration.ofDays(day)));
+                }
+                TrainRun repeated = new TrainRun(new TrainRun.Id(run.getName() + "/" + day), run.getName(), waypoints);
+                repeated.fillRailwayRun(repeated, run.getCarrierId(), run.getSaleDepth(), run.getCarriages());
+                runs.add(repeated);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Наборы маршрутов для одних и тех же запросов: количество маршрутов и маршруты в порядке их строк
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> search(ResultPresentation.SortOrder order, SearchEngine engine, boolean parallel) {
+        Random random = new Random(23);
+        List<MapGenerator.GeoPoint> stations = map.getStations();
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < QUERIES_COUNT; ++i) {
+            MapGenerator.GeoPoint from = stations.get(random.nextInt(stations.size()));
+            MapGenerator.GeoPoint to = stations.get(random.nextInt(stations.size()));
+            RouteBuilderQuery query = new RouteBuilderQuery(
+                    new PointTimeInterval(from.getPoint().getId(), new InstantInterval(configuration.getFakeNow(), null)),
+                    new PointTimeInterval(to.getPoint().getId(), InstantInterval.full()),
+                    new DefaultRouteBuilderFilter(),
+                    new ResultPresentation(order, ResultPresentation.SortDirection.ASC, LIMIT),
+                    0, engine, parallel, 0);
+            List<String> paths = new ArrayList<>();
+            for (Path path : routeBuilder.findRoutes(query, new DefaultRouteBuilderHandler()).getRoutes()) {
+                paths.add(path.toString());
+            }
+            Collections.sort(paths);
+            results.add(from.getPoint().getId() + " -> " + to.getPoint().getId() + ": " + paths.size() + "\n" + paths);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,240 @@
+package com.khovanskiy.service;
+
+import com.khovanskiy.config.RouteBuilderConfig;
+import com.khovanskiy.model.ForwardSegment;
+import com.khovanskiy.model.Path;
+import com.khovanskiy.model.PointTimeInterval;
+import com.khovanskiy.model.RailwayWaypoint;
+import com.khovanskiy.model.Ref;
+import com.khovanskiy.model.ResultPresentation;
+import com.khovanskiy.model.Stop;
+import com.khovanskiy.model.TrainRun;
+import com.khovanskiy.model.runtime.RouteBuilderQuery;
+import com.khovanskiy.model.runtime.SearchEngine;
+import com.khovanskiy.runtime.Algorithm;
+import com.khovanskiy.runtime.DefaultRouteBuilderFilter;
+import com.khovanskiy.runtime.DefaultRouteBuilderHandler;
+import com.khovanskiy.runtime.DefaultRouteBuilderResponse;
+import com.khovanskiy.runtime.RouteBuilder;
+import com.khovanskiy.util.GeneratedMap;
+import com.khovanskiy.util.InstantInterval;
+import com.khovanskiy.util.MapConfiguration;
+import com.khovanskiy.util.MapGenerator;
+import com.khovanskiy.util.Now;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Перечисление маршрутов: маршруты не повторяют последовательности рейсов, исследование по раундам находит
+ * те же маршруты, что и исследование состояний, а постраничная выдача совпадает с выдачей одним запросом.
+ * Ограниченный поиск без оценки пересадок не раскрывает верхние уровни, пока хватает путей нижних.
+ *
+ * @author victor
+ */
+public class PathEnumerationTest {
+    private static final int QUERIES_COUNT = 40;
+    private static final int LIMIT = 30;
+    private static final int PAGES_COUNT = 3;
+    private static final Duration REPEAT_INTERVAL = Duration.ofHours(2);
+
+    private final RouteBuilderConfig config = new RouteBuilderConfig(3, 1800, 86400, 5, 500);
+    private final MapConfiguration configuration = MapConfiguration.getDefaultConfiguration();
+    private GeneratedMap map;
+    private RouteBuilder routeBuilder;
+
+    @Before
+    public void generate() {
+        configuration.setPointsCount(40);
+        configuration.setMaxTrainsCount(40);
+        configuration.setMaxRunsCount(300);
+        configuration.setGraphSeed(37);
+        Now.setClock(Clock.fixed(configuration.getFakeNow(), ZoneId.systemDefault()));
+        Repository repository = new Repository();
+        map = new MapGenerator(configuration, repository, new TransportRunService()).generate();
+        routeBuilder = new RouteBuilder(config, repository);
+        routeBuilder.update(repeatedRuns(), Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * Маршруты, перечисляемые по дереву предшественников или преемников, не повторяют последовательности рейсов
+     */
+    @Test
+    public void findsDistinctRunSequences() {
+        for (ResultPresentation.SortOrder order : new ResultPresentation.SortOrder[]{ResultPresentation.SortOrder.TRANSFERS,
+                ResultPresentation.SortOrder.DEPARTURE, ResultPresentation.SortOrder.ARRIVAL}) {
+            Random random = new Random(31);
+            for (int i = 0; i < QUERIES_COUNT; ++i) {
+                RouteBuilderQuery query = query(random, order, SearchEngine.BFS, LIMIT);
+                Set<List<Ref<?>>> sequences = new HashSet<>();
+                for (Path path : routeBuilder.findRoutes(query, new DefaultRouteBuilderHandler()).getRoutes()) {
+                    List<Ref<?>> runs = new ArrayList<>();
+                    for (ForwardSegment segment : path) {
+                        runs.add(segment.A().getRef());
+                    }
+                    Assert.assertTrue(order + " " + path, sequences.add(runs));
+                }
+            }
+        }
+    }
+
+    /**
+     * Раунды просматривают рейсы шаблонами, но находят те же маршруты в том же порядке
+     */
+    @Test
+    public void findsSamePathsByRounds() {
+        Random states = new Random(37);
+        Random rounds = new Random(37);
+        for (int i = 0; i < QUERIES_COUNT; ++i) {
+            Assert.assertEquals(
+                    search(query(states, ResultPresentation.SortOrder.TRANSFERS, SearchEngine.BFS, LIMIT)),
+                    search(query(rounds, ResultPresentation.SortOrder.TRANSFERS, SearchEngine.RAPTOR, LIMIT)));
+        }
+    }
+
+    /**
+     * Следующие страницы продолжают сохраненный поиск, а поиски с одним номером и разными параметрами не смешиваются
+     */
+    @Test
+    public void pagesMatchSingleQuery() {
+        for (ResultPresentation.SortOrder order : new ResultPresentation.SortOrder[]{
+                ResultPresentation.SortOrder.TRANSFERS, ResultPresentation.SortOrder.ARRIVAL}) {
+            Random single = new Random(41);
+            Random paged = new Random(41);
+            for (int i = 0; i < QUERIES_COUNT; ++i) {
+                String expected = search(query(single, order, SearchEngine.BFS, LIMIT));
+                RouteBuilderQuery query = query(paged, order, SearchEngine.BFS, LIMIT / PAGES_COUNT);
+                // номера, выбранные клиентом, совпадают с номерами, которые выдаются запросам без номера
+                query.setRequestId(i % 2 == 0 ? 0 : i / 2 + 1);
+                StringBuilder pages = new StringBuilder();
+                for (int page = 0; page < PAGES_COUNT; ++page) {
+                    query.getResultPresentation().setOffset(page * LIMIT / PAGES_COUNT);
+                    DefaultRouteBuilderResponse response = routeBuilder.findRoutes(query, new DefaultRouteBuilderHandler());
+                    for (Path path : response.getRoutes()) {
+                        pages.append(path);
+                    }
+                    // поиск сохраняется для запроса с номером или не первой страницы
+                    if (!response.getRoutes().isEmpty()) {
+                        Assert.assertEquals(query.getRequestId() != 0 || page > 0, response.getRequestId() != 0);
+                    }
+                    query.setRequestId(response.getRequestId());
+                }
+                Assert.assertEquals(order.toString(), expected, pages.toString());
+            }
+        }
+    }
+
+    /**
+     * Без оценки количества пересадок ограниченный поиск откладывает переходы на верхние уровни,
+     * а после раскрытия всех уровней находит те же маршруты, что и полный поиск
+     */
+    @Test
+    public void boundedSearchDefersTransfersWithoutEstimate() {
+        Random random = new Random(43);
+        int deferred = 0;
+        for (int i = 0; i < QUERIES_COUNT; ++i) {
+            List<MapGenerator.GeoPoint> stations = map.getStations();
+            Ref<?> from = stations.get(random.nextInt(stations.size())).getPoint().getId();
+            Ref<?> to = stations.get(random.nextInt(stations.size())).getPoint().getId();
+            AtomicInteger fullCalls = new AtomicInteger();
+            Algorithm full = algorithm(from, to, fullCalls).execute();
+            AtomicInteger boundedCalls = new AtomicInteger();
+            Algorithm bounded = algorithm(from, to, boundedCalls).bounded(1).execute();
+            if (bounded.isBounded()) {
+                Assert.assertTrue(boundedCalls.get() < fullCalls.get());
+                ++deferred;
+                while (bounded.isBounded()) {
+                    bounded.deepen();
+                }
+            }
+            Assert.assertEquals(paths(full), paths(bounded));
+        }
+        Assert.assertTrue(deferred > 0);
+    }
+
+    /**
+     * Поиск по рейсам {@link #repeatedRuns()} без оценки пересадок, {@code calls} - счетчик раскрытых остановок
+     */
+    @SuppressWarnings("unchecked")
+    private Algorithm algorithm(Ref<?> from, Ref<?> to, AtomicInteger calls) {
+        Algorithm algorithm = new Algorithm((departures, stop, arrivals) -> {
+            calls.incrementAndGet();
+            return routeBuilder.successors(departures, stop, arrivals, properties -> true);
+        }, config.getMaxTransfersCount(), ResultPresentation.SortOrder.TRANSFERS, ResultPresentation.SortDirection.ASC);
+        for (TrainRun run : repeatedRuns()) {
+            List<RailwayWaypoint> waypoints = run.getWaypoints();
+            for (int i = 0; i < waypoints.size(); ++i) {
+                RailwayWaypoint w = waypoints.get(i);
+                if (i + 1 < waypoints.size() && w.getPoint().equals(from) && !w.getDeparture().isBefore(configuration.getFakeNow())) {
+                    algorithm.addSource(new Stop(i, run.getId(), w.getPoint(), w.getDeparture()));
+                }
+                if (i > 0 && w.getPoint().equals(to)) {
+                    algorithm.addTarget(new Stop(i, run.getId(), w.getPoint(), w.getArrival()));
+                }
+            }
+        }
+        return algorithm;
+    }
+
+    private static String paths(Algorithm algorithm) {
+        StringBuilder result = new StringBuilder();
+        int count = 0;
+        for (Path path : algorithm) {
+            if (++count > LIMIT) {
+                break;
+            }
+            result.append(path);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Рейсы карты и их повторы через {@link #REPEAT_INTERVAL}, чтобы у шаблонов маршрутов было несколько рейсов
+     */
+    private List<TrainRun> repeatedRuns() {
+        List<TrainRun> runs = new ArrayList<>(map.getTrainRuns());
+        for (TrainRun run : map.getTrainRuns()) {
+            List<RailwayWaypoint> waypoints = new ArrayList<>();
+            for (RailwayWaypoint waypoint : run.getWaypoints()) {
+                waypoints.add(waypoint.shifted(REPEAT_INTERVAL));
+            }
+            TrainRun repeated = new TrainRun(new TrainRun.Id(run.getName() + "/repeated"), run.getName(), waypoints);
+            repeated.fillRailwayRun(repeated, run.getCarrierId(), run.getSaleDepth(), run.getCarriages());
+            runs.add(repeated);
+        }
+        return runs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RouteBuilderQuery query(Random random, ResultPresentation.SortOrder order, SearchEngine engine, int limit) {
+        List<MapGenerator.GeoPoint> stations = map.getStations();
+        MapGenerator.GeoPoint from = stations.get(random.nextInt(stations.size()));
+        MapGenerator.GeoPoint to = stations.get(random.nextInt(stations.size()));
+        return new RouteBuilderQuery(
+                new PointTimeInterval(from.getPoint().getId(), new InstantInterval(configuration.getFakeNow(), null)),
+                new PointTimeInterval(to.getPoint().getId(), InstantInterval.full()),
+                new DefaultRouteBuilderFilter(),
+                new ResultPresentation(order, ResultPresentation.SortDirection.ASC, limit),
+                0, engine, false, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String search(RouteBuilderQuery query) {
+        StringBuilder result = new StringBuilder();
+        for (Path path : routeBuilder.findRoutes(query, new DefaultRouteBuilderHandler()).getRoutes()) {
+            result.append(path);
+        }
+        return result.toString();
+    }
+}
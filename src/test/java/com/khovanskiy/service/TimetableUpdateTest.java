@@ -0,0 +1,174 @@
+package com.khovanskiy.service;
+
+import com.khovanskiy.config.RouteBuilderConfig;
+import com.khovanskiy.model.Path;
+import com.khovanskiy.model.PointTimeInterval;
+import com.khovanskiy.model.RailwayWaypoint;
+import com.khovanskiy.model.ResultPresentation;
+import com.khovanskiy.model.TrainRun;
+import com.khovanskiy.model.runtime.RouteBuilderQuery;
+import com.khovanskiy.runtime.DefaultRouteBuilderFilter;
+import com.khovanskiy.runtime.DefaultRouteBuilderHandler;
+import com.khovanskiy.runtime.RouteBuilder;
+import com.khovanskiy.util.GeneratedMap;
+import com.khovanskiy.util.InstantInterval;
+import com.khovanskiy.util.MapConfiguration;
+import com.khovanskiy.util.MapGenerator;
+import com.khovanskiy.util.Now;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Изменения расписания без перестроения: после обновления рейсов, задержек и открытия снимка поиски
+ * и стоимости проезда совпадают с поисками расписания, построенного заново по тем же рейсам
+ *
+ * @author victor
+ */
+public class TimetableUpdateTest {
+    private static final int QUERIES_COUNT = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RouteBuilderConfig config = new RouteBuilderConfig(3, 1800, 86400, 5, 500);
+    private final MapConfiguration configuration = MapConfiguration.getDefaultConfiguration();
+    private GeneratedMap map;
+
+    @Before
+    public void generate() {
+        configuration.setPointsCount(40);
+        configuration.setMaxTrainsCount(40);
+        configuration.setMaxRunsCount(300);
+        // карта полностью определяется зерном, поэтому результаты воспроизводимы
+        configuration.setGraphSeed(19);
+        Now.setClock(Clock.fixed(configuration.getFakeNow(), ZoneId.systemDefault()));
+        Repository repository = new Repository();
+        map = new MapGenerator(configuration, repository, new TransportRunService()).generate();
+    }
+
+    @Test
+    public void updatesMatchRebuild() {
+        List<TrainRun> runs = map.getTrainRuns();
+        RouteBuilder routeBuilder = build(runs);
+        List<TrainRun> updated = new ArrayList<>();
+        List<TrainRun> deleted = new ArrayList<>();
+        List<TrainRun> rebuilt = new ArrayList<>();
+        for (int i = 0; i < runs.size(); ++i) {
+            TrainRun run = runs.get(i);
+            if (i % 5 == 0) {
+                TrainRun shifted = run.withWaypoints(shifted(run, 0, Duration.ofMinutes(20)));
+                updated.add(shifted);
+                rebuilt.add(shifted);
+            } else if (i % 5 == 1) {
+                deleted.add(run);
+            } else {
+                rebuilt.add(run);
+            }
+        }
+        routeBuilder.update(Collections.emptyList(), updated, deleted);
+        Assert.assertEquals(search(build(rebuilt)), search(routeBuilder));
+
+        // номера удаленных рейсов достаются добавленным рейсам
+        routeBuilder.update(deleted, Collections.emptyList(), Collections.emptyList());
+        rebuilt.addAll(deleted);
+        Assert.assertEquals(search(build(rebuilt)), search(routeBuilder));
+    }
+
+    @Test
+    public void delaysMatchRebuild() {
+        List<TrainRun> runs = map.getTrainRuns();
+        RouteBuilder routeBuilder = build(runs);
+        List<TrainRun> rebuilt = new ArrayList<>(runs);
+        List<RouteBuilder.Delay> batch = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += 3) {
+            TrainRun run = runs.get(i);
+            int number = i % run.getWaypoints().size();
+            Duration delay = Duration.ofMinutes(37 + i % 120);
+            if (i % 2 == 0) {
+                routeBuilder.delay(run.getId(), number, delay);
+            } else {
+                batch.add(new RouteBuilder.Delay(run.getId(), number, delay));
+            }
+            rebuilt.set(i, run.withWaypoints(shifted(run, number, delay)));
+        }
+        routeBuilder.delay(batch);
+        Assert.assertEquals(search(build(rebuilt)), search(routeBuilder));
+    }
+
+    @Test
+    public void snapshotMatchesOriginal() throws IOException {
+        List<TrainRun> runs = map.getTrainRuns();
+        RouteBuilder routeBuilder = build(runs);
+        java.nio.file.Path file = folder.newFile().toPath();
+        routeBuilder.writeSnapshot(file);
+        RouteBuilder opened = new RouteBuilder(config, new Repository());
+        opened.openSnapshot(file);
+        Assert.assertEquals(search(routeBuilder), search(opened));
+
+        // расписание снимка изменяется так же, как построенное
+        TrainRun run = runs.get(runs.size() / 2);
+        for (RouteBuilder builder : new RouteBuilder[]{routeBuilder, opened}) {
+            builder.update(Collections.emptyList(), Collections.emptyList(), Collections.singletonList(runs.get(0)));
+            builder.delay(run.getId(), 1, Duration.ofMinutes(45));
+        }
+        Assert.assertEquals(search(routeBuilder), search(opened));
+    }
+
+    private RouteBuilder build(List<TrainRun> runs) {
+        RouteBuilder routeBuilder = new RouteBuilder(config, new Repository());
+        routeBuilder.update(runs, Collections.emptyList(), Collections.emptyList());
+        return routeBuilder;
+    }
+
+    /**
+     * Маршрутные точки рейса, сдвинутые начиная с остановки {@code number}
+     */
+    private static List<RailwayWaypoint> shifted(TrainRun run, int number, Duration delay) {
+        List<RailwayWaypoint> waypoints = new ArrayList<>(run.getWaypoints());
+        for (int i = number; i < waypoints.size(); ++i) {
+            waypoints.set(i, waypoints.get(i).shifted(delay));
+        }
+        return waypoints;
+    }
+
+    /**
+     * Маршруты и их стоимости для одних и тех же запросов
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> search(RouteBuilder routeBuilder) {
+        Random random = new Random(29);
+        List<MapGenerator.GeoPoint> stations = map.getStations();
+        ResultPresentation.SortOrder[] orders = {ResultPresentation.SortOrder.TRANSFERS,
+                ResultPresentation.SortOrder.ARRIVAL, ResultPresentation.SortOrder.PRICE};
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < QUERIES_COUNT; ++i) {
+            MapGenerator.GeoPoint from = stations.get(random.nextInt(stations.size()));
+            MapGenerator.GeoPoint to = stations.get(random.nextInt(stations.size()));
+            ResultPresentation.SortOrder order = orders[i % orders.length];
+            RouteBuilderQuery query = new RouteBuilderQuery(
+                    new PointTimeInterval(from.getPoint().getId(), new InstantInterval(configuration.getFakeNow(), null)),
+                    new PointTimeInterval(to.getPoint().getId(), InstantInterval.full()),
+                    new DefaultRouteBuilderFilter(),
+                    new ResultPresentation(order, ResultPresentation.SortDirection.ASC, 10),
+                    0);
+            StringBuilder result = new StringBuilder(from.getPoint().getId() + " -> " + to.getPoint().getId() + "\n");
+            for (Path path : routeBuilder.findRoutes(query, new DefaultRouteBuilderHandler()).getRoutes()) {
+                result.append(path).append("price ").append(routeBuilder.price(path)).append('\n');
+            }
+            results.add(result.toString());
+        }
+        return results;
+    }
+}
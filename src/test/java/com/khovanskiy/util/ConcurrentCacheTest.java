@@ -0,0 +1,59 @@
+package com.khovanskiy.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author victor
+ */
+public class ConcurrentCacheTest {
+    @Test
+    public void evictsLeastRecentlyUsedWithReserve() {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(20, Long.MAX_VALUE, 3600);
+        for (int i = 0; i < 20; ++i) {
+            cache.put(i, "v" + i, 1);
+        }
+        Assert.assertEquals(20, cache.size());
+        Assert.assertEquals(0, cache.getEvictionCount());
+        Assert.assertEquals("v0", cache.get(0));
+
+        cache.put(20, "v20", 1);
+        // вытесняются давно запрошенные элементы с запасом в десятую часть ограничения
+        Assert.assertEquals(18, cache.size());
+        Assert.assertEquals(3, cache.getEvictionCount());
+        Assert.assertEquals("v0", cache.get(0));
+        Assert.assertNull(cache.get(1));
+        Assert.assertNull(cache.get(2));
+        Assert.assertNull(cache.get(3));
+        Assert.assertEquals("v20", cache.get(20));
+
+        cache.put(21, "v21", 1);
+        Assert.assertEquals(19, cache.size());
+        Assert.assertEquals(3, cache.getEvictionCount());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(100, 100, 3600);
+        for (int i = 0; i < 10; ++i) {
+            cache.put(i, "v" + i, 10);
+        }
+        Assert.assertEquals(100, cache.getWeight());
+        cache.put(10, "v10", 30);
+        Assert.assertTrue(cache.getWeight() <= 90);
+        Assert.assertEquals("v10", cache.get(10));
+        Assert.assertNull(cache.get(0));
+    }
+
+    @Test
+    public void replacesValue() {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(10, 100, 3600);
+        cache.put(1, "a", 10);
+        cache.put(1, "b", 20);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(20, cache.getWeight());
+        Assert.assertEquals("b", cache.get(1));
+        cache.remove(1);
+        Assert.assertEquals(0, cache.getWeight());
+    }
+}